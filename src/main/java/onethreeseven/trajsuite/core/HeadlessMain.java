@@ -0,0 +1,150 @@
+package onethreeseven.trajsuite.core;
+
+import onethreeseven.trajsuite.core.model.ExitCode;
+import onethreeseven.trajsuite.core.model.HeadlessTrajSuiteProgram;
+import onethreeseven.trajsuite.core.model.TrajsuiteProgramSupplier;
+import onethreeseven.trajsuitePlugin.model.BaseTrajSuiteProgram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The entry point for running TrajSuite headless, i.e batch jobs on a server.
+ * Nothing from WorldWind or the JavaFX toolkit is loaded (unlike {@link Main}, which is a JavaFX application),
+ * the entities are only models, and CLI commands are run from script files instead of typed in.
+ * Usage: {@code HeadlessMain [script files...]}, with no script files the script is read from standard input.
+ * Each line of a script is one command (as it would be typed into the CLI), blank lines and lines
+ * starting with {@code #} are skipped, and quotes group arguments that contain spaces.
+ * @author Luke Bermingham
+ */
+public final class HeadlessMain {
+
+    private static final Logger logger = Logger.getLogger(HeadlessMain.class.getSimpleName());
+
+    private HeadlessMain() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args).code);
+    }
+
+    /**
+     * @param args the script files to run (in order), the {@code -headless} flag is ignored.
+     * @return How it went, running stops at the first command that fails.
+     */
+    public static ExitCode run(String[] args){
+        long startNanos = System.nanoTime();
+        List<Path> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if(arg.trim().equalsIgnoreCase("-headless")){
+                continue;
+            }
+            Path script = Paths.get(arg);
+            if(!Files.isReadable(script)){
+                System.err.println("Cannot read script file: " + arg);
+                return ExitCode.INVALID_PARAMS;
+            }
+            scripts.add(script);
+        }
+
+        TrajsuiteProgramSupplier.setHeadless(true);
+        HeadlessTrajSuiteProgram program = (HeadlessTrajSuiteProgram) BaseTrajSuiteProgram.getInstance();
+        logger.info(String.format("Headless startup took %.1fms", (System.nanoTime() - startNanos) / 1e6));
+
+        try{
+            if(scripts.isEmpty()){
+                return runScript(program, new InputStreamReader(System.in, StandardCharsets.UTF_8), "stdin");
+            }
+            for (Path script : scripts) {
+                ExitCode code = runScript(program, Files.newBufferedReader(script, StandardCharsets.UTF_8), script.toString());
+                if(code != ExitCode.GOOD){
+                    return code;
+                }
+            }
+            return ExitCode.GOOD;
+        }catch (IOException e){
+            logger.log(Level.SEVERE, "Could not read script.", e);
+            return ExitCode.GENERAL_ERROR;
+        }finally {
+            program.shutdown();
+        }
+    }
+
+    private static ExitCode runScript(HeadlessTrajSuiteProgram program, Reader script, String scriptName) throws IOException {
+        long startNanos = System.nanoTime();
+        int nCommands = 0;
+        try(BufferedReader reader = new BufferedReader(script)){
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null){
+                lineNumber++;
+                String[] command = tokenize(line);
+                if(command.length == 0){
+                    continue;
+                }
+                try{
+                    //false when the command is unknown, its arguments were bad, or it did not succeed
+                    if(!program.getCLI().doCommand(command)){
+                        logger.severe("Command failed at " + scriptName + ":" + lineNumber + " (" + line.trim() + ")");
+                        return ExitCode.GENERAL_ERROR;
+                    }
+                    nCommands++;
+                }catch (Exception e){
+                    logger.log(Level.SEVERE, "Command failed at " + scriptName + ":" + lineNumber + " (" + line.trim() + ")", e);
+                    return ExitCode.GENERAL_ERROR;
+                }
+            }
+        }
+        logger.info(String.format("Ran %d commands from %s in %.1fms", nCommands, scriptName, (System.nanoTime() - startNanos) / 1e6));
+        return ExitCode.GOOD;
+    }
+
+    /**
+     * Split a script line into command arguments.
+     * @param line a line of a script
+     * @return the arguments, empty if the line is blank or a comment.
+     */
+    static String[] tokenize(String line){
+        String trimmed = line.trim();
+        if(trimmed.isEmpty() || trimmed.startsWith("#")){
+            return new String[0];
+        }
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean inQuotes = false;
+        boolean hasToken = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if(c == '"'){
+                inQuotes = !inQuotes;
+                hasToken = true;
+            }
+            else if(Character.isWhitespace(c) && !inQuotes){
+                if(hasToken){
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    hasToken = false;
+                }
+            }
+            else{
+                token.append(c);
+                hasToken = true;
+            }
+        }
+        if(hasToken){
+            tokens.add(token.toString());
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+}
@@ -9,6 +9,7 @@ import javafx.beans.value.ObservableValue;
 import javafx.stage.Stage;
 import onethreeseven.trajsuite.core.model.TrajSuiteProgram;
 import onethreeseven.trajsuite.core.settings.TrajSuiteSettings;
+import onethreeseven.trajsuite.core.util.StartupProfiler;
 import onethreeseven.trajsuite.core.view.AbstractWWFxApplication;
 import onethreeseven.trajsuitePlugin.model.BaseTrajSuiteProgram;
 import onethreeseven.trajsuitePlugin.model.BoundingCoordinates;
@@ -50,17 +51,23 @@ public class Main extends AbstractWWFxApplication {
     };
 
     public static void main(String[] args) {
+        StartupProfiler.start();
 
         //this is the only time we parse CLI args manually
         initialCLIParse(args);
 
+        //no graphics at all, run the given scripts (HeadlessMain can also be launched directly, which skips JavaFX entirely)
+        if(runningHeadless){
+            System.exit(HeadlessMain.run(args).code);
+            return;
+        }
+
         //launch trajsuite
         program = (TrajSuiteProgram) BaseTrajSuiteProgram.getInstance();
+        StartupProfiler.mark("Created program");
 
         //run with head, initialise WorldWind
-        if(!runningHeadless){
-            launch(args);
-        }
+        launch(args);
     }
 
     private static void initialCLIParse(String[] args){
@@ -74,6 +81,7 @@ public class Main extends AbstractWWFxApplication {
 
     @Override
     protected TrajSuiteProgram preStart(Stage stage) {
+        StartupProfiler.mark("Started JavaFX");
         stage.setMaximized(true);
         return program;
     }
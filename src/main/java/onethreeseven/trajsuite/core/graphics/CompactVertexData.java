@@ -0,0 +1,273 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Vec4;
+import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact GPU layout of some {@link PackedVertexData}.
+ * Positions are stored as floats relative to a reference center (so they keep their precision)
+ * and colors/normals are stored as normalized bytes.
+ * A vertex with a position and an RGBA color takes 16 bytes instead of 56 bytes.
+ * @author Luke Bermingham
+ */
+public class CompactVertexData {
+
+    private final PackedVertexData.Types[] types;
+    private final int[] byteOffsets;
+    private final int strideBytes;
+    private final int valuesPerVert;
+    private final Vec4 referenceCenter;
+    private final ByteBuffer buffer;
+    private final int capacityVerts;
+    private int nVerts;
+
+    private CompactVertexData(PackedVertexData.Types[] types, Vec4 referenceCenter, int nVerts, int capacityVerts){
+        this.types = types;
+        this.referenceCenter = referenceCenter;
+        this.nVerts = nVerts;
+        this.capacityVerts = capacityVerts;
+        this.byteOffsets = new int[types.length];
+        int offset = 0;
+        for (int i = 0; i < types.length; i++) {
+            byteOffsets[i] = offset;
+            offset += bytesFor(types[i]);
+        }
+        this.strideBytes = offset;
+        this.valuesPerVert = valuesPerVert(types);
+        this.buffer = Buffers.newDirectByteBuffer(capacityVerts * strideBytes);
+        this.buffer.limit(nVerts * strideBytes);
+    }
+
+    /**
+     * Re-pack the double precision vertex data into the compact layout.
+     * @param vertexData the flushed buffer of some {@link PackedVertexData}.
+     * @param types the vertex data types packed in the buffer.
+     * @param referenceCenter the center positions are stored relative to, i.e the center of the entity's bounding box.
+     * @return the compact vertex data, ready to upload.
+     */
+    public static CompactVertexData pack(DoubleBuffer vertexData, PackedVertexData.Types[] types, Vec4 referenceCenter){
+        int nVerts = vertexData.limit() / valuesPerVert(types);
+        CompactVertexData compact = new CompactVertexData(types, referenceCenter, nVerts, nVerts);
+        compact.packRange(vertexData, 0, nVerts);
+        return compact;
+    }
+
+    /**
+     * Re-pack only the range of vertices that changed, re-using this buffer if it has the capacity.
+     * Vertices outside the changed range are assumed to be the same as what is already packed.
+     * @param vertexData the flushed buffer of the updated vertex data, must be {@link #isCompatible(PackedVertexData.Types[])}.
+     * @param fromVert the first vertex that changed (inclusive).
+     * @param toVert the last vertex that changed (exclusive).
+     * @return This compact data, or a copy with double the capacity if the updated data did not fit.
+     */
+    public CompactVertexData update(DoubleBuffer vertexData, int fromVert, int toVert){
+        int newNVerts = vertexData.limit() / valuesPerVert;
+        fromVert = Math.max(0, Math.min(fromVert, nVerts));
+        toVert = Math.min(toVert, newNVerts);
+
+        CompactVertexData target = this;
+        if(newNVerts > capacityVerts){
+            target = new CompactVertexData(types, referenceCenter, newNVerts, Math.max(newNVerts, capacityVerts * 2));
+            //keep the unchanged vertices that are already packed
+            ByteBuffer unchanged = buffer.duplicate();
+            unchanged.position(0).limit(fromVert * strideBytes);
+            ByteBuffer dst = target.buffer.duplicate();
+            dst.position(0);
+            dst.put(unchanged);
+        }
+        target.nVerts = newNVerts;
+        target.buffer.limit(newNVerts * strideBytes);
+        target.packRange(vertexData, fromVert, toVert);
+        return target;
+    }
+
+    /**
+     * Make empty compact data to {@link #put(DoubleBuffer, int)} vertices into.
+     * @param types the vertex data types that will be packed.
+     * @param referenceCenter the center positions are stored relative to.
+     * @param capacityVerts how many vertices it can hold before it has to grow.
+     * @return the empty compact data.
+     */
+    public static CompactVertexData allocate(PackedVertexData.Types[] types, Vec4 referenceCenter, int capacityVerts){
+        return new CompactVertexData(types, referenceCenter, 0, capacityVerts);
+    }
+
+    /**
+     * Pack some vertices in over the vertices starting at the given vertex (or after the last vertex, to append them),
+     * i.e to replace the vertices of one shape among many.
+     * @param vertexData the flushed buffer of the vertices to pack, must be {@link #isCompatible(PackedVertexData.Types[])}.
+     * @param atVert the vertex the first of them is packed into, at most {@link #getNVerts()}.
+     * @return This compact data, or a copy with double the capacity if the vertices did not fit.
+     */
+    public CompactVertexData put(DoubleBuffer vertexData, int atVert){
+        atVert = Math.max(0, Math.min(atVert, nVerts));
+        int toVert = atVert + vertexData.limit() / valuesPerVert;
+        CompactVertexData target = this;
+        if(toVert > capacityVerts){
+            target = new CompactVertexData(types, referenceCenter, nVerts, Math.max(toVert, capacityVerts * 2));
+            ByteBuffer existing = buffer.duplicate();
+            existing.position(0).limit(nVerts * strideBytes);
+            target.buffer.duplicate().put(existing);
+        }
+        target.nVerts = Math.max(nVerts, toVert);
+        target.buffer.limit(target.nVerts * strideBytes);
+        target.packRange(vertexData, 0, atVert, toVert);
+        return target;
+    }
+
+    /**
+     * Drop the vertices past the given number of vertices, keeping the capacity.
+     * @param nVerts the number of vertices to keep.
+     */
+    public void truncate(int nVerts){
+        this.nVerts = Math.max(0, Math.min(nVerts, this.nVerts));
+        this.buffer.limit(this.nVerts * strideBytes);
+    }
+
+    /**
+     * @param types the types of some vertex data
+     * @return True if the data is laid out with the same types as this data (so it can be updated in place).
+     */
+    public boolean isCompatible(PackedVertexData.Types[] types){
+        return Arrays.equals(this.types, types);
+    }
+
+    private static int valuesPerVert(PackedVertexData.Types[] types){
+        int values = 0;
+        for (PackedVertexData.Types type : types) {
+            values += type.nValues;
+        }
+        return values;
+    }
+
+    /**
+     * Re-pack a range of vertices from the double precision source into this buffer.
+     * @param src the double precision vertex data, packed the same way as this data.
+     * @param fromVert the first vertex to re-pack (inclusive).
+     * @param toVert the last vertex to re-pack (exclusive).
+     */
+    void packRange(DoubleBuffer src, int fromVert, int toVert){
+        packRange(src, fromVert, fromVert, toVert);
+    }
+
+    /**
+     * Re-pack vertices from the double precision source into a range of this buffer.
+     * @param src the double precision vertex data, packed the same way as this data.
+     * @param srcFromVert the vertex in the source that is packed into the first vertex of the range.
+     * @param fromVert the first vertex to pack into (inclusive).
+     * @param toVert the last vertex to pack into (exclusive).
+     */
+    void packRange(DoubleBuffer src, int srcFromVert, int fromVert, int toVert){
+        for (int vert = fromVert; vert < toVert; vert++) {
+            int srcIdx = (vert - fromVert + srcFromVert) * valuesPerVert;
+            int dstIdx = vert * strideBytes;
+            for (int i = 0; i < types.length; i++) {
+                PackedVertexData.Types type = types[i];
+                int dst = dstIdx + byteOffsets[i];
+                switch (type) {
+                    case VERTEX:
+                        //x,y,z relative to the reference center
+                        for (int n = 0; n < type.nValues; n++) {
+                            buffer.putFloat(dst + n * Buffers.SIZEOF_FLOAT,
+                                    (float) (src.get(srcIdx + n) - centerOrdinate(n)));
+                        }
+                        break;
+                    case RGB:
+                    case RGBA:
+                        for (int n = 0; n < 4; n++) {
+                            //rgb has no alpha so make it opaque
+                            double value = n < type.nValues ? src.get(srcIdx + n) : 1.0;
+                            buffer.put(dst + n, toUnsignedByte(value));
+                        }
+                        break;
+                    case NORMAL:
+                        for (int n = 0; n < 4; n++) {
+                            double value = n < type.nValues ? src.get(srcIdx + n) : 0;
+                            buffer.put(dst + n, toSignedByte(value));
+                        }
+                        break;
+                    default:
+                        throw new UnsupportedOperationException(type + " is not supported currently");
+                }
+                srcIdx += type.nValues;
+            }
+        }
+    }
+
+    private double centerOrdinate(int n){
+        switch (n){
+            case 0: return referenceCenter.x;
+            case 1: return referenceCenter.y;
+            case 2: return referenceCenter.z;
+            default: return 0;
+        }
+    }
+
+    private static byte toUnsignedByte(double normValue){
+        double clamped = Math.max(0, Math.min(1, normValue));
+        return (byte) Math.round(clamped * 255);
+    }
+
+    private static byte toSignedByte(double normValue){
+        double clamped = Math.max(-1, Math.min(1, normValue));
+        return (byte) Math.round(clamped * 127);
+    }
+
+    /**
+     * @param type the vertex data type
+     * @return The number of bytes that type takes up per vertex in the compact layout.
+     */
+    static int bytesFor(PackedVertexData.Types type){
+        switch (type){
+            case VERTEX:
+                return type.nValues * Buffers.SIZEOF_FLOAT;
+            case RGB:
+            case RGBA:
+            case NORMAL:
+                //padded to 4 bytes so every attribute stays aligned
+                return 4;
+            default:
+                throw new UnsupportedOperationException(type + " is not supported currently");
+        }
+    }
+
+    public PackedVertexData.Types[] getVertexDataTypes() {
+        return types;
+    }
+
+    /**
+     * @param typeIdx the index of the type in {@link #getVertexDataTypes()}
+     * @return the byte offset of that type within a single vertex.
+     */
+    public int getByteOffset(int typeIdx) {
+        return byteOffsets[typeIdx];
+    }
+
+    public int getStrideBytes() {
+        return strideBytes;
+    }
+
+    public Vec4 getReferenceCenter() {
+        return referenceCenter;
+    }
+
+    public int getNVerts() {
+        return nVerts;
+    }
+
+    public int getCapacityVerts() {
+        return capacityVerts;
+    }
+
+    /**
+     * @return The compact buffer, its limit is the number of bytes to upload.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
@@ -1,12 +1,11 @@
 package onethreeseven.trajsuite.core.graphics;
 
 import gov.nasa.worldwind.geom.Box;
-import gov.nasa.worldwind.layers.AnnotationLayer;
-import gov.nasa.worldwind.layers.Layer;
 import gov.nasa.worldwind.geom.Extent;
 import gov.nasa.worldwind.layers.LayerList;
 import gov.nasa.worldwind.render.*;
 import gov.nasa.worldwind.util.OGLUtil;
+import javafx.beans.value.ChangeListener;
 import javafx.collections.ListChangeListener;
 import onethreeseven.trajsuite.core.model.Bounding;
 import onethreeseven.trajsuitePlugin.graphics.GraphicsPayload;
@@ -18,8 +17,9 @@ import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import java.awt.*;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * All graphics objects that want to draw to screen in this project
@@ -35,70 +35,45 @@ public abstract class GLBaseRenderable implements Renderable {
     protected final double[] colorNorm = new double[]{1.0, 0, 0, 1.0};
 
     private Box boxBounds = null;
+    //told when the bounding box is forgotten, i.e so a spatial index can re-insert this renderable
+    private volatile Runnable boundsChangedListener = null;
 
-    //Annotation
-    protected Collection<AbstractAnnotation> annotations;
-    private final AnnotationLayer annotationLayer;
+    //the layers prefabs are drawn in, only found once there is a prefab
+    private final LayerList layerList;
+    private PrefabLayers prefabLayers = null;
 
-    //shapes
-    private final gov.nasa.worldwind.layers.RenderableLayer shapesLayer;
-    protected final Collection<AbstractSurfaceShape> surfaceShapes;
+    /**
+     * The graphic made for each prefab (an annotation, a surface object, or the instanced layer),
+     * so prefabs can be added and removed one at a time.
+     */
+    protected final Map<GraphicsPrefab, Object> prefabGraphics = new IdentityHashMap<>();
+    //removes the listeners that keep each graphic in step with its prefab
+    private final Map<GraphicsPrefab, List<Runnable>> prefabListenerRemovers = new IdentityHashMap<>();
+    private boolean prefabsVisible = true;
+
+    //kept so they can be removed from the payload, which may outlive this renderable
+    private final ChangeListener<Color> colorChanged = (observable, oldValue, newValue) -> updateColorNorm(newValue);
+    private final ListChangeListener<GraphicsPrefab> prefabsChanged = this::updatePrefabGraphics;
 
     public GLBaseRenderable(BoundingCoordinates model, GraphicsPayload payload, LayerList layerList){
         this.model = model;
         this.payload = payload;
+        this.layerList = layerList;
 
-        //always dirty at first, so we make the packed vertex data
-        this.payload.isDirty.setValue(true);
-
-        this.payload.fallbackColor.addListener((observable, oldValue, newValue) -> {
-            updateColorNorm(newValue);
-        });
+        this.payload.fallbackColor.addListener(colorChanged);
 
         //set color initially
         updateColorNorm(this.payload.fallbackColor.get());
 
-        //////////////////////////
-        //SETUP annotation stuff
-        //////////////////////////
-
-        //ensure we have an annotation layer in case one of graphics has an annotation
-        List<Layer> res = layerList.getLayersByClass(AnnotationLayer.class);
-        if(!res.isEmpty()){
-            annotationLayer = (AnnotationLayer) res.iterator().next();
-            annotationLayer.setEnabled(true);
-        }else{
-            annotationLayer = new AnnotationLayer();
-            annotationLayer.setEnabled(true);
-            annotationLayer.setName("Annotations");
-            layerList.add(annotationLayer);
-        }
-
-        //ensure we have a shapes layers
-        Layer layer = layerList.getLayerByName("Shapes");
-        if(layer == null || !(layer instanceof gov.nasa.worldwind.layers.RenderableLayer)){
-            layer = new gov.nasa.worldwind.layers.RenderableLayer();
-            layer.setName("Shapes");
-            layer.setEnabled(true);
-
-            shapesLayer = (gov.nasa.worldwind.layers.RenderableLayer) layer;
-            layerList.add(shapesLayer);
-        }else{
-            shapesLayer = (gov.nasa.worldwind.layers.RenderableLayer) layer;
-            shapesLayer.setEnabled(true);
-        }
-
         ////////////////////
         //Setup prefab stuff
         ////////////////////
-        this.surfaceShapes = new ArrayList<>();
-        this.annotations = new ArrayList<>();
-
-        updatePrefabGraphics();
+        for (GraphicsPrefab additionalPrefab : payload.additionalPrefabs) {
+            addPrefabGraphic(additionalPrefab);
+        }
 
-        //add change listener so when prefabs shapes change so do our surface shapes
-        this.payload.additionalPrefabs.addListener(
-                (ListChangeListener<GraphicsPrefab>) c -> updatePrefabGraphics());
+        //add change listener so when prefabs are added/removed so are our graphics
+        this.payload.additionalPrefabs.addListener(prefabsChanged);
 
     }
 
@@ -109,57 +84,122 @@ public abstract class GLBaseRenderable implements Renderable {
         colorNorm[3] = color.getAlpha() / 255d;
     }
 
-    public void setPrefabsVisibility(boolean visible){
-        if(!surfaceShapes.isEmpty()){
-            for (AbstractSurfaceShape surfaceShape : surfaceShapes) {
-                surfaceShape.setVisible(visible);
-            }
+    private PrefabLayers prefabLayers(){
+        if(prefabLayers == null){
+            prefabLayers = PrefabLayers.of(layerList);
         }
-        if(!annotations.isEmpty()){
-            for (AbstractAnnotation annotation : annotations) {
-                annotation.getAttributes().setVisible(visible);
-            }
+        return prefabLayers;
+    }
+
+    /**
+     * @return True if any prefabs of this renderable have their own graphics (i.e labels or surface shapes).
+     */
+    public boolean hasPrefabGraphics(){
+        return !prefabGraphics.isEmpty();
+    }
+
+    public void setPrefabsVisibility(boolean visible){
+        prefabsVisible = visible;
+        for (Map.Entry<GraphicsPrefab, Object> entry : prefabGraphics.entrySet()) {
+            setPrefabGraphicVisibility(entry.getKey(), entry.getValue(), visible);
         }
     }
 
-    protected void updatePrefabGraphics(){
-        //remove shapes from layer
-        for (AbstractSurfaceShape surfaceShape : surfaceShapes) {
-            shapesLayer.removeRenderable(surfaceShape);
+    private void setPrefabGraphicVisibility(GraphicsPrefab prefab, Object graphic, boolean visible){
+        if(graphic instanceof AbstractAnnotation){
+            ((AbstractAnnotation) graphic).getAttributes().setVisible(visible);
+        }
+        else if(graphic instanceof AbstractSurfaceObject){
+            ((AbstractSurfaceObject) graphic).setVisible(visible);
         }
-        //remove annotations from layer
-        for (AbstractAnnotation annotation : annotations) {
-            annotationLayer.removeAnnotation(annotation);
+        else if(graphic instanceof InstancedPrefabLayer){
+            ((InstancedPrefabLayer) graphic).setVisible(prefab, visible);
+        }
+    }
+
+    /**
+     * Apply the changes to the prefabs, only the added and removed prefabs are touched.
+     * Changes to the properties of a prefab (i.e its label or color) are applied in place
+     * by the graphic made for it, see {@link PrefabToRenderableFactory}.
+     * @param c the change to the payload's prefabs
+     */
+    protected void updatePrefabGraphics(ListChangeListener.Change<? extends GraphicsPrefab> c){
+        while (c.next()){
+            //a permutation or an update keeps the same prefabs, so there is nothing to re-make
+            if(c.wasPermutated() || c.wasUpdated()){
+                continue;
+            }
+            for (GraphicsPrefab removed : c.getRemoved()) {
+                removePrefabGraphic(removed);
+            }
+            for (GraphicsPrefab added : c.getAddedSubList()) {
+                addPrefabGraphic(added);
+            }
         }
+    }
 
-        //clear the references to them too
-        surfaceShapes.clear();
-        annotations.clear();
-
-        for (GraphicsPrefab additionalPrefab : getPayload().additionalPrefabs) {
-            //handle adding label
-            if(additionalPrefab instanceof LabelPrefab){
-                LabelPrefab labelPrefab = (LabelPrefab) additionalPrefab;
-                if(!labelPrefab.label.get().isEmpty()){
-                    if(labelPrefab.isAnnotation){
-                        AbstractAnnotation annotation = PrefabToRenderableFactory.createAnnotation(labelPrefab);
-                        annotations.add(annotation);
-                        annotationLayer.addAnnotation(annotation);
-                    }
-                    else{
-                        SurfaceText surfaceText = PrefabToRenderableFactory.createText(labelPrefab);
-                        shapesLayer.addRenderable(surfaceText);
-                    }
-
-                }
+    private void addPrefabGraphic(GraphicsPrefab prefab){
+        if(prefabGraphics.containsKey(prefab)){
+            return;
+        }
+        Object graphic;
+        List<Runnable> removers = new ArrayList<>();
+        //handle adding label
+        if(prefab instanceof LabelPrefab){
+            LabelPrefab labelPrefab = (LabelPrefab) prefab;
+            if(labelPrefab.label.get().isEmpty()){
+                return;
+            }
+            if(labelPrefab.isAnnotation){
+                AbstractAnnotation annotation = PrefabToRenderableFactory.createAnnotation(labelPrefab, removers);
+                prefabLayers().annotationLayer.addAnnotation(annotation);
+                graphic = annotation;
             }
-            //handle adding shape
             else{
-                AbstractSurfaceShape shape = PrefabToRenderableFactory.createAnnotation(additionalPrefab);
-                surfaceShapes.add(shape);
-                shapesLayer.addRenderable(shape);
+                SurfaceText surfaceText = PrefabToRenderableFactory.createText(labelPrefab, removers);
+                prefabLayers().shapesLayer.addRenderable(surfaceText);
+                graphic = surfaceText;
             }
         }
+        //handle adding a shape that can be instanced
+        else if(GraphicsSettings.useInstancedPrefabs() && InstancedPrefabLayer.supports(prefab)){
+            InstancedPrefabLayer instancedLayer = prefabLayers().instancedLayer;
+            instancedLayer.add(prefab);
+            graphic = instancedLayer;
+        }
+        //handle adding shape
+        else{
+            AbstractSurfaceShape shape = PrefabToRenderableFactory.createAnnotation(prefab, removers);
+            prefabLayers().shapesLayer.addRenderable(shape);
+            graphic = shape;
+        }
+        prefabGraphics.put(prefab, graphic);
+        if(!removers.isEmpty()){
+            prefabListenerRemovers.put(prefab, removers);
+        }
+        if(!prefabsVisible){
+            setPrefabGraphicVisibility(prefab, graphic, false);
+        }
+    }
+
+    private void removePrefabGraphic(GraphicsPrefab prefab){
+        Object graphic = prefabGraphics.remove(prefab);
+        if(graphic == null){
+            return;
+        }
+        List<Runnable> removers = prefabListenerRemovers.remove(prefab);
+        if(removers != null){
+            removers.forEach(Runnable::run);
+        }
+        if(graphic instanceof Annotation){
+            prefabLayers().annotationLayer.removeAnnotation((Annotation) graphic);
+        }
+        else if(graphic instanceof InstancedPrefabLayer){
+            ((InstancedPrefabLayer) graphic).remove(prefab);
+        }
+        else if(graphic instanceof Renderable){
+            prefabLayers().shapesLayer.removeRenderable((Renderable) graphic);
+        }
     }
 
     /**
@@ -269,14 +309,11 @@ public abstract class GLBaseRenderable implements Renderable {
     }
 
     public void cleanup(DrawContext dc) {
-        for (AbstractAnnotation annotation : annotations) {
-            annotationLayer.removeAnnotation(annotation);
+        payload.fallbackColor.removeListener(colorChanged);
+        payload.additionalPrefabs.removeListener(prefabsChanged);
+        for (GraphicsPrefab prefab : new ArrayList<>(prefabGraphics.keySet())) {
+            removePrefabGraphic(prefab);
         }
-        for (AbstractSurfaceShape surfaceShape : surfaceShapes) {
-            shapesLayer.removeRenderable(surfaceShape);
-        }
-        annotations.clear();
-        surfaceShapes.clear();
         cleanupRenderable(dc);
     }
 
@@ -292,6 +329,24 @@ public abstract class GLBaseRenderable implements Renderable {
         return boxBounds;
     }
 
+    /**
+     * Forget the cached bounding box, so it is recalculated from the model (i.e because the model grew).
+     */
+    public void invalidateBoundingBox(){
+        boxBounds = null;
+        Runnable listener = boundsChangedListener;
+        if(listener != null){
+            listener.run();
+        }
+    }
+
+    /**
+     * @param listener called (on any thread) when the bounding box of this renderable may have changed, or null.
+     */
+    public void setBoundsChangedListener(Runnable listener){
+        this.boundsChangedListener = listener;
+    }
+
     public GraphicsPayload getPayload() {
         return payload;
     }
@@ -0,0 +1,456 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+import gov.nasa.worldwind.util.OGLUtil;
+import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
+import onethreeseven.trajsuitePlugin.graphics.RenderingModes;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Draws many {@link GLVboRenderable} at once by packing all the entities that share a rendering mode
+ * into one large vertex buffer and drawing them with a single glMultiDrawArrays call.
+ * Per-entity colors are baked into the vertex colors and per-entity visibility (and culling) is handled
+ * by leaving entities out of the multi-draw, so toggling visibility does not re-pack anything.
+ * When an entity's vertex data or color changes only its range of the batch is re-packed and uploaded,
+ * the whole batch is only re-packed when its membership (or a member's number of vertices) changes.
+ * Note: in a batch lines/points are drawn at their preferred size (they are not scaled by distance).
+ * @author Luke Bermingham
+ */
+public class GLBatchRenderer {
+
+    /**
+     * Vertex layout of a batch: float x,y,z relative to the batch center, then unsigned byte r,g,b,a.
+     */
+    private static final int STRIDE_BYTES = 3 * Buffers.SIZEOF_FLOAT + 4;
+    private static final int COLOR_OFFSET_BYTES = 3 * Buffers.SIZEOF_FLOAT;
+
+    private final Map<BatchKey, Batch> batches = new HashMap<>();
+    private final Map<GLVboRenderable, BatchEntry> entries = new IdentityHashMap<>();
+    private long frameNumber = 0;
+    private String owner = GLBufferManager.UNASSIGNED_OWNER;
+
+    /**
+     * Draw the given renderables in batches.
+     * @param dc the draw context
+     * @param renderables all the renderables that belong to the batches (visible or not).
+     * @param visible which of the renderables to draw this frame (i.e visible and on screen).
+     */
+    public void render(DrawContext dc, Iterable<GLVboRenderable> renderables, Predicate<GLVboRenderable> visible){
+        if(dc.isPickingMode()){
+            return;
+        }
+        frameNumber++;
+        updateMembership(renderables);
+
+        GL2 gl = dc.getGL().getGL2();
+        if(GraphicsSettings.prepareVertexDataInBackground()){
+            //pick up member vertex data that finished packing on the workers
+            VertexPreparationExecutor.getInstance().drainCompleted();
+        }
+        Iterator<Batch> iter = batches.values().iterator();
+        while(iter.hasNext()){
+            Batch batch = iter.next();
+            //all its members were removed
+            if(batch.members.isEmpty()){
+                batch.vertexBuffer.delete(dc);
+                iter.remove();
+                continue;
+            }
+            batch.vertexBuffer.setOwner(owner);
+            if(batch.update(gl)){
+                batch.draw(dc, visible);
+            }
+        }
+    }
+
+    /**
+     * Work out which batch each renderable belongs to, batches whose membership changed are re-packed.
+     */
+    private void updateMembership(Iterable<GLVboRenderable> renderables){
+        for (GLVboRenderable renderable : renderables) {
+            BatchKey key = new BatchKey(renderable);
+            BatchEntry entry = entries.get(renderable);
+            if(entry == null){
+                entry = new BatchEntry(renderable);
+                entries.put(renderable, entry);
+                batchFor(key).add(entry);
+            }
+            else if(!entry.batch.key.equals(key)){
+                entry.batch.remove(entry);
+                batchFor(key).add(entry);
+            }
+            entry.lastSeenFrame = frameNumber;
+        }
+
+        //anything we did not see this frame has been removed
+        Iterator<BatchEntry> iter = entries.values().iterator();
+        while(iter.hasNext()){
+            BatchEntry entry = iter.next();
+            if(entry.lastSeenFrame != frameNumber){
+                entry.batch.remove(entry);
+                iter.remove();
+            }
+        }
+    }
+
+    private Batch batchFor(BatchKey key){
+        return batches.computeIfAbsent(key, Batch::new);
+    }
+
+    private static int bakedColorOf(GLVboRenderable renderable){
+        return renderable.getPayload().fallbackColor.get().getRGB();
+    }
+
+    /**
+     * Draw one member from its range of its batch's vertex buffer, for picking (see {@link VertexPicker}),
+     * because members of a batch do not upload their own vertex buffer.
+     * The member's first vertex is drawn as vertex 0, so a per-vertex id buffer lines up with the member's vertices.
+     * @param dc the draw context, in picking mode.
+     * @param renderable a member of a batch.
+     * @param idBuffer per-vertex pick colors (4 unsigned bytes per vertex), or null to use the current color.
+     * @return False if the renderable is not in an uploaded batch (or its data changed since), so nothing was drawn.
+     */
+    boolean drawForPicking(DrawContext dc, GLVboRenderable renderable, GLVertexBuffer idBuffer){
+        BatchEntry entry = entries.get(renderable);
+        if(entry == null || entry.batch == null || entry.batch.layoutDirty || entry.nVerts == 0
+                || entry.packedData != renderable.packedVertexData){
+            return false;
+        }
+        return entry.batch.drawForPicking(dc, entry, idBuffer);
+    }
+
+    /**
+     * Release all the gpu buffers held by the batches.
+     * @param dc the draw context
+     */
+    public void dispose(DrawContext dc){
+        for (Batch batch : batches.values()) {
+            batch.vertexBuffer.delete(dc);
+        }
+        batches.clear();
+        entries.clear();
+    }
+
+    /**
+     * @param owner who the gpu memory of the batches is accounted to, i.e the name of a layer.
+     * @see GLBufferManager
+     */
+    public void setOwner(String owner){
+        this.owner = owner;
+        for (Batch batch : batches.values()) {
+            batch.vertexBuffer.setOwner(owner);
+        }
+    }
+
+    public boolean isEmpty(){
+        return batches.isEmpty();
+    }
+
+    /**
+     * @return the number of batches (i.e draw calls) used to draw everything.
+     */
+    public int getNBatches(){
+        return batches.size();
+    }
+
+    ////////////////////////
+    //Batch internals
+    ////////////////////////
+
+    /**
+     * The state that must be the same for entities to be drawn in the same batch.
+     */
+    private static final class BatchKey {
+        private final RenderingModes mode;
+        private final int size;
+        private final boolean drawOnTop;
+        private final boolean smoothPoints;
+
+        private BatchKey(GLVboRenderable renderable){
+            this.mode = renderable.getPayload().renderingMode.get();
+            this.size = renderable.getPayload().pointOrLineSize.get();
+            this.drawOnTop = renderable.getPayload().drawOnTop.get();
+            this.smoothPoints = renderable.getPayload().smoothPoints.get();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            BatchKey batchKey = (BatchKey) o;
+            return size == batchKey.size && drawOnTop == batchKey.drawOnTop &&
+                    smoothPoints == batchKey.smoothPoints && mode == batchKey.mode;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mode, size, drawOnTop, smoothPoints);
+        }
+    }
+
+    private static final class BatchEntry {
+        private final GLVboRenderable renderable;
+        private Batch batch;
+        private int firstVert = 0;
+        private int nVerts = 0;
+        private int bakedColor = 0;
+        private long lastSeenFrame = 0;
+        //the vertex data packed into the batch, replaced when the renderable has newer data
+        private PackedVertexData packedData = null;
+        private DoubleBuffer packedBuffer = null;
+        //its range of the batch needs re-packing and uploading
+        private boolean isDirty = true;
+
+        private BatchEntry(GLVboRenderable renderable){
+            this.renderable = renderable;
+        }
+    }
+
+    private static final class Batch {
+        private final BatchKey key;
+        private final Set<BatchEntry> members = new LinkedHashSet<>();
+        private final GLVertexBuffer vertexBuffer = new GLVertexBuffer();
+        private Vec4 referenceCenter = Vec4.ZERO;
+        //the members' vertices laid out one after another, kept so ranges can be re-packed in place
+        private ByteBuffer data = null;
+        //the members or their number of vertices changed, so everything moves
+        private boolean layoutDirty = true;
+
+        //re-used each frame for the multi-draw
+        private int[] firsts = new int[0];
+        private int[] counts = new int[0];
+
+        private Batch(BatchKey key){
+            this.key = key;
+        }
+
+        private void add(BatchEntry entry){
+            entry.batch = this;
+            members.add(entry);
+            layoutDirty = true;
+        }
+
+        private void remove(BatchEntry entry){
+            members.remove(entry);
+            entry.batch = null;
+            layoutDirty = true;
+        }
+
+        /**
+         * Pick up the members' latest vertex data (through {@link GLVboRenderable#prepareVertexData()}, so it is
+         * packed on a worker when that is enabled) and upload what changed.
+         * Members whose data or color changed are re-packed in place, the rest of the batch is untouched.
+         * @return False if the batch could not be uploaded (i.e vbos are not supported), so it cannot be drawn.
+         */
+        private boolean update(GL2 gl){
+            for (BatchEntry member : members) {
+                GLVboRenderable renderable = member.renderable;
+                renderable.prepareVertexData();
+                PackedVertexData latest = renderable.packedVertexData;
+                if(latest != member.packedData){
+                    int nVerts = latest == null ? 0 : latest.getNVerts();
+                    if(nVerts != member.nVerts){
+                        layoutDirty = true;
+                    }
+                    member.packedData = latest;
+                    member.packedBuffer = renderable.packedVertexBuffer;
+                    member.isDirty = true;
+                }
+                else if(member.bakedColor != bakedColorOf(renderable)){
+                    member.isDirty = true;
+                }
+            }
+
+            if(layoutDirty){
+                return rebuild(gl);
+            }
+            //evicted, the packed data is still here so just upload it again
+            if(!vertexBuffer.isCreated() && data != null && !vertexBuffer.upload(gl, data, data.limit())){
+                return false;
+            }
+            for (BatchEntry member : members) {
+                if(member.isDirty){
+                    pack(member, data);
+                    if(!vertexBuffer.upload(gl, data, data.limit(),
+                            (long) member.firstVert * STRIDE_BYTES, (long) (member.firstVert + member.nVerts) * STRIDE_BYTES)){
+                        return false;
+                    }
+                    member.isDirty = false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Lay out and re-pack every member into one buffer and upload it, only needed when the layout changes.
+         * @return False if it could not be uploaded.
+         */
+        private boolean rebuild(GL2 gl){
+            int totalVerts = 0;
+            double cx = 0, cy = 0, cz = 0;
+            for (BatchEntry member : members) {
+                member.nVerts = member.packedData == null ? 0 : member.packedData.getNVerts();
+                totalVerts += member.nVerts;
+                Vec4 center = member.renderable.getBoundingBox().getCenter();
+                cx += center.x;
+                cy += center.y;
+                cz += center.z;
+            }
+            if(!members.isEmpty()){
+                referenceCenter = new Vec4(cx / members.size(), cy / members.size(), cz / members.size());
+            }
+
+            int totalBytes = totalVerts * STRIDE_BYTES;
+            if(data == null || data.capacity() < totalBytes){
+                data = Buffers.newDirectByteBuffer(totalBytes);
+            }
+            data.clear();
+            data.limit(totalBytes);
+            int firstVert = 0;
+            for (BatchEntry member : members) {
+                member.firstVert = firstVert;
+                pack(member, data);
+                member.isDirty = false;
+                firstVert += member.nVerts;
+            }
+            if(firsts.length < members.size()){
+                firsts = new int[members.size()];
+                counts = new int[members.size()];
+            }
+            layoutDirty = false;
+            //if this fails the buffer is not created, so the packed data is uploaded again next frame
+            return vertexBuffer.upload(gl, data, data.limit());
+        }
+
+        private void pack(BatchEntry member, ByteBuffer dst){
+            GLVboRenderable renderable = member.renderable;
+            member.bakedColor = bakedColorOf(renderable);
+            if(member.nVerts == 0){
+                return;
+            }
+            DoubleBuffer src = member.packedBuffer;
+            PackedVertexData.Types[] types = member.packedData.getVertexDataTypes();
+            int valuesPerVert = member.packedData.getTotalValuesPerVert();
+            Color fallback = renderable.getPayload().fallbackColor.get();
+
+            for (int vert = 0; vert < member.nVerts; vert++) {
+                int dstIdx = (member.firstVert + vert) * STRIDE_BYTES;
+                int srcIdx = vert * valuesPerVert;
+                boolean hasColor = false;
+                for (PackedVertexData.Types type : types) {
+                    switch (type){
+                        case VERTEX:
+                            dst.putFloat(dstIdx, (float) (src.get(srcIdx) - referenceCenter.x));
+                            dst.putFloat(dstIdx + 4, (float) (src.get(srcIdx + 1) - referenceCenter.y));
+                            dst.putFloat(dstIdx + 8, (float) (type.nValues > 2 ? src.get(srcIdx + 2) - referenceCenter.z : -referenceCenter.z));
+                            break;
+                        case RGB:
+                        case RGBA:
+                            hasColor = true;
+                            for (int n = 0; n < 4; n++) {
+                                double value = n < type.nValues ? src.get(srcIdx + n) : 1.0;
+                                dst.put(dstIdx + COLOR_OFFSET_BYTES + n, (byte) Math.round(Math.max(0, Math.min(1, value)) * 255));
+                            }
+                            break;
+                        default:
+                            //normals are not used in batches
+                            break;
+                    }
+                    srcIdx += type.nValues;
+                }
+                if(!hasColor){
+                    //bake the entity color into the vertex
+                    dst.put(dstIdx + COLOR_OFFSET_BYTES, (byte) fallback.getRed());
+                    dst.put(dstIdx + COLOR_OFFSET_BYTES + 1, (byte) fallback.getGreen());
+                    dst.put(dstIdx + COLOR_OFFSET_BYTES + 2, (byte) fallback.getBlue());
+                    dst.put(dstIdx + COLOR_OFFSET_BYTES + 3, (byte) fallback.getAlpha());
+                }
+            }
+        }
+
+        private boolean drawForPicking(DrawContext dc, BatchEntry member, GLVertexBuffer idBuffer){
+            GL2 gl = dc.getGL().getGL2();
+            if(!vertexBuffer.bind(gl)){
+                return false;
+            }
+            dc.getView().pushReferenceCenter(dc, referenceCenter);
+            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+            //start the vertex array at the member, so vertex i of the draw is vertex i of the member
+            gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE_BYTES, (long) member.firstVert * STRIDE_BYTES);
+            if(idBuffer != null && idBuffer.bind(gl)){
+                gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+                gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, 0, 0);
+            }
+            gl.glDrawArrays(key.mode.mode, 0, member.nVerts);
+            if(idBuffer != null){
+                gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+            }
+            gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+            dc.getView().popReferenceCenter(dc);
+            return true;
+        }
+
+        private void draw(DrawContext dc, Predicate<GLVboRenderable> visible){
+            //work out which members to draw this frame
+            int drawCount = 0;
+            for (BatchEntry member : members) {
+                if(member.nVerts > 0 && visible.test(member.renderable)){
+                    firsts[drawCount] = member.firstVert;
+                    counts[drawCount] = member.nVerts;
+                    drawCount++;
+                }
+            }
+            if(drawCount == 0){
+                return;
+            }
+
+            GL2 gl = dc.getGL().getGL2();
+            //nothing bound would make the pointers below read client memory
+            if(!vertexBuffer.bind(gl)){
+                return;
+            }
+            if(key.drawOnTop){
+                gl.glClear(GL2.GL_DEPTH_BUFFER_BIT);
+            }
+            gl.glPushAttrib(GL2.GL_CURRENT_BIT | GL2.GL_COLOR_BUFFER_BIT | GL2.GL_LINE_BIT | GL2.GL_POINT_BIT);
+            try{
+                gl.glEnable(GL.GL_BLEND);
+                OGLUtil.applyBlending(gl, false);
+                if(key.mode == RenderingModes.POINTS){
+                    gl.glPointSize(key.size);
+                    if(key.smoothPoints){
+                        gl.glEnable(GL2.GL_POINT_SMOOTH);
+                    }
+                }else{
+                    gl.glLineWidth(key.size);
+                }
+
+                dc.getView().pushReferenceCenter(dc, referenceCenter);
+                gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+                gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+                gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE_BYTES, 0);
+                gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, STRIDE_BYTES, COLOR_OFFSET_BYTES);
+
+                gl.glMultiDrawArrays(key.mode.mode, firsts, 0, counts, 0, drawCount);
+
+                gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+                gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+                dc.getView().popReferenceCenter(dc);
+                gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+            }finally {
+                gl.glPopAttrib();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import gov.nasa.worldwind.render.DrawContext;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of every {@link GLVertexBuffer} resident on the GPU.
+ * It counts the bytes resident per owner (i.e per layer), re-uses the names of freed buffers,
+ * and keeps the total under a memory budget by evicting the least recently drawn buffers
+ * (i.e the buffers of hidden or off-screen entities). Evicted buffers are re-created
+ * by their owners the next time they are drawn.
+ * Apart from the statistics, everything here must be called on the OpenGL thread.
+ * @author Luke Bermingham
+ */
+public final class GLBufferManager {
+
+    private static final GLBufferManager instance = new GLBufferManager();
+
+    public static GLBufferManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * The owner of buffers that were never assigned an owner.
+     */
+    public static final String UNASSIGNED_OWNER = "unassigned";
+
+    /**
+     * At most this many freed buffer names are kept for re-use.
+     */
+    private static final int MAX_FREE_NAMES = 256;
+
+    private final ArrayDeque<Integer> freeNames = new ArrayDeque<>();
+
+    /**
+     * All resident buffers, in the order they were last drawn (least recent first).
+     */
+    private final LinkedHashMap<GLVertexBuffer, Boolean> lru = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final Map<String, LongAdder> bytesPerOwner = new ConcurrentHashMap<>();
+    private final AtomicLong residentBytes = new AtomicLong(0);
+    private final AtomicLong nEvictions = new AtomicLong(0);
+    private final AtomicLong evictedBytes = new AtomicLong(0);
+    private final AtomicLong nReusedNames = new AtomicLong(0);
+    private volatile long budgetBytes = 1024L * 1024L * 1024L;
+    private long frameNumber = 0;
+
+    private GLBufferManager(){}
+
+    /**
+     * @param gl the gl context
+     * @return a buffer name, re-used if possible, or null if vbos are not supported.
+     */
+    Integer acquireName(GL2 gl){
+        Integer name = freeNames.poll();
+        if(name != null){
+            nReusedNames.incrementAndGet();
+            return name;
+        }
+        return GraphicsUtil.genBuffer(gl);
+    }
+
+    /**
+     * A buffer's storage was (re)allocated.
+     * @param buffer the buffer
+     * @param oldCapacityBytes its previous capacity (0 if it had no storage).
+     * @param newCapacityBytes its new capacity.
+     */
+    void onAllocated(GLVertexBuffer buffer, long oldCapacityBytes, long newCapacityBytes){
+        long delta = newCapacityBytes - oldCapacityBytes;
+        residentBytes.addAndGet(delta);
+        ownerBytes(buffer.getOwner()).add(delta);
+        lru.put(buffer, Boolean.TRUE);
+        buffer.lastDrawnFrame = frameNumber;
+    }
+
+    /**
+     * A buffer is being drawn this frame.
+     * @param buffer the buffer
+     */
+    void onDrawn(GLVertexBuffer buffer){
+        lru.get(buffer);
+        buffer.lastDrawnFrame = frameNumber;
+    }
+
+    /**
+     * A buffer is changing owner, so move its bytes across.
+     */
+    void onOwnerChanged(GLVertexBuffer buffer, String oldOwner, String newOwner){
+        long capacity = buffer.getCapacityBytes();
+        if(capacity > 0){
+            ownerBytes(oldOwner).add(-capacity);
+            ownerBytes(newOwner).add(capacity);
+        }
+    }
+
+    /**
+     * A buffer no longer needs its name or storage.
+     * The storage is freed and the name is kept for re-use.
+     * @param gl the gl context
+     * @param buffer the buffer
+     * @param name its buffer name
+     * @param capacityBytes the bytes of storage it had.
+     */
+    void release(GL2 gl, GLVertexBuffer buffer, int name, long capacityBytes){
+        if(lru.remove(buffer) != null){
+            residentBytes.addAndGet(-capacityBytes);
+            ownerBytes(buffer.getOwner()).add(-capacityBytes);
+        }
+        if(freeNames.size() < MAX_FREE_NAMES){
+            //free the storage but keep the name
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, name);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, 0, null, GL.GL_DYNAMIC_DRAW);
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+            freeNames.push(name);
+        }else{
+            GraphicsUtil.deleteBuffer(gl, name);
+        }
+    }
+
+    /**
+     * Evict the least recently drawn buffers until the resident bytes are under budget.
+     * Buffers drawn in the previous frame are never evicted (they are on screen).
+     * Call this once at the start of each frame.
+     * @param dc the draw context
+     */
+    public void enforceBudget(DrawContext dc){
+        if(residentBytes.get() > budgetBytes){
+            Iterator<GLVertexBuffer> iter = lru.keySet().iterator();
+            List<GLVertexBuffer> toEvict = new ArrayList<>();
+            long bytesAfter = residentBytes.get();
+            while(bytesAfter > budgetBytes && iter.hasNext()){
+                GLVertexBuffer buffer = iter.next();
+                //everything after this was drawn at least as recently
+                if(buffer.lastDrawnFrame >= frameNumber){
+                    break;
+                }
+                toEvict.add(buffer);
+                bytesAfter -= buffer.getCapacityBytes();
+            }
+            for (GLVertexBuffer buffer : toEvict) {
+                evictedBytes.addAndGet(buffer.getCapacityBytes());
+                nEvictions.incrementAndGet();
+                buffer.delete(dc);
+            }
+        }
+        frameNumber++;
+    }
+
+    private LongAdder ownerBytes(String owner){
+        return bytesPerOwner.computeIfAbsent(owner, k -> new LongAdder());
+    }
+
+    ////////////////////////
+    //Statistics
+    ////////////////////////
+
+    public long getResidentBytes(){
+        return residentBytes.get();
+    }
+
+    /**
+     * @param owner the owner, i.e a layer name
+     * @return the bytes resident on the GPU for that owner's buffers.
+     */
+    public long getResidentBytes(String owner){
+        LongAdder bytes = bytesPerOwner.get(owner);
+        return bytes == null ? 0 : bytes.sum();
+    }
+
+    /**
+     * @return the bytes resident on the GPU for each owner (owners with no bytes are left out).
+     */
+    public Map<String, Long> getResidentBytesPerOwner(){
+        Map<String, Long> res = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : bytesPerOwner.entrySet()) {
+            long bytes = entry.getValue().sum();
+            if(bytes > 0){
+                res.put(entry.getKey(), bytes);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the number of buffers evicted to stay under budget.
+     */
+    public long getNEvictions(){
+        return nEvictions.get();
+    }
+
+    public long getEvictedBytes(){
+        return evictedBytes.get();
+    }
+
+    public long getNReusedNames(){
+        return nReusedNames.get();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @param budgetBytes the most bytes of vertex buffers to keep on the GPU (it can be exceeded by what is on screen).
+     */
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "GLBufferManager{" +
+                "resident=" + (getResidentBytes() / 1024) + "KB" +
+                ", budget=" + (budgetBytes / 1024) + "KB" +
+                ", evictions=" + nEvictions.get() +
+                ", evicted=" + (evictedBytes.get() / 1024) + "KB" +
+                ", reusedNames=" + nReusedNames.get() +
+                ", perOwner=" + getResidentBytesPerOwner() +
+                '}';
+    }
+}
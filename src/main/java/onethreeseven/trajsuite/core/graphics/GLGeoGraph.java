@@ -16,24 +16,35 @@ import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
 
 import java.awt.*;
 import java.beans.PropertyChangeListener;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * The graphical representation of the graphhopper graph.
+ * The edges in view are loaded on a worker as the view moves, nearest the centre of the view first,
+ * and what has loaded so far is drawn while the rest loads. Loading for a view that has since moved is dropped.
  * @author Luke Bermingham
  */
 
 public class GLGeoGraph extends GLVboRenderable {
 
+    private static final Logger logger = Logger.getLogger(GLGeoGraph.class.getSimpleName());
 
-    private final AtomicReference<PackedVertexData> payload = new AtomicReference<>(null);
+    //edges loaded by the worker that have not been handed over for drawing yet
+    private final AtomicReference<DoubleBuffer> loadedEdges = new AtomicReference<>(null);
+    //the edges being drawn
+    private volatile DoubleBuffer drawnEdges = null;
+    //bumped whenever the view moves, loading for an older generation is stale and stops
+    private final AtomicLong viewGeneration = new AtomicLong(0);
     private boolean listeningForChanges = false;
     private PropertyChangeListener viewChangeListener = null;
 
@@ -44,10 +55,10 @@ public class GLGeoGraph extends GLVboRenderable {
     private ObjectProperty<LatLonBounds> viewBounds = new SimpleObjectProperty<>(
             new LatLonBounds(-85, 85, -175, 175));
 
-    private boolean firstDraw = true;
-    private CompletableFuture jobStatus = null;
-    private AtomicBoolean isDirty = new AtomicBoolean(true);
     private double movementThreshold = 1000;
+    //the eye altitude picks how much of the graph is drawn (coarser when higher)
+    private volatile double eyeAltitude = 0;
+    private volatile int loadedLevel = 0;
 
     public GLGeoGraph(GeographicGraph model, GraphicsPayload graphicsPayload, LayerList ll) {
         super(model, graphicsPayload, ll);
@@ -65,31 +76,22 @@ public class GLGeoGraph extends GLVboRenderable {
 
     }
 
-//    @Override
-//    protected PackedVertexData createVertexData() {
-//        PackedVertexData cached = payload.get();
-//        if (cached != null) {
-//            payload.set(null);
-//            return cached;
-//        } else {
-//            return createVertexDataImpl();
-//        }
-//    }
-
-    private PackedVertexData createVertexDataImpl() {
-        if (!firstDraw) {
-            GeographicGraph graph = getGraph();
-
-            DoubleBuffer buf = graph.getEdges(viewBounds.get());
-
-            return new PackedVertexData(buf,
-                    new PackedVertexData.Types[]{PackedVertexData.Types.VERTEX});
-        }else{
+    @Override
+    protected PackedVertexData createVertexData() {
+        DoubleBuffer loaded = loadedEdges.getAndSet(null);
+        if (loaded != null) {
+            drawnEdges = loaded;
+        }
+        DoubleBuffer edges = drawnEdges;
+        if (edges == null) {
+            //nothing loaded yet
             double[] pts = new double[]{0, 0, 0, 1, 1, 1};
-            firstDraw = false;
             return new PackedVertexData(pts,
                     new PackedVertexData.Types[]{PackedVertexData.Types.VERTEX});
         }
+        //a view of the edges, so they can be packed again (i.e when the colour changes)
+        return new PackedVertexData(edges.duplicate(),
+                new PackedVertexData.Types[]{PackedVertexData.Types.VERTEX});
     }
 
     private GeographicGraph getGraph() {
@@ -97,40 +99,59 @@ public class GLGeoGraph extends GLVboRenderable {
     }
 
     private void updateVertsViaWorker() {
-        if (jobStatus == null || jobStatus.isDone() || jobStatus.isCancelled()) {
-            jobStatus = CompletableFuture.runAsync(()->{
-
-                ////////////////    |
-                //THE WORK          |
-                ///////////////     V
-
-                //Start requesting graph edges
-                payload.set(createVertexDataImpl());
-
-                //now handle success and failure cases below
-
-            }, exec).handle((aVoid, throwable) -> {
-                //success
-                if(throwable == null){
-                    //Finished requesting graph edges
-                    //if view has changed since we were working, update
-                    if (isDirty.get()) {
-                        updateVertsViaWorker();
-                    }
-                }
-                //failure
-                else{
-                    throwable.printStackTrace();
-                }
-                return null;
-            });
-            isDirty.set(false);
+        loadedLevel = getGraph().getLevelOfDetail(eyeAltitude);
+        //anything still loading is for an old view now
+        final long generation = viewGeneration.incrementAndGet();
+        exec.execute(() -> {
+            //skip jobs queued behind newer ones
+            if (viewGeneration.get() != generation) {
+                return;
+            }
+            try {
+                loadEdges(generation);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Could not load the graph edges in view.", e);
+            }
+        });
+    }
 
-        } else {
-            //job is still executing
-            isDirty.set(true);
+    /**
+     * Load the edges in view a batch at a time, handing over what has loaded so far after each batch.
+     * @param generation the view generation this is loading for
+     */
+    private void loadEdges(final long generation) {
+        GeographicGraph graph = getGraph();
+        double altitude = eyeAltitude;
+        BooleanSupplier stale = () -> viewGeneration.get() != generation;
+
+        DoubleBuffer[] loaded = new DoubleBuffer[1];
+        boolean complete = graph.streamEdges(viewBounds.get(), altitude, batch -> {
+            loaded[0] = append(loaded[0], batch);
+            if (!stale.getAsBoolean()) {
+                loadedEdges.set(loaded[0]);
+            }
+        }, stale);
+
+        if (complete && loaded[0] == null) {
+            //nothing in view, one degenerate edge so there is still something to upload
+            DoubleBuffer empty = DoubleBuffer.wrap(new double[]{0, 0, 0, 0, 0, 0});
+            empty.position(empty.limit());
+            loadedEdges.set(empty);
         }
+    }
 
+    /**
+     * @return a buffer of both buffers' values (up to their positions), filled.
+     */
+    private static DoubleBuffer append(DoubleBuffer loaded, DoubleBuffer batch) {
+        if (loaded == null) {
+            return batch;
+        }
+        DoubleBuffer joined = ByteBuffer.allocateDirect((loaded.position() + batch.position()) * Double.BYTES)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        joined.put(loaded.duplicate().flip());
+        joined.put(batch.duplicate().flip());
+        return joined;
     }
 
     @Override
@@ -140,7 +161,8 @@ public class GLGeoGraph extends GLVboRenderable {
         if (!listeningForChanges) {
             //init view change listener
             this.viewChangeListener = evt -> {
-                movementThreshold = dc.getView().getEyePosition().getAltitude() / 100.0;
+                eyeAltitude = dc.getView().getEyePosition().getAltitude();
+                movementThreshold = eyeAltitude / 100.0;
                 LatLonBounds visibleSector = WWExtrasUtil.getVisibleSector(dc.getView());
                 if (hasSectorMovedEnough(visibleSector, viewBounds.get())) {
                     viewBounds.setValue(visibleSector);
@@ -149,8 +171,12 @@ public class GLGeoGraph extends GLVboRenderable {
             dc.getView().addPropertyChangeListener(AVKey.VIEW, viewChangeListener);
             listeningForChanges = true;
         }
-        //if there is a payload, refresh the vbo
-        if (payload.get() != null) {
+        //zoomed across a level of detail without moving much, or a better level finished building, redraw at that level
+        if (getGraph().getLevelOfDetail(eyeAltitude) != loadedLevel) {
+            updateVertsViaWorker();
+        }
+        //if more edges have loaded, refresh the vbo
+        if (loadedEdges.get() != null) {
             getPayload().isDirty.set(true);
         }
     }
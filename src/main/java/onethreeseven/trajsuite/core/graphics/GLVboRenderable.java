@@ -1,5 +1,7 @@
 package onethreeseven.trajsuite.core.graphics;
 
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Vec4;
 import gov.nasa.worldwind.layers.LayerList;
 import gov.nasa.worldwind.render.DrawContext;
 import onethreeseven.trajsuite.core.util.WWExtrasUtil;
@@ -9,6 +11,9 @@ import onethreeseven.trajsuitePlugin.graphics.RenderingModes;
 import onethreeseven.trajsuitePlugin.model.BoundingCoordinates;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
 
 /**
  * The base class that things extend if they want to render with a VBO.
@@ -18,16 +23,108 @@ import javax.media.opengl.GL2;
 public class GLVboRenderable extends GLBaseRenderable {
 
     /**
-     * The id of the vertex buffer used to render
+     * The vertex buffer used to render, it is re-used (and grown) as the vertex data changes.
      */
-    protected Integer vboId = null;
+    protected final GLVertexBuffer vertexBuffer = new GLVertexBuffer();
 
     protected PackedVertexData packedVertexData;
 
+    /**
+     * The flushed buffer of the packed vertex data (it can only be flushed once).
+     */
+    protected DoubleBuffer packedVertexBuffer;
+
+    /**
+     * The compact layout of the packed vertex data, null if the double layout was uploaded.
+     */
+    protected CompactVertexData compactVertexData;
+
+    /**
+     * Simplified versions of the vertex data, drawn instead when this entity is small on screen.
+     */
+    protected final LevelOfDetail levelOfDetail = new LevelOfDetail();
+
+    /**
+     * The range of vertices that changed since the last upload, if there is no range then all vertices changed.
+     */
+    private boolean hasDirtyRange = false;
+    private int dirtyFromVert = 0;
+    private int dirtyToVert = 0;
+
+    /**
+     * The range of vertices that has been re-packed but not uploaded yet.
+     */
+    private boolean uploadPending = false;
+    private boolean uploadAll = false;
+    private int uploadFromVert = 0;
+    private int uploadToVert = 0;
+
+    /**
+     * Each time vertex data is requested the version goes up, so older vertex data
+     * finishing after newer vertex data is dropped.
+     */
+    private long requestedVersion = 0;
+    private long appliedVersion = 0;
+    private boolean preparing = false;
+
+    /**
+     * The time of each vertex (sorted), so only the vertices in the {@link TimeWindow} are drawn during playback.
+     */
+    private volatile long[] vertexTimes = null;
+
     public GLVboRenderable(BoundingCoordinates model, GraphicsPayload payload, LayerList layerList){
         super(model, payload, layerList);
     }
 
+    /**
+     * @param owner who the gpu memory of this renderable is accounted to, i.e the name of its layer.
+     * @see GLBufferManager
+     */
+    public void setBufferOwner(String owner){
+        vertexBuffer.setOwner(owner);
+        levelOfDetail.setOwner(owner);
+    }
+
+    /**
+     * Tell this renderable some vertices were appended to its model (i.e a live feed added a fix).
+     * When it next draws only the appended vertices are re-packed and uploaded.
+     * @param fromVert the index of the first appended vertex.
+     */
+    public void markAppended(int fromVert){
+        markDirtyRange(fromVert, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Tell this renderable a range of vertices in its model changed.
+     * When it next draws only that range is re-packed and uploaded.
+     * @param fromVert the first vertex that changed (inclusive).
+     * @param toVert the last vertex that changed (exclusive).
+     */
+    public void markDirtyRange(int fromVert, int toVert){
+        synchronized (this){
+            if(hasDirtyRange){
+                dirtyFromVert = Math.min(dirtyFromVert, fromVert);
+                dirtyToVert = Math.max(dirtyToVert, toVert);
+            }else{
+                dirtyFromVert = fromVert;
+                dirtyToVert = toVert;
+                hasDirtyRange = true;
+            }
+        }
+        //the model may have grown
+        invalidateBoundingBox();
+        payload.isDirty.set(true);
+    }
+
+    /**
+     * @return the dirty range {from, to}, or null if all vertices are dirty. Resets the range.
+     */
+    private synchronized int[] takeDirtyRange(){
+        int[] range = hasDirtyRange ? new int[]{dirtyFromVert, dirtyToVert} : null;
+        hasDirtyRange = false;
+        return range;
+    }
+
     @Override
     public void render(DrawContext dc) {
         if (!dc.isPickingMode() && payload.drawOnTop.get()) {
@@ -38,6 +135,130 @@ public class GLVboRenderable extends GLBaseRenderable {
         super.render(dc);
     }
 
+    /**
+     * Make the vertex data from the model, this may be called on a worker thread.
+     * @return the packed vertex data (not yet flushed).
+     */
+    protected PackedVertexData createVertexData(){
+        return payload.createVertexData(model);
+    }
+
+    /**
+     * Re-pack the vertex data from the payload if it is dirty, without uploading it.
+     * The range of vertices that changed is remembered so the next upload only sends that range.
+     * @return True if the vertex data was re-packed.
+     */
+    protected boolean refreshVertexData(){
+        if(!payload.isDirty.get() && packedVertexData != null){
+            return false;
+        }
+        int[] dirtyRange = takeDirtyRange();
+        PackedVertexData updated = createVertexData();
+        acceptVertexData(++requestedVersion, updated, updated.flushBuffer(), dirtyRange);
+        payload.isDirty.set(false);
+        return true;
+    }
+
+    /**
+     * If the payload is dirty, re-pack the vertex data on a worker thread.
+     * Until it is ready the previous vertex data keeps being drawn.
+     * @see VertexPreparationExecutor
+     */
+    protected void requestVertexData(){
+        if(preparing || (!payload.isDirty.get() && packedVertexData != null)){
+            return;
+        }
+        int[] dirtyRange = takeDirtyRange();
+        preparing = true;
+        //changes made from now on will need another request
+        payload.isDirty.set(false);
+        VertexPreparationExecutor.getInstance().submit(this, ++requestedVersion, dirtyRange, this::createVertexData);
+    }
+
+    /**
+     * Called on the OpenGL thread when vertex data requested by {@link #requestVertexData()} is ready.
+     * @param version the version of the request
+     * @param updated the vertex data, null if it could not be made.
+     * @param updatedBuffer the flushed buffer of the vertex data.
+     * @param dirtyRange the range of vertices that changed, or null if they all changed.
+     */
+    void onVertexDataPrepared(long version, PackedVertexData updated, DoubleBuffer updatedBuffer, int[] dirtyRange){
+        preparing = false;
+        if(updated == null){
+            return;
+        }
+        //newer vertex data has already been applied, it may not cover this data's dirty range so upload it all
+        if(version <= appliedVersion){
+            uploadAll = true;
+            uploadPending = true;
+            return;
+        }
+        acceptVertexData(version, updated, updatedBuffer, dirtyRange);
+    }
+
+    /**
+     * Use the given vertex data from now on, the range of vertices to upload is accumulated.
+     */
+    private void acceptVertexData(long version, PackedVertexData updated, DoubleBuffer updatedBuffer, int[] dirtyRange){
+        int prevNVerts = packedVertexData == null ? 0 : packedVertexData.getNVerts();
+        int nVerts = updated.getNVerts();
+
+        boolean sameTypes = packedVertexData != null &&
+                Arrays.equals(packedVertexData.getVertexDataTypes(), updated.getVertexDataTypes());
+
+        if(dirtyRange != null && sameTypes && !uploadAll){
+            int fromVert = Math.min(dirtyRange[0], prevNVerts);
+            //if vertices were appended the new ones must be uploaded too
+            int toVert = nVerts > prevNVerts ? nVerts : Math.min(dirtyRange[1], nVerts);
+            uploadFromVert = uploadPending ? Math.min(uploadFromVert, fromVert) : fromVert;
+            uploadToVert = uploadPending ? Math.max(uploadToVert, toVert) : toVert;
+        }else{
+            uploadAll = true;
+        }
+        uploadPending = true;
+
+        appliedVersion = version;
+        packedVertexData = updated;
+        packedVertexBuffer = updatedBuffer;
+        //the simplified levels are for the old data
+        levelOfDetail.invalidate();
+    }
+
+    /**
+     * Upload the packed vertex data into the vertex buffer.
+     * If only a range of vertices changed then only that range is re-packed and uploaded.
+     * @param gl the gl context
+     */
+    protected void uploadVertexData(GL2 gl){
+        PackedVertexData.Types[] types = packedVertexData.getVertexDataTypes();
+        int nVerts = packedVertexData.getNVerts();
+
+        boolean useCompact = GraphicsSettings.useCompactVertexFormat();
+        boolean sameLayout = useCompact ?
+                compactVertexData != null && compactVertexData.isCompatible(types) :
+                compactVertexData == null;
+        boolean incremental = !uploadAll && sameLayout && vertexBuffer.isCreated();
+
+        int fromVert = incremental ? uploadFromVert : 0;
+        int toVert = incremental ? Math.min(uploadToVert, nVerts) : nVerts;
+
+        if(useCompact){
+            compactVertexData = incremental ?
+                    compactVertexData.update(packedVertexBuffer, fromVert, toVert) :
+                    CompactVertexData.pack(packedVertexBuffer, types, getBoundingBox().getCenter());
+            ByteBuffer buf = compactVertexData.getBuffer();
+            int stride = compactVertexData.getStrideBytes();
+            vertexBuffer.upload(gl, buf, buf.limit(), (long) fromVert * stride, (long) toVert * stride);
+        }else{
+            compactVertexData = null;
+            long stride = (long) packedVertexData.getTotalValuesPerVert() * Buffers.SIZEOF_DOUBLE;
+            vertexBuffer.upload(gl, packedVertexBuffer, (long) packedVertexBuffer.limit() * Buffers.SIZEOF_DOUBLE,
+                    fromVert * stride, toVert * stride);
+        }
+        uploadPending = false;
+        uploadAll = false;
+    }
+
     @Override
     /**
      * Draw the given entity using a tightly packed vertex array, no colors, no normals, no tex coords
@@ -47,31 +268,232 @@ public class GLVboRenderable extends GLBaseRenderable {
 
         //don't draw in picking mode (this entity is not pickable)
         if (!dc.isPickingMode()) {
-            GL2 gl = dc.getGL().getGL2();
-            if ((payload.isDirty.get() || vboId == null)) {
-                packedVertexData = payload.createVertexData(model);
-                vboId = GraphicsUtil.createBuffer(gl, packedVertexData.flushBuffer());
-                payload.isDirty.set(false);
+            if (!prepareVertexBuffer(dc)) {
+                return;
+            }
+
+            //during playback only draw the range of vertices inside the time window
+            int nVerts = packedVertexData.getNVerts();
+            long[] times = vertexTimes;
+            if (TimeWindow.isActive() && times != null && times.length == nVerts) {
+                int first = TimeWindow.lowerBound(times, TimeWindow.getStart());
+                int count = TimeWindow.upperBound(times, TimeWindow.getEnd()) - first;
+                if (count > 0) {
+                    drawVertexBuffer(dc, vertexBuffer, compactVertexData, first, count);
+                }
+                return;
+            }
+
+            LevelOfDetail.DetailLevel level = selectLevelOfDetail(dc);
+            if (level != null) {
+                drawVertexBuffer(dc, level.getVertexBuffer(), level.getVertexData(), 0, level.getNVerts());
+            } else {
+                drawVertexBuffer(dc, vertexBuffer, compactVertexData, 0, nVerts);
+            }
+        }
+    }
+
+    /**
+     * @param vertexTimes the time (epoch milliseconds) of each vertex, sorted from earliest to latest,
+     *                    or null if the vertices have no times. When there are not the same number of times
+     *                    as vertices the whole entity is drawn during playback.
+     * @see TimeWindow
+     */
+    public void setVertexTimes(long[] vertexTimes){
+        if (vertexTimes != null && vertexTimes.length > 0) {
+            TimeWindow.include(vertexTimes[0], vertexTimes[vertexTimes.length - 1]);
+        }
+        this.vertexTimes = vertexTimes;
+    }
+
+    /**
+     * Pick up (or request) the latest vertex data and make sure it is uploaded.
+     * @param dc the draw context
+     * @return True if there is vertex data in the vertex buffer to draw.
+     */
+    boolean prepareVertexBuffer(DrawContext dc){
+        if (GraphicsSettings.prepareVertexDataInBackground()) {
+            VertexPreparationExecutor.getInstance().drainCompleted();
+        }
+        prepareVertexData();
+        if (packedVertexData != null && (uploadPending || !vertexBuffer.isCreated())) {
+            uploadVertexData(dc.getGL().getGL2());
+        }
+        return packedVertexData != null;
+    }
+
+    /**
+     * Request (or, when vertex data is not prepared in the background, re-pack) the latest vertex data
+     * without uploading it, i.e for a {@link GLBatchRenderer} that uploads it into its own buffer.
+     * @return True if there is vertex data (it may be older than the model while newer data is prepared).
+     */
+    boolean prepareVertexData(){
+        if (GraphicsSettings.prepareVertexDataInBackground()) {
+            requestVertexData();
+        } else {
+            refreshVertexData();
+        }
+        return packedVertexData != null;
+    }
+
+    /**
+     * Draw only the positions of the vertex data as points, i.e to accumulate the density of a {@link HeatmapRenderer}.
+     * Colors in the vertex data are ignored, the caller sets the color and the rest of the state.
+     * @param dc the draw context
+     * @return The number of points drawn.
+     */
+    int drawPoints(DrawContext dc){
+        if (!prepareVertexBuffer(dc)) {
+            return 0;
+        }
+        GL2 gl = dc.getGL().getGL2();
+        PackedVertexData.Types[] types = compactVertexData != null ?
+                compactVertexData.getVertexDataTypes() : packedVertexData.getVertexDataTypes();
+        int positionIdx = -1;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == PackedVertexData.Types.VERTEX) {
+                positionIdx = i;
+                break;
             }
+        }
+        if (positionIdx == -1 || !vertexBuffer.bind(gl)) {
+            return 0;
+        }
+        int nValues = types[positionIdx].nValues;
+        gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+        if (compactVertexData != null) {
+            dc.getView().pushReferenceCenter(dc, compactVertexData.getReferenceCenter());
+            gl.glVertexPointer(nValues, GL.GL_FLOAT, compactVertexData.getStrideBytes(),
+                    compactVertexData.getByteOffset(positionIdx));
+        } else {
+            int offset = 0;
+            for (int i = 0; i < positionIdx; i++) {
+                offset += types[i].nValues * Buffers.SIZEOF_DOUBLE;
+            }
+            gl.glVertexPointer(nValues, GL2.GL_DOUBLE,
+                    packedVertexData.getTotalValuesPerVert() * Buffers.SIZEOF_DOUBLE, offset);
+        }
+        int nVerts = packedVertexData.getNVerts();
+        gl.glDrawArrays(GL.GL_POINTS, 0, nVerts);
+        gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        if (compactVertexData != null) {
+            dc.getView().popReferenceCenter(dc);
+        }
+        return nVerts;
+    }
 
-            //assume VBO is created now - start drawing
-            if (vboId != null && packedVertexData != null) {
-                //actual drawing
-                gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboId);
-                //setup vertex attributes, i.e vertex arrays, color arrays, vertex pointers
-                GraphicsUtil.setupVertexAttributes(dc, packedVertexData);
-                //set the entity color, this will be ignored if color buffer is being used
-                gl.glColor4dv(colorNorm, 0);
-                int drawingType = payload.renderingMode.get().mode;
-                //draw the trajectory
-                gl.glDrawArrays(drawingType, 0, packedVertexData.getNVerts());
-                //finish drawing, reset state
-                //UNBIND but not delete
-                gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
-                //turn off vertex attributes we set up
-                GraphicsUtil.disableVertexAttributes(dc, packedVertexData);
+    /**
+     * @param dc the draw context
+     * @return The simplified level to draw this frame, or null to draw at full resolution.
+     */
+    private LevelOfDetail.DetailLevel selectLevelOfDetail(DrawContext dc){
+        RenderingModes mode = payload.renderingMode.get();
+        boolean isStrip = mode.equals(RenderingModes.LINE_STRIP) || mode.equals(RenderingModes.LINE_LOOP);
+        if (!GraphicsSettings.useLevelOfDetail() || !isStrip ||
+                packedVertexData.getNVerts() < GraphicsSettings.getLevelOfDetailMinVerts()) {
+            return null;
+        }
+        if (levelOfDetail.needsBuild()) {
+            levelOfDetail.build(packedVertexBuffer, packedVertexData.getVertexDataTypes(), getBoundingBox());
+        }
+        return levelOfDetail.select(dc, getBoundingBox());
+    }
+
+    /**
+     * Draw some vertex data that has been uploaded.
+     * @param dc the draw context
+     * @param buffer the vertex buffer holding the data
+     * @param compact the compact layout of the data, or null if the buffer holds the double layout of the packed vertex data.
+     * @param first the first vertex to draw
+     * @param nVerts the number of vertices to draw
+     */
+    private void drawVertexBuffer(DrawContext dc, GLVertexBuffer buffer, CompactVertexData compact, int first, int nVerts){
+        GL2 gl = dc.getGL().getGL2();
+        //assume VBO is created now - start drawing
+        if (!buffer.bind(gl)) {
+            return;
+        }
+        //setup vertex attributes, i.e vertex arrays, color arrays, vertex pointers
+        if (compact != null) {
+            //compact positions are relative to the reference center
+            dc.getView().pushReferenceCenter(dc, compact.getReferenceCenter());
+            GraphicsUtil.setupVertexAttributes(dc, compact);
+        } else {
+            GraphicsUtil.setupVertexAttributes(dc, packedVertexData);
+        }
+        //set the entity color, this will be ignored if color buffer is being used
+        gl.glColor4dv(colorNorm, 0);
+        int drawingType = payload.renderingMode.get().mode;
+        //draw the trajectory
+        gl.glDrawArrays(drawingType, first, nVerts);
+        //finish drawing, reset state
+        //UNBIND but not delete
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        //turn off vertex attributes we set up
+        if (compact != null) {
+            GraphicsUtil.disableVertexAttributes(dc, compact);
+            dc.getView().popReferenceCenter(dc);
+        } else {
+            GraphicsUtil.disableVertexAttributes(dc, packedVertexData);
+        }
+    }
+
+
+    /**
+     * Draw the full resolution positions of this renderable for a picking pass.
+     * @param dc the draw context, in picking mode (so the vertex colors are not used).
+     * @param idBuffer per-vertex pick colors (4 unsigned bytes per vertex), or null to use the current color.
+     * @return the number of vertices drawn.
+     * @see VertexPicker
+     */
+    int drawForPicking(DrawContext dc, GLVertexBuffer idBuffer){
+        GL2 gl = dc.getGL().getGL2();
+        if (packedVertexData == null || uploadPending || !vertexBuffer.bind(gl)) {
+            return 0;
+        }
+        if (compactVertexData != null) {
+            dc.getView().pushReferenceCenter(dc, compactVertexData.getReferenceCenter());
+            GraphicsUtil.setupVertexAttributes(dc, compactVertexData);
+        } else {
+            GraphicsUtil.setupVertexAttributes(dc, packedVertexData);
+        }
+        if (idBuffer != null && idBuffer.bind(gl)) {
+            gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+            gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, 0, 0);
+        }
+        int nVerts = packedVertexData.getNVerts();
+        gl.glDrawArrays(payload.renderingMode.get().mode, 0, nVerts);
+        if (idBuffer != null) {
+            gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+        }
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        if (compactVertexData != null) {
+            GraphicsUtil.disableVertexAttributes(dc, compactVertexData);
+            dc.getView().popReferenceCenter(dc);
+        } else {
+            GraphicsUtil.disableVertexAttributes(dc, packedVertexData);
+        }
+        return nVerts;
+    }
+
+    /**
+     * @param vertIdx the index of a vertex in the packed vertex data.
+     * @return the position of that vertex (in world coordinates), or null if there is no such vertex.
+     */
+    Vec4 getVertexPoint(int vertIdx){
+        if (packedVertexData == null || vertIdx < 0 || vertIdx >= packedVertexData.getNVerts()) {
+            return null;
+        }
+        int idx = vertIdx * packedVertexData.getTotalValuesPerVert();
+        for (PackedVertexData.Types type : packedVertexData.getVertexDataTypes()) {
+            if (type == PackedVertexData.Types.VERTEX) {
+                return new Vec4(packedVertexBuffer.get(idx), packedVertexBuffer.get(idx + 1),
+                        type.nValues > 2 ? packedVertexBuffer.get(idx + 2) : 0);
             }
+            idx += type.nValues;
         }
+        return null;
     }
 
 
@@ -141,9 +563,8 @@ public class GLVboRenderable extends GLBaseRenderable {
 
     @Override
     protected void cleanupRenderable(DrawContext dc) {
-        if(vboId != null){
-            GraphicsUtil.deleteBuffer(dc.getGL().getGL2(), vboId);
-        }
+        vertexBuffer.delete(dc);
+        levelOfDetail.dispose(dc);
     }
 
 }
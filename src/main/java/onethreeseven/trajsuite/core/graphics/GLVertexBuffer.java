@@ -0,0 +1,156 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import gov.nasa.worldwind.render.DrawContext;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+/**
+ * A vertex buffer object on the GPU that grows by doubling its capacity.
+ * Because it has spare capacity, appending vertices or changing a range of vertices
+ * only uploads the changed bytes (using glBufferSubData) instead of making a new buffer.
+ * Its memory is accounted for (and possibly evicted) by the {@link GLBufferManager}, so owners
+ * must check {@link #isCreated()} before drawing and re-upload if it was evicted.
+ * @author Luke Bermingham
+ */
+public class GLVertexBuffer {
+
+    private Integer vboId = null;
+    private long capacityBytes = 0;
+    private long sizeBytes = 0;
+    private String owner = GLBufferManager.UNASSIGNED_OWNER;
+    /**
+     * The frame this buffer was last drawn in, maintained by the {@link GLBufferManager}.
+     */
+    long lastDrawnFrame = 0;
+
+    /**
+     * Upload the changed range of some vertex data to the GPU.
+     * If the buffer does not exist yet, or is too small, the buffer storage is (re)allocated
+     * at double the required size and all the data is uploaded.
+     * @param gl the gl context
+     * @param data all the vertex data (not just the changed range), either a {@link ByteBuffer} or a {@link DoubleBuffer}.
+     * @param totalBytes the total number of bytes of vertex data.
+     * @param dirtyFromByte the first byte that changed (inclusive).
+     * @param dirtyToByte the last byte that changed (exclusive).
+     * @return True if the data was uploaded, false if vbos are not supported.
+     */
+    public boolean upload(GL2 gl, Buffer data, long totalBytes, long dirtyFromByte, long dirtyToByte){
+        if(vboId == null){
+            vboId = GLBufferManager.getInstance().acquireName(gl);
+            if(vboId == null){
+                return false;
+            }
+            capacityBytes = 0;
+        }
+
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboId);
+        if(totalBytes > capacityBytes){
+            //grow: allocate double the storage required, then fill it all
+            long oldCapacityBytes = capacityBytes;
+            capacityBytes = Math.max(totalBytes, capacityBytes * 2);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, capacityBytes, null, GL.GL_DYNAMIC_DRAW);
+            GLBufferManager.getInstance().onAllocated(this, oldCapacityBytes, capacityBytes);
+            dirtyFromByte = 0;
+            dirtyToByte = totalBytes;
+        }
+        dirtyFromByte = Math.max(0, dirtyFromByte);
+        dirtyToByte = Math.min(totalBytes, dirtyToByte);
+        if(dirtyToByte > dirtyFromByte){
+            gl.glBufferSubData(GL.GL_ARRAY_BUFFER,
+                    dirtyFromByte,
+                    dirtyToByte - dirtyFromByte,
+                    positionAt(data, dirtyFromByte));
+        }
+        //unbind but not delete
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        sizeBytes = totalBytes;
+        return true;
+    }
+
+    /**
+     * Upload all of the given vertex data.
+     * @param gl the gl context
+     * @param data the vertex data, either a {@link ByteBuffer} or a {@link DoubleBuffer}.
+     * @param totalBytes the number of bytes of vertex data.
+     * @return True if the data was uploaded, false if vbos are not supported.
+     */
+    public boolean upload(GL2 gl, Buffer data, long totalBytes){
+        return upload(gl, data, totalBytes, 0, totalBytes);
+    }
+
+    /**
+     * JOGL reads from the buffer's position, so make a view of the buffer starting at the given byte.
+     */
+    private static Buffer positionAt(Buffer data, long byteOffset){
+        if(data instanceof ByteBuffer){
+            return ((ByteBuffer) data).duplicate().position((int) byteOffset);
+        }
+        else if(data instanceof DoubleBuffer){
+            return ((DoubleBuffer) data).duplicate().position((int) (byteOffset / Double.BYTES));
+        }
+        throw new UnsupportedOperationException("Cannot upload a buffer of type: " + data.getClass().getSimpleName());
+    }
+
+    public boolean bind(GL2 gl){
+        if(vboId == null){
+            return false;
+        }
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vboId);
+        GLBufferManager.getInstance().onDrawn(this);
+        return true;
+    }
+
+    /**
+     * Free the buffer on the GPU, it can be uploaded again later.
+     * @param dc the draw context
+     */
+    public void delete(DrawContext dc){
+        if(vboId != null){
+            GLBufferManager.getInstance().release(dc.getGL().getGL2(), this, vboId, capacityBytes);
+            vboId = null;
+            capacityBytes = 0;
+            sizeBytes = 0;
+        }
+    }
+
+    public boolean isCreated(){
+        return vboId != null;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner who the memory of this buffer is accounted to, i.e the name of a layer.
+     */
+    public void setOwner(String owner) {
+        if(owner == null){
+            owner = GLBufferManager.UNASSIGNED_OWNER;
+        }
+        if(!owner.equals(this.owner)){
+            GLBufferManager.getInstance().onOwnerChanged(this, this.owner, owner);
+            this.owner = owner;
+        }
+    }
+
+    @Override
+    public String toString() {
+        if(vboId == null){
+            return "GLVertexBuffer{not created}";
+        }
+        return "GLVertexBuffer{id=" + vboId + ", " + sizeBytes + "/" + capacityBytes + " bytes}";
+    }
+}
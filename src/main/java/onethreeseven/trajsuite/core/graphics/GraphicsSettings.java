@@ -44,6 +44,53 @@ public final class GraphicsSettings {
 
     private static boolean scaleTrajectoryLines = true;
 
+    /**
+     * Whether vertex buffers are uploaded in the compact layout,
+     * i.e float positions relative to the entity's center and unsigned byte colors.
+     * Turn this off to upload the double precision layout as-is.
+     * @see CompactVertexData
+     */
+    private static boolean useCompactVertexFormat = true;
+
+    /**
+     * Whether new layers draw their entities in batches (a few large VBOs with glMultiDrawArrays)
+     * instead of drawing each entity with its own VBO.
+     * @see GLBatchRenderer
+     */
+    private static boolean useBatchRendering = false;
+
+    /**
+     * Whether large line strips build simplified versions of themselves (in the background)
+     * and draw those when they only cover a few pixels on screen.
+     * @see LevelOfDetail
+     */
+    private static boolean useLevelOfDetail = true;
+
+    /**
+     * Entities with fewer vertices than this are always drawn at full resolution.
+     */
+    private static int levelOfDetailMinVerts = 5000;
+
+    /**
+     * Whether vertex data is packed on worker threads (instead of the OpenGL thread).
+     * While new vertex data is being packed the previous vertex data is drawn.
+     * @see VertexPreparationExecutor
+     */
+    private static boolean prepareVertexDataInBackground = true;
+
+    /**
+     * Whether simple prefabs (i.e circles) are all drawn together by one layer
+     * instead of each being its own WorldWind surface shape.
+     * @see InstancedPrefabLayer
+     */
+    private static boolean useInstancedPrefabs = true;
+
+    /**
+     * How long (in seconds) an entity must be hidden (or its layer disabled) before its graphics are released,
+     * they are made again when it is next drawn. Zero or less never releases them.
+     */
+    private static double releaseHiddenAfterSeconds = 60;
+
     public static boolean getDrawTrajectoryAsPoints() {
         return drawTrajectoryAsPoints;
     }
@@ -99,4 +146,60 @@ public final class GraphicsSettings {
     public static void setUniqueColorPerRenderable(boolean uniqueColorPerRenderable) {
         GraphicsSettings.uniqueColorPerRenderable = uniqueColorPerRenderable;
     }
+
+    public static boolean useCompactVertexFormat() {
+        return useCompactVertexFormat;
+    }
+
+    public static void setUseCompactVertexFormat(boolean useCompactVertexFormat) {
+        GraphicsSettings.useCompactVertexFormat = useCompactVertexFormat;
+    }
+
+    public static boolean useBatchRendering() {
+        return useBatchRendering;
+    }
+
+    public static void setUseBatchRendering(boolean useBatchRendering) {
+        GraphicsSettings.useBatchRendering = useBatchRendering;
+    }
+
+    public static boolean useLevelOfDetail() {
+        return useLevelOfDetail;
+    }
+
+    public static void setUseLevelOfDetail(boolean useLevelOfDetail) {
+        GraphicsSettings.useLevelOfDetail = useLevelOfDetail;
+    }
+
+    public static int getLevelOfDetailMinVerts() {
+        return levelOfDetailMinVerts;
+    }
+
+    public static void setLevelOfDetailMinVerts(int levelOfDetailMinVerts) {
+        GraphicsSettings.levelOfDetailMinVerts = levelOfDetailMinVerts;
+    }
+
+    public static boolean prepareVertexDataInBackground() {
+        return prepareVertexDataInBackground;
+    }
+
+    public static void setPrepareVertexDataInBackground(boolean prepareVertexDataInBackground) {
+        GraphicsSettings.prepareVertexDataInBackground = prepareVertexDataInBackground;
+    }
+
+    public static boolean useInstancedPrefabs() {
+        return useInstancedPrefabs;
+    }
+
+    public static void setUseInstancedPrefabs(boolean useInstancedPrefabs) {
+        GraphicsSettings.useInstancedPrefabs = useInstancedPrefabs;
+    }
+
+    public static double getReleaseHiddenAfterSeconds() {
+        return releaseHiddenAfterSeconds;
+    }
+
+    public static void setReleaseHiddenAfterSeconds(double releaseHiddenAfterSeconds) {
+        GraphicsSettings.releaseHiddenAfterSeconds = releaseHiddenAfterSeconds;
+    }
 }
@@ -7,6 +7,7 @@ import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.util.logging.Logger;
 
@@ -40,6 +41,23 @@ final class GraphicsUtil {
      * @return a id of the bound buffer
      */
     public static Integer createBuffer(GL2 gl, DoubleBuffer vertexData) {
+        Buffer buf = vertexData.rewind();
+        return createBuffer(gl, buf, buf.limit() * Buffers.SIZEOF_DOUBLE);
+    }
+
+    /**
+     * Create a vertex array buffer on the GPU using compact (byte) vertex data.
+     * @param gl
+     * @param vertexData the compact vertex data, its limit must be the number of bytes required.
+     * @return a id of the bound buffer
+     * @see CompactVertexData
+     */
+    public static Integer createBuffer(GL2 gl, ByteBuffer vertexData) {
+        Buffer buf = vertexData.rewind();
+        return createBuffer(gl, buf, buf.limit());
+    }
+
+    private static Integer createBuffer(GL2 gl, Buffer buf, int nBytes) {
         if (vbosOkay(gl)) {
             //turn on vbos bit
             gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
@@ -53,9 +71,8 @@ final class GraphicsUtil {
             //bind the gpu's current array buffer to the given id
             gl.glBindBuffer(GL.GL_ARRAY_BUFFER, bufferId);
             //using the given id createAnnotation a an empty vertex buffer data store in the gpu, static draw is a hint
-            Buffer buf = vertexData.rewind();
             gl.glBufferData(GL.GL_ARRAY_BUFFER,
-                    (buf.limit() * Buffers.SIZEOF_DOUBLE),
+                    nBytes,
                     buf,
                     GL2.GL_STATIC_DRAW);
             //unbind but not delete
@@ -68,6 +85,20 @@ final class GraphicsUtil {
         return null;
     }
 
+    /**
+     * Generate a new (empty) buffer name on the GPU.
+     * @param gl
+     * @return the buffer id, or null if vbos are not supported.
+     */
+    public static Integer genBuffer(GL2 gl) {
+        if (vbosOkay(gl)) {
+            int[] bufferNames = new int[1];
+            gl.glGenBuffers(1, bufferNames, 0);
+            return bufferNames[0];
+        }
+        return null;
+    }
+
     public static void deleteBuffer(GL2 gl, int bufferId) {
         try {
             gl.glDeleteBuffers(1, new int[]{bufferId}, 0);
@@ -155,4 +186,68 @@ final class GraphicsUtil {
         }
     }
 
+    public static void setupVertexAttributes(DrawContext drawContext, CompactVertexData compactVertexData) {
+
+        GL2 gl = drawContext.getGL().getGL2();
+
+        int stride = compactVertexData.getStrideBytes();
+        PackedVertexData.Types[] types = compactVertexData.getVertexDataTypes();
+
+        for (int i = 0; i < types.length; i++) {
+            PackedVertexData.Types vertexDataType = types[i];
+            int offset = compactVertexData.getByteOffset(i);
+
+            switch (vertexDataType) {
+                case VERTEX:
+                    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+                    //positions are floats relative to the reference center
+                    gl.glVertexPointer(vertexDataType.nValues, GL.GL_FLOAT, stride, offset);
+                    break;
+                case RGB:
+                case RGBA:
+                    if (!drawContext.isPickingMode()) {
+                        gl.glEnable(GL.GL_BLEND);      //turn on blending
+                        gl.glEnable(GL2.GL_COLOR_MATERIAL);
+                        gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+                        gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+                        //colors are always packed as 4 normalized unsigned bytes
+                        gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, stride, offset);
+                    }
+                    break;
+                case NORMAL:
+                    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+                    gl.glNormalPointer(GL.GL_BYTE, stride, offset);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(vertexDataType + " is not supported currently");
+            }
+        }
+
+    }
+
+    public static void disableVertexAttributes(DrawContext drawContext, CompactVertexData compactVertexData) {
+        GL2 gl = drawContext.getGL().getGL2();
+
+        for (PackedVertexData.Types vertexDataType : compactVertexData.getVertexDataTypes()) {
+            switch (vertexDataType) {
+                case VERTEX:
+                    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+                    break;
+                case RGB:
+                case RGBA:
+                    if (!drawContext.isPickingMode()) {
+                        gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+                        gl.glDisable(GL.GL_BLEND);
+                        gl.glDisable(GL2.GL_COLOR_MATERIAL);
+                    }
+                    break;
+                case NORMAL:
+                    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(vertexDataType + " is not supported currently");
+            }
+        }
+    }
+
 }
@@ -0,0 +1,436 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.render.DrawContext;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Draws the vertices of many {@link GLVboRenderable} as a density heatmap instead of as points.
+ * Each vertex is splatted (as a point sprite with a smooth kernel) into an offscreen float texture
+ * using additive blending, so the texture ends up holding the density of points under each pixel.
+ * Then the density is mapped through a color ramp and composited over the globe.
+ * The vertex buffers of the renderables are drawn directly, so nothing is made per point
+ * and millions of points cost one glDrawArrays per renderable.
+ * Usage: {@link #begin(DrawContext)}, {@link #accumulate(DrawContext, GLVboRenderable)} for each renderable,
+ * then {@link #end(DrawContext)}.
+ * @author Luke Bermingham
+ */
+public class HeatmapRenderer {
+
+    private static final Logger logger = Logger.getLogger(HeatmapRenderer.class.getSimpleName());
+
+    private static final int KERNEL_TEXTURE_SIZE = 64;
+    private static final int RAMP_TEXTURE_SIZE = 256;
+
+    /**
+     * Maps the accumulated density through the color ramp.
+     * The density is unbounded, so it is squashed into [0,1) first.
+     */
+    private static final String fragmentShaderSource =
+            "uniform sampler2D density;\n" +
+            "uniform sampler1D ramp;\n" +
+            "uniform float opacity;\n" +
+            "void main(){\n" +
+            "    float d = texture2D(density, gl_TexCoord[0].st).r;\n" +
+            "    if(d <= 0.0){\n" +
+            "        discard;\n" +
+            "    }\n" +
+            "    vec4 c = texture1D(ramp, 1.0 - exp(-d));\n" +
+            "    gl_FragColor = vec4(c.rgb, c.a * opacity);\n" +
+            "}\n";
+
+    private static final Color[] defaultColorRamp = new Color[]{
+            new Color(0, 0, 255, 0),
+            new Color(0, 0, 255, 160),
+            new Color(0, 255, 255, 200),
+            new Color(0, 255, 0, 220),
+            new Color(255, 255, 0, 240),
+            new Color(255, 0, 0, 255)
+    };
+
+    private float kernelRadiusPixels = 12;
+    private float intensity = 0.05f;
+    private float opacity = 0.8f;
+    private Color[] colorRamp = defaultColorRamp;
+    private boolean rampChanged = true;
+
+    //gl resources
+    private int framebufferId = 0;
+    private int densityTextureId = 0;
+    private int kernelTextureId = 0;
+    private int rampTextureId = 0;
+    private int programId = 0;
+    private int densityWidth = 0;
+    private int densityHeight = 0;
+    private boolean unsupported = false;
+
+    //state between begin and end
+    private final int[] prevFramebuffer = new int[1];
+    private boolean accumulating = false;
+
+    /**
+     * Start accumulating density, this redirects drawing to the offscreen density texture.
+     * @param dc the draw context
+     * @return True if accumulating, false if heatmaps are not supported (in which case do not call end).
+     */
+    public boolean begin(DrawContext dc){
+        if(dc.isPickingMode() || !ensureResources(dc)){
+            return false;
+        }
+        GL2 gl = dc.getGL().getGL2();
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, prevFramebuffer, 0);
+        gl.glPushAttrib(GL2.GL_ALL_ATTRIB_BITS);
+        gl.glPushClientAttrib(GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
+
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId);
+        gl.glViewport(0, 0, densityWidth, densityHeight);
+        gl.glClearColor(0, 0, 0, 0);
+        gl.glClear(GL.GL_COLOR_BUFFER_BIT);
+
+        //add up the kernels of every point
+        gl.glDisable(GL.GL_DEPTH_TEST);
+        gl.glDisable(GL2.GL_LIGHTING);
+        gl.glDisable(GL2.GL_POINT_SMOOTH);
+        gl.glEnable(GL.GL_BLEND);
+        gl.glBlendFunc(GL.GL_ONE, GL.GL_ONE);
+
+        //each point is a sprite textured with the kernel
+        gl.glEnable(GL.GL_TEXTURE_2D);
+        gl.glBindTexture(GL.GL_TEXTURE_2D, kernelTextureId);
+        gl.glTexEnvi(GL2.GL_TEXTURE_ENV, GL2.GL_TEXTURE_ENV_MODE, GL2.GL_MODULATE);
+        gl.glEnable(GL2.GL_POINT_SPRITE);
+        gl.glTexEnvi(GL2.GL_POINT_SPRITE, GL2.GL_COORD_REPLACE, GL.GL_TRUE);
+        gl.glPointSize(kernelRadiusPixels * 2);
+        gl.glColor4f(intensity, intensity, intensity, intensity);
+
+        accumulating = true;
+        return true;
+    }
+
+    /**
+     * Add the density of the vertices of a renderable.
+     * @param dc the draw context
+     * @param renderable the renderable
+     * @return The number of points added.
+     */
+    public int accumulate(DrawContext dc, GLVboRenderable renderable){
+        if(!accumulating){
+            return 0;
+        }
+        return renderable.drawPoints(dc);
+    }
+
+    /**
+     * Stop accumulating and draw the heatmap over the globe.
+     * @param dc the draw context
+     */
+    public void end(DrawContext dc){
+        if(!accumulating){
+            return;
+        }
+        accumulating = false;
+        GL2 gl = dc.getGL().getGL2();
+        try{
+            gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, prevFramebuffer[0]);
+            //restore the viewport and state used while accumulating
+            gl.glPopClientAttrib();
+            gl.glPopAttrib();
+            composite(gl);
+        }catch (Exception e){
+            logger.severe("Could not draw the heatmap: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Draw the density texture over the whole viewport through the color ramp.
+     */
+    private void composite(GL2 gl){
+        gl.glPushAttrib(GL2.GL_ALL_ATTRIB_BITS);
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glOrtho(0, 1, 0, 1, -1, 1);
+        gl.glMatrixMode(GL2.GL_MODELVIEW);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        try{
+            gl.glDisable(GL.GL_DEPTH_TEST);
+            gl.glDisable(GL2.GL_LIGHTING);
+            gl.glEnable(GL.GL_BLEND);
+            gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+
+            if(rampChanged){
+                uploadColorRamp(gl);
+            }
+            gl.glActiveTexture(GL.GL_TEXTURE1);
+            gl.glBindTexture(GL2.GL_TEXTURE_1D, rampTextureId);
+            gl.glActiveTexture(GL.GL_TEXTURE0);
+            gl.glBindTexture(GL.GL_TEXTURE_2D, densityTextureId);
+
+            gl.glUseProgram(programId);
+            gl.glUniform1i(gl.glGetUniformLocation(programId, "density"), 0);
+            gl.glUniform1i(gl.glGetUniformLocation(programId, "ramp"), 1);
+            gl.glUniform1f(gl.glGetUniformLocation(programId, "opacity"), opacity);
+
+            gl.glBegin(GL2.GL_QUADS);
+            gl.glTexCoord2f(0, 0);
+            gl.glVertex2f(0, 0);
+            gl.glTexCoord2f(1, 0);
+            gl.glVertex2f(1, 0);
+            gl.glTexCoord2f(1, 1);
+            gl.glVertex2f(1, 1);
+            gl.glTexCoord2f(0, 1);
+            gl.glVertex2f(0, 1);
+            gl.glEnd();
+
+            gl.glUseProgram(0);
+            gl.glActiveTexture(GL.GL_TEXTURE1);
+            gl.glBindTexture(GL2.GL_TEXTURE_1D, 0);
+            gl.glActiveTexture(GL.GL_TEXTURE0);
+            gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+        }finally {
+            gl.glMatrixMode(GL2.GL_PROJECTION);
+            gl.glPopMatrix();
+            gl.glMatrixMode(GL2.GL_MODELVIEW);
+            gl.glPopMatrix();
+            gl.glPopAttrib();
+        }
+    }
+
+    ////////////////////////
+    //GL resources
+    ////////////////////////
+
+    private boolean ensureResources(DrawContext dc){
+        if(unsupported){
+            return false;
+        }
+        GL2 gl = dc.getGL().getGL2();
+        if(programId == 0){
+            boolean fbos = gl.isExtensionAvailable("GL_ARB_framebuffer_object") ||
+                    gl.isExtensionAvailable("GL_EXT_framebuffer_object");
+            if(!fbos || !gl.getContext().hasGLSL()){
+                logger.warning("Heatmaps need framebuffer objects and GLSL, which are not available.");
+                unsupported = true;
+                return false;
+            }
+            programId = createProgram(gl);
+            if(programId == 0){
+                unsupported = true;
+                return false;
+            }
+            createKernelTexture(gl);
+            int[] ids = new int[1];
+            gl.glGenTextures(1, ids, 0);
+            rampTextureId = ids[0];
+            rampChanged = true;
+        }
+
+        //the density texture is the size of the viewport
+        Rectangle viewport = dc.getView().getViewport();
+        int width = Math.max(1, viewport.width);
+        int height = Math.max(1, viewport.height);
+        if(framebufferId == 0 || width != densityWidth || height != densityHeight){
+            return createDensityTarget(gl, width, height);
+        }
+        return true;
+    }
+
+    private boolean createDensityTarget(GL2 gl, int width, int height){
+        int[] ids = new int[1];
+        if(densityTextureId == 0){
+            gl.glGenTextures(1, ids, 0);
+            densityTextureId = ids[0];
+        }
+        //a float texture so the density does not saturate at 1, fall back to bytes if there are no float textures
+        int internalFormat = gl.isExtensionAvailable("GL_ARB_texture_float") ? GL2.GL_RGBA16F : GL.GL_RGBA8;
+        gl.glBindTexture(GL.GL_TEXTURE_2D, densityTextureId);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, internalFormat, width, height, 0, GL.GL_RGBA, GL.GL_FLOAT, null);
+        gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+
+        if(framebufferId == 0){
+            gl.glGenFramebuffers(1, ids, 0);
+            framebufferId = ids[0];
+        }
+        int[] prev = new int[1];
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, prev, 0);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId);
+        gl.glFramebufferTexture2D(GL.GL_FRAMEBUFFER, GL.GL_COLOR_ATTACHMENT0, GL.GL_TEXTURE_2D, densityTextureId, 0);
+        boolean complete = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER) == GL.GL_FRAMEBUFFER_COMPLETE;
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, prev[0]);
+        if(!complete){
+            logger.warning("Heatmap framebuffer is not complete, heatmaps are disabled.");
+            unsupported = true;
+            return false;
+        }
+        densityWidth = width;
+        densityHeight = height;
+        return true;
+    }
+
+    /**
+     * A smooth (quartic) kernel that falls to zero at the edge of the sprite.
+     */
+    private void createKernelTexture(GL2 gl){
+        ByteBuffer texels = Buffers.newDirectByteBuffer(KERNEL_TEXTURE_SIZE * KERNEL_TEXTURE_SIZE);
+        double half = KERNEL_TEXTURE_SIZE / 2.0;
+        for (int y = 0; y < KERNEL_TEXTURE_SIZE; y++) {
+            for (int x = 0; x < KERNEL_TEXTURE_SIZE; x++) {
+                double dx = (x + 0.5 - half) / half;
+                double dy = (y + 0.5 - half) / half;
+                double d2 = dx * dx + dy * dy;
+                double k = d2 >= 1 ? 0 : (1 - d2) * (1 - d2);
+                texels.put((byte) Math.round(k * 255));
+            }
+        }
+        texels.flip();
+        int[] ids = new int[1];
+        gl.glGenTextures(1, ids, 0);
+        kernelTextureId = ids[0];
+        gl.glBindTexture(GL.GL_TEXTURE_2D, kernelTextureId);
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+        gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_LUMINANCE, KERNEL_TEXTURE_SIZE, KERNEL_TEXTURE_SIZE, 0,
+                GL.GL_LUMINANCE, GL.GL_UNSIGNED_BYTE, texels);
+        gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Interpolate the color ramp into a 1D texture.
+     */
+    private void uploadColorRamp(GL2 gl){
+        Color[] ramp = colorRamp;
+        ByteBuffer texels = Buffers.newDirectByteBuffer(RAMP_TEXTURE_SIZE * 4);
+        for (int i = 0; i < RAMP_TEXTURE_SIZE; i++) {
+            double t = (i / (RAMP_TEXTURE_SIZE - 1.0)) * (ramp.length - 1);
+            int lo = Math.min((int) t, ramp.length - 1);
+            int hi = Math.min(lo + 1, ramp.length - 1);
+            double f = t - lo;
+            texels.put(lerp(ramp[lo].getRed(), ramp[hi].getRed(), f));
+            texels.put(lerp(ramp[lo].getGreen(), ramp[hi].getGreen(), f));
+            texels.put(lerp(ramp[lo].getBlue(), ramp[hi].getBlue(), f));
+            texels.put(lerp(ramp[lo].getAlpha(), ramp[hi].getAlpha(), f));
+        }
+        texels.flip();
+        gl.glBindTexture(GL2.GL_TEXTURE_1D, rampTextureId);
+        gl.glTexParameteri(GL2.GL_TEXTURE_1D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
+        gl.glTexParameteri(GL2.GL_TEXTURE_1D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+        gl.glTexParameteri(GL2.GL_TEXTURE_1D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexImage1D(GL2.GL_TEXTURE_1D, 0, GL.GL_RGBA8, RAMP_TEXTURE_SIZE, 0,
+                GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, texels);
+        gl.glBindTexture(GL2.GL_TEXTURE_1D, 0);
+        rampChanged = false;
+    }
+
+    private static byte lerp(int a, int b, double f){
+        return (byte) Math.round(a + (b - a) * f);
+    }
+
+    private static int createProgram(GL2 gl){
+        int shader = gl.glCreateShader(GL2.GL_FRAGMENT_SHADER);
+        gl.glShaderSource(shader, 1, new String[]{fragmentShaderSource}, null);
+        gl.glCompileShader(shader);
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+        if(status[0] != GL.GL_TRUE){
+            logger.warning("Could not compile the heatmap shader, heatmaps are disabled.");
+            gl.glDeleteShader(shader);
+            return 0;
+        }
+        int program = gl.glCreateProgram();
+        gl.glAttachShader(program, shader);
+        gl.glLinkProgram(program);
+        //the program keeps the shader alive
+        gl.glDeleteShader(shader);
+        gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+        if(status[0] != GL.GL_TRUE){
+            logger.warning("Could not link the heatmap shader, heatmaps are disabled.");
+            gl.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Free all the gl resources, they are re-made if the heatmap is drawn again.
+     * @param dc the draw context
+     */
+    public void dispose(DrawContext dc){
+        GL2 gl = dc.getGL().getGL2();
+        if(framebufferId != 0){
+            gl.glDeleteFramebuffers(1, new int[]{framebufferId}, 0);
+        }
+        int[] textures = new int[]{densityTextureId, kernelTextureId, rampTextureId};
+        for (int texture : textures) {
+            if(texture != 0){
+                gl.glDeleteTextures(1, new int[]{texture}, 0);
+            }
+        }
+        if(programId != 0){
+            gl.glDeleteProgram(programId);
+        }
+        framebufferId = densityTextureId = kernelTextureId = rampTextureId = programId = 0;
+        densityWidth = densityHeight = 0;
+    }
+
+    ////////////////////////
+    //Settings
+    ////////////////////////
+
+    public float getKernelRadiusPixels() {
+        return kernelRadiusPixels;
+    }
+
+    /**
+     * @param kernelRadiusPixels how far (in pixels) each point spreads its density.
+     */
+    public void setKernelRadiusPixels(float kernelRadiusPixels) {
+        this.kernelRadiusPixels = Math.max(0.5f, kernelRadiusPixels);
+    }
+
+    public float getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * @param intensity how much density each point adds at the center of its kernel,
+     *                  lower it when there are more points.
+     */
+    public void setIntensity(float intensity) {
+        this.intensity = intensity;
+    }
+
+    public float getOpacity() {
+        return opacity;
+    }
+
+    public void setOpacity(float opacity) {
+        this.opacity = opacity;
+    }
+
+    public Color[] getColorRamp() {
+        return colorRamp.clone();
+    }
+
+    /**
+     * @param colorRamp the colors from the lowest density to the highest density (at least one color).
+     */
+    public void setColorRamp(Color... colorRamp) {
+        if(colorRamp == null || colorRamp.length == 0){
+            throw new IllegalArgumentException("The color ramp needs at least one color.");
+        }
+        this.colorRamp = colorRamp.clone();
+        this.rampChanged = true;
+    }
+
+}
@@ -0,0 +1,412 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.layers.AbstractLayer;
+import gov.nasa.worldwind.render.DrawContext;
+import javafx.beans.InvalidationListener;
+import onethreeseven.trajsuitePlugin.graphics.CirclePrefab;
+import onethreeseven.trajsuitePlugin.graphics.GraphicsPrefab;
+import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.awt.*;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draws many simple prefabs (i.e thousands of RoI circles) in one vertex buffer, instead of
+ * making a tessellated WorldWind surface shape for each of them.
+ * Each prefab instance is expanded from its position, size and color into a fan of triangles
+ * (the interior) in one vertex buffer and a ring of line segments (the outline) in another,
+ * so all the instances are drawn with one glDrawArrays for the interiors and one for the outlines.
+ * Each visible instance has a slot in both buffers, so when an instance is added, removed or changed
+ * only its slot is rebuilt and uploaded. Everything is only rebuilt when the globe changes.
+ * Prefabs this layer does not support are still drawn as surface shapes, see {@link PrefabToRenderableFactory}.
+ * @author Luke Bermingham
+ */
+public class InstancedPrefabLayer extends AbstractLayer {
+
+    public static final String LAYER_NAME = "Instanced shapes";
+
+    /**
+     * How many segments make up the ring of a circle.
+     */
+    private static final int CIRCLE_SEGMENTS = 32;
+    private static final double[] segmentCos = new double[CIRCLE_SEGMENTS + 1];
+    private static final double[] segmentSin = new double[CIRCLE_SEGMENTS + 1];
+    static {
+        for (int i = 0; i <= CIRCLE_SEGMENTS; i++) {
+            double theta = (2 * Math.PI * i) / CIRCLE_SEGMENTS;
+            segmentCos[i] = Math.cos(theta);
+            segmentSin[i] = Math.sin(theta);
+        }
+    }
+
+    private static final int INTERIOR_VERTS_PER_CIRCLE = CIRCLE_SEGMENTS * 3;
+    private static final int OUTLINE_VERTS_PER_CIRCLE = CIRCLE_SEGMENTS * 2;
+
+    //same look as the surface shapes made by the PrefabToRenderableFactory
+    private static final double INTERIOR_OPACITY = 0.5;
+    private static final float OUTLINE_WIDTH = 3;
+
+    private static final PackedVertexData.Types[] types =
+            new PackedVertexData.Types[]{PackedVertexData.Types.VERTEX, PackedVertexData.Types.RGBA};
+    private static final int valuesPerVert = 7;
+
+    private final class Instance {
+        private final CirclePrefab prefab;
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+        private final InvalidationListener onPrefabChanged = observable -> markChanged();
+        private boolean visible = true;
+        //only touched on the rendering thread, -1 when it has no slot
+        private int slot = -1;
+
+        private Instance(CirclePrefab prefab) {
+            this.prefab = prefab;
+        }
+
+        private void markChanged(){
+            if(queued.compareAndSet(false, true)){
+                changed.add(this);
+            }
+        }
+
+        private void listen(){
+            prefab.centerLatLon.addListener(onPrefabChanged);
+            prefab.radiusMetres.addListener(onPrefabChanged);
+            prefab.color.addListener(onPrefabChanged);
+        }
+
+        private void unlisten(){
+            prefab.centerLatLon.removeListener(onPrefabChanged);
+            prefab.radiusMetres.removeListener(onPrefabChanged);
+            prefab.color.removeListener(onPrefabChanged);
+        }
+    }
+
+    //instances are added and removed from any thread, everything else is only touched on the rendering thread
+    private final Map<GraphicsPrefab, Instance> instances = new IdentityHashMap<>();
+    //instances added, removed or changed since the last frame
+    private final ConcurrentLinkedQueue<Instance> changed = new ConcurrentLinkedQueue<>();
+    //everything must be rebuilt
+    private volatile boolean dirty = true;
+
+    private final GLVertexBuffer interiorBuffer = new GLVertexBuffer();
+    private final GLVertexBuffer outlineBuffer = new GLVertexBuffer();
+    private CompactVertexData interiorData = null;
+    private CompactVertexData outlineData = null;
+    //the instance in each slot of the buffers
+    private final ArrayList<Instance> slots = new ArrayList<>();
+    //the slots that are not uploaded yet
+    private int dirtyFromSlot = Integer.MAX_VALUE;
+    private int dirtyToSlot = 0;
+    private final DoubleBuffer interiorScratch = Buffers.newDirectDoubleBuffer(INTERIOR_VERTS_PER_CIRCLE * valuesPerVert);
+    private final DoubleBuffer outlineScratch = Buffers.newDirectDoubleBuffer(OUTLINE_VERTS_PER_CIRCLE * valuesPerVert);
+    private final double[] ring = new double[(CIRCLE_SEGMENTS + 1) * 3];
+    private Object builtGlobeStateKey = null;
+    private double builtVerticalExaggeration = 1;
+
+    public InstancedPrefabLayer(){
+        this.setName(LAYER_NAME);
+        this.setEnabled(true);
+        //the surface shapes were never used for picking either
+        this.setPickEnabled(false);
+        this.interiorBuffer.setOwner(LAYER_NAME);
+        this.outlineBuffer.setOwner(LAYER_NAME);
+    }
+
+    /**
+     * @param prefab a prefab
+     * @return True if this layer can draw the prefab, otherwise it should be drawn as a surface shape.
+     */
+    public static boolean supports(GraphicsPrefab prefab){
+        return prefab instanceof CirclePrefab;
+    }
+
+    public void add(GraphicsPrefab prefab){
+        if(!supports(prefab)){
+            throw new IllegalArgumentException("Instanced prefab layer cannot draw a: " + prefab);
+        }
+        Instance instance = new Instance((CirclePrefab) prefab);
+        synchronized (instances){
+            if(instances.containsKey(prefab)){
+                return;
+            }
+            instances.put(prefab, instance);
+        }
+        instance.listen();
+        instance.markChanged();
+    }
+
+    public void remove(GraphicsPrefab prefab){
+        Instance removed;
+        synchronized (instances){
+            removed = instances.remove(prefab);
+        }
+        if(removed != null){
+            removed.unlisten();
+            removed.markChanged();
+        }
+    }
+
+    public void setVisible(GraphicsPrefab prefab, boolean visible){
+        Instance instance;
+        synchronized (instances){
+            instance = instances.get(prefab);
+            if(instance == null || instance.visible == visible){
+                return;
+            }
+            instance.visible = visible;
+        }
+        instance.markChanged();
+    }
+
+    public int getNInstances(){
+        synchronized (instances){
+            return instances.size();
+        }
+    }
+
+    @Override
+    protected void doRender(DrawContext dc) {
+        Globe globe = dc.getGlobe();
+        if(globe == null){
+            return;
+        }
+        //the instances are placed on the globe, so they move when the globe does (i.e switching to a flat globe)
+        Object globeStateKey = globe.getGlobeStateKey(dc);
+        if(dirty || !globeStateKey.equals(builtGlobeStateKey)
+                || dc.getVerticalExaggeration() != builtVerticalExaggeration){
+            rebuild(dc, globeStateKey);
+        }
+        else{
+            applyChanges(dc);
+        }
+        if(slots.isEmpty()){
+            return;
+        }
+
+        GL2 gl = dc.getGL().getGL2();
+        //upload the slots that changed (or everything if it was evicted)
+        if(!upload(gl, interiorBuffer, interiorData, INTERIOR_VERTS_PER_CIRCLE)
+                || !upload(gl, outlineBuffer, outlineData, OUTLINE_VERTS_PER_CIRCLE)){
+            return;
+        }
+        dirtyFromSlot = Integer.MAX_VALUE;
+        dirtyToSlot = 0;
+
+        gl.glPushAttrib(GL2.GL_CURRENT_BIT | GL2.GL_COLOR_BUFFER_BIT | GL2.GL_LINE_BIT
+                | GL2.GL_POLYGON_BIT | GL2.GL_DEPTH_BUFFER_BIT | GL2.GL_ENABLE_BIT);
+        gl.glPushClientAttrib(GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
+        try{
+            dc.getView().pushReferenceCenter(dc, interiorData.getReferenceCenter());
+            gl.glDisable(GL.GL_CULL_FACE);
+            //the interiors are translucent, so they should not hide each other
+            gl.glDepthMask(false);
+
+            if(interiorBuffer.bind(gl)){
+                GraphicsUtil.setupVertexAttributes(dc, interiorData);
+                gl.glDrawArrays(GL.GL_TRIANGLES, 0, interiorData.getNVerts());
+                GraphicsUtil.disableVertexAttributes(dc, interiorData);
+            }
+            if(outlineBuffer.bind(gl)){
+                GraphicsUtil.setupVertexAttributes(dc, outlineData);
+                gl.glLineWidth(OUTLINE_WIDTH);
+                gl.glDrawArrays(GL.GL_LINES, 0, outlineData.getNVerts());
+                GraphicsUtil.disableVertexAttributes(dc, outlineData);
+            }
+
+            dc.getView().popReferenceCenter(dc);
+        }finally {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+            gl.glPopClientAttrib();
+            gl.glPopAttrib();
+        }
+    }
+
+    private boolean upload(GL2 gl, GLVertexBuffer vertexBuffer, CompactVertexData data, int vertsPerCircle){
+        if(!vertexBuffer.isCreated()){
+            return vertexBuffer.upload(gl, data.getBuffer(), data.getBuffer().limit());
+        }
+        if(dirtyToSlot <= dirtyFromSlot){
+            return true;
+        }
+        //the buffer only grows when the data no longer fits
+        long slotBytes = (long) vertsPerCircle * data.getStrideBytes();
+        return vertexBuffer.upload(gl, data.getBuffer(), data.getBuffer().limit(),
+                dirtyFromSlot * slotBytes, dirtyToSlot * slotBytes);
+    }
+
+    /**
+     * Place every visible instance again, i.e when the globe changed.
+     */
+    private void rebuild(DrawContext dc, Object globeStateKey){
+        //clear first, so changes made while rebuilding cause another rebuild
+        dirty = false;
+        builtGlobeStateKey = globeStateKey;
+        builtVerticalExaggeration = dc.getVerticalExaggeration();
+        //every instance is placed again, so the queued changes are covered too
+        Instance queued;
+        while((queued = changed.poll()) != null){
+            queued.queued.set(false);
+        }
+
+        for (Instance instance : slots) {
+            instance.slot = -1;
+        }
+        slots.clear();
+        synchronized (instances){
+            for (Instance instance : instances.values()) {
+                if(instance.visible){
+                    instance.slot = slots.size();
+                    slots.add(instance);
+                }
+            }
+        }
+
+        //the reference center may have moved, so start new data (the gpu buffers are kept and filled again)
+        interiorData = null;
+        outlineData = null;
+        for (Instance instance : slots) {
+            place(dc, instance);
+        }
+    }
+
+    /**
+     * Rebuild only the slots of the instances that were added, removed or changed.
+     */
+    private void applyChanges(DrawContext dc){
+        Instance instance;
+        while((instance = changed.poll()) != null){
+            //clear first, so changes made while placing it queue it again
+            instance.queued.set(false);
+            boolean show;
+            synchronized (instances){
+                show = instance.visible && instances.get(instance.prefab) == instance;
+            }
+            if(show){
+                if(instance.slot < 0){
+                    instance.slot = slots.size();
+                    slots.add(instance);
+                }
+                place(dc, instance);
+            }
+            else if(instance.slot >= 0){
+                removeSlot(dc, instance);
+            }
+        }
+    }
+
+    /**
+     * Free the instance's slot by moving the instance in the last slot into it.
+     */
+    private void removeSlot(DrawContext dc, Instance instance){
+        int slot = instance.slot;
+        instance.slot = -1;
+        Instance last = slots.remove(slots.size() - 1);
+        if(last != instance){
+            last.slot = slot;
+            slots.set(slot, last);
+            place(dc, last);
+        }
+        interiorData.truncate(slots.size() * INTERIOR_VERTS_PER_CIRCLE);
+        outlineData.truncate(slots.size() * OUTLINE_VERTS_PER_CIRCLE);
+    }
+
+    /**
+     * Expand the instance into the vertices of its slot.
+     */
+    private void place(DrawContext dc, Instance instance){
+        CirclePrefab prefab = instance.prefab;
+        Globe globe = dc.getGlobe();
+        double[] latLon = prefab.centerLatLon.get();
+        Angle lat = Angle.fromDegrees(latLon[0]);
+        Angle lon = Angle.fromDegrees(latLon[1]);
+        double elevation = globe.getElevation(lat, lon) * dc.getVerticalExaggeration();
+        Vec4 center = globe.computePointFromPosition(lat, lon, elevation);
+        if(interiorData == null){
+            //positions are relative to the first instance placed
+            interiorData = CompactVertexData.allocate(types, center, slots.size() * INTERIOR_VERTS_PER_CIRCLE);
+            outlineData = CompactVertexData.allocate(types, center, slots.size() * OUTLINE_VERTS_PER_CIRCLE);
+        }
+
+        //the circle lies in the plane tangent to the globe at its center
+        Vec4 up = globe.computeSurfaceNormalAtLocation(lat, lon);
+        Vec4 north = globe.computeNorthPointingTangentAtLocation(lat, lon);
+        Vec4 east = north.cross3(up).normalize3();
+        double radius = prefab.radiusMetres.get();
+        for (int i = 0; i <= CIRCLE_SEGMENTS; i++) {
+            double n = segmentCos[i] * radius;
+            double e = segmentSin[i] * radius;
+            ring[i * 3] = center.x + north.x * n + east.x * e;
+            ring[i * 3 + 1] = center.y + north.y * n + east.y * e;
+            ring[i * 3 + 2] = center.z + north.z * n + east.z * e;
+        }
+
+        Color color = prefab.color.get();
+        double r = color.getRed() / 255d;
+        double g = color.getGreen() / 255d;
+        double b = color.getBlue() / 255d;
+        double a = (color.getAlpha() / 255d) * INTERIOR_OPACITY;
+        Color outline = color.darker();
+        double outR = outline.getRed() / 255d;
+        double outG = outline.getGreen() / 255d;
+        double outB = outline.getBlue() / 255d;
+        double outA = outline.getAlpha() / 255d;
+
+        int interiorIdx = 0;
+        int outlineIdx = 0;
+        for (int i = 0; i < CIRCLE_SEGMENTS; i++) {
+            //interior: a triangle from the center to each segment of the ring
+            interiorIdx = putVert(interiorScratch, interiorIdx, center.x, center.y, center.z, r, g, b, a);
+            interiorIdx = putVert(interiorScratch, interiorIdx, ring[i * 3], ring[i * 3 + 1], ring[i * 3 + 2], r, g, b, a);
+            interiorIdx = putVert(interiorScratch, interiorIdx, ring[i * 3 + 3], ring[i * 3 + 4], ring[i * 3 + 5], r, g, b, a);
+            //outline: the segment itself
+            outlineIdx = putVert(outlineScratch, outlineIdx, ring[i * 3], ring[i * 3 + 1], ring[i * 3 + 2], outR, outG, outB, outA);
+            outlineIdx = putVert(outlineScratch, outlineIdx, ring[i * 3 + 3], ring[i * 3 + 4], ring[i * 3 + 5], outR, outG, outB, outA);
+        }
+
+        int slot = instance.slot;
+        interiorData = interiorData.put(interiorScratch, slot * INTERIOR_VERTS_PER_CIRCLE);
+        outlineData = outlineData.put(outlineScratch, slot * OUTLINE_VERTS_PER_CIRCLE);
+        dirtyFromSlot = Math.min(dirtyFromSlot, slot);
+        dirtyToSlot = Math.max(dirtyToSlot, slot + 1);
+    }
+
+    private static int putVert(DoubleBuffer buf, int idx, double x, double y, double z,
+                               double r, double g, double b, double a){
+        buf.put(idx, x);
+        buf.put(idx + 1, y);
+        buf.put(idx + 2, z);
+        buf.put(idx + 3, r);
+        buf.put(idx + 4, g);
+        buf.put(idx + 5, b);
+        buf.put(idx + 6, a);
+        return idx + valuesPerVert;
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (instances){
+            for (Instance instance : instances.values()) {
+                instance.unlisten();
+            }
+            instances.clear();
+        }
+        dirty = true;
+        super.dispose();
+    }
+
+    @Override
+    public String toString() {
+        return LAYER_NAME;
+    }
+}
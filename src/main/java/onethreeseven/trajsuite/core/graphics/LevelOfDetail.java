@@ -0,0 +1,241 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import gov.nasa.worldwind.geom.Box;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.render.DrawContext;
+import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
+
+import javax.media.opengl.GL2;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small pyramid of simplified versions of an entity's vertex data (a line strip).
+ * The levels are built in the background and, each frame, the coarsest level whose error is
+ * smaller than a pixel (at the entity's distance from the eye) is drawn instead of the full resolution data.
+ * So a long trajectory that only covers a few pixels is drawn with a handful of vertices.
+ * @author Luke Bermingham
+ */
+public class LevelOfDetail {
+
+    private static final Logger logger = Logger.getLogger(LevelOfDetail.class.getSimpleName());
+
+    private static final ThreadFactory tf = r -> {
+        Thread t = new Thread(r, "LevelOfDetail");
+        t.setDaemon(true);
+        return t;
+    };
+    private static final ExecutorService exec = Executors.newSingleThreadExecutor(tf);
+
+    /**
+     * The finest level is simplified to this fraction of the entity's diameter,
+     * each following level is 4x coarser.
+     */
+    private static final double FINEST_TOLERANCE_FRACTION = 1.0 / 4096;
+    private static final int MAX_LEVELS = 5;
+    /**
+     * A level must have at most this fraction of the vertices of the previous level to be worth keeping.
+     */
+    private static final double MIN_REDUCTION = 0.5;
+    /**
+     * How many pixels a simplified vertex can be away from where it would be drawn at full resolution.
+     */
+    private static final double MAX_ERROR_PIXELS = 0.5;
+
+    public static final class DetailLevel {
+        private final double tolerance;
+        private final CompactVertexData vertexData;
+        private final GLVertexBuffer vertexBuffer = new GLVertexBuffer();
+
+        private DetailLevel(double tolerance, CompactVertexData vertexData) {
+            this.tolerance = tolerance;
+            this.vertexData = vertexData;
+        }
+
+        public CompactVertexData getVertexData() {
+            return vertexData;
+        }
+
+        public GLVertexBuffer getVertexBuffer() {
+            return vertexBuffer;
+        }
+
+        public int getNVerts() {
+            return vertexData.getNVerts();
+        }
+    }
+
+    private static final class BuildResult {
+        private final int generation;
+        private final List<DetailLevel> levels;
+
+        private BuildResult(int generation, List<DetailLevel> levels) {
+            this.generation = generation;
+            this.levels = levels;
+        }
+    }
+
+    //everything except the build result is only touched on the rendering thread
+    private final AtomicReference<BuildResult> built = new AtomicReference<>();
+    private List<DetailLevel> levels = Collections.emptyList();
+    private final List<DetailLevel> retired = new ArrayList<>();
+    private int generation = 0;
+    private int builtGeneration = -1;
+    private boolean building = false;
+    private String owner = GLBufferManager.UNASSIGNED_OWNER;
+
+    /**
+     * The vertex data changed, so the current levels are out of date.
+     */
+    public void invalidate(){
+        generation++;
+        retired.addAll(levels);
+        levels = Collections.emptyList();
+    }
+
+    /**
+     * @return True if the levels should be built for the current vertex data.
+     */
+    public boolean needsBuild(){
+        return !building && builtGeneration != generation;
+    }
+
+    /**
+     * Build the levels in the background.
+     * @param vertexData the flushed double precision vertex data, it must not be modified after this call.
+     * @param types the types in the vertex data.
+     * @param bounds the bounding box of the entity, used for the tolerances and as the reference center of each level.
+     */
+    public void build(DoubleBuffer vertexData, PackedVertexData.Types[] types, Box bounds){
+        final int buildGeneration = generation;
+        final Vec4 referenceCenter = bounds.getCenter();
+        final double diameter = bounds.getDiameter();
+        building = true;
+        CompletableFuture.supplyAsync(() -> buildLevels(vertexData, types, referenceCenter, diameter), exec)
+                .whenComplete((result, throwable) -> {
+                    if(throwable != null){
+                        logger.log(Level.WARNING, "Could not build the levels of detail.", throwable);
+                        result = Collections.emptyList();
+                    }
+                    built.set(new BuildResult(buildGeneration, result));
+                });
+    }
+
+    private static List<DetailLevel> buildLevels(DoubleBuffer data, PackedVertexData.Types[] types,
+                                                 Vec4 referenceCenter, double diameter){
+        int valuesPerVert = 0;
+        int positionOffset = -1;
+        for (PackedVertexData.Types type : types) {
+            if(type == PackedVertexData.Types.VERTEX && type.nValues >= 3){
+                positionOffset = valuesPerVert;
+            }
+            valuesPerVert += type.nValues;
+        }
+        if(positionOffset == -1){
+            return Collections.emptyList();
+        }
+
+        int nVerts = data.limit() / valuesPerVert;
+        List<DetailLevel> levels = new ArrayList<>();
+        int prevNVerts = nVerts;
+        double tolerance = diameter * FINEST_TOLERANCE_FRACTION;
+        for (int i = 0; i < MAX_LEVELS; i++, tolerance *= 4) {
+            int[] kept = VertexSimplifier.simplify(data, valuesPerVert, positionOffset, nVerts, tolerance);
+            if(kept.length > prevNVerts * MIN_REDUCTION){
+                continue;
+            }
+            DoubleBuffer simplified = VertexSimplifier.gather(data, valuesPerVert, kept);
+            levels.add(new DetailLevel(tolerance, CompactVertexData.pack(simplified, types, referenceCenter)));
+            prevNVerts = kept.length;
+            if(kept.length <= 2){
+                break;
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Choose the level to draw this frame and make sure it is uploaded.
+     * @param dc the draw context
+     * @param bounds the bounding box of the entity
+     * @return the level to draw, or null to draw the full resolution data.
+     */
+    public DetailLevel select(DrawContext dc, Box bounds){
+        GL2 gl = dc.getGL().getGL2();
+        //free the buffers of out of date levels
+        for (DetailLevel level : retired) {
+            level.vertexBuffer.delete(dc);
+        }
+        retired.clear();
+
+        //pick up finished builds
+        BuildResult result = built.getAndSet(null);
+        if(result != null){
+            building = false;
+            builtGeneration = result.generation;
+            if(result.generation == generation){
+                levels = result.levels;
+            }
+        }
+
+        if(levels.isEmpty() || bounds == null){
+            return null;
+        }
+
+        double distance = dc.getView().getEyePoint().distanceTo3(bounds.getCenter()) - bounds.getRadius();
+        double pixelSize = dc.getView().computePixelSizeAtDistance(Math.max(1, distance));
+
+        //levels go from finest to coarsest
+        DetailLevel chosen = null;
+        for (DetailLevel level : levels) {
+            if(level.tolerance > pixelSize * MAX_ERROR_PIXELS){
+                break;
+            }
+            chosen = level;
+        }
+
+        //upload it if it has not been uploaded yet (or it was evicted)
+        if(chosen != null && !chosen.vertexBuffer.isCreated()){
+            chosen.vertexBuffer.setOwner(owner);
+            ByteBuffer buf = chosen.vertexData.getBuffer();
+            if(!chosen.vertexBuffer.upload(gl, buf, buf.limit())){
+                return null;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * @param owner who the gpu memory of the levels is accounted to.
+     * @see GLBufferManager
+     */
+    public void setOwner(String owner){
+        this.owner = owner;
+        for (DetailLevel level : levels) {
+            level.vertexBuffer.setOwner(owner);
+        }
+    }
+
+    /**
+     * Free all the gpu buffers of the levels.
+     * @param dc the draw context
+     */
+    public void dispose(DrawContext dc){
+        invalidate();
+        for (DetailLevel level : retired) {
+            level.vertexBuffer.delete(dc);
+        }
+        retired.clear();
+    }
+
+}
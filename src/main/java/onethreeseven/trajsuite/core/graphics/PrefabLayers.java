@@ -0,0 +1,95 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import gov.nasa.worldwind.layers.AnnotationLayer;
+import gov.nasa.worldwind.layers.Layer;
+import gov.nasa.worldwind.layers.LayerList;
+import gov.nasa.worldwind.layers.RenderableLayer;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+/**
+ * The layers that the prefabs of renderables are drawn in (annotations, shapes and instanced shapes).
+ * Finding them means scanning the layer list, so the last ones found are cached, and renderables only
+ * ask for them once they have a prefab (most entities have none).
+ * @author Luke Bermingham
+ */
+final class PrefabLayers {
+
+    private static final Object lock = new Object();
+    private static WeakReference<LayerList> cachedList = new WeakReference<>(null);
+    private static PrefabLayers cached = null;
+
+    final AnnotationLayer annotationLayer;
+    final RenderableLayer shapesLayer;
+    final InstancedPrefabLayer instancedLayer;
+
+    private PrefabLayers(AnnotationLayer annotationLayer, RenderableLayer shapesLayer, InstancedPrefabLayer instancedLayer) {
+        this.annotationLayer = annotationLayer;
+        this.shapesLayer = shapesLayer;
+        this.instancedLayer = instancedLayer;
+    }
+
+    /**
+     * Get the prefab layers of a layer list, they are added to it if it does not have them.
+     * @param layerList the layer list
+     * @return the prefab layers
+     */
+    static PrefabLayers of(LayerList layerList){
+        synchronized (lock){
+            PrefabLayers layers = cached;
+            //the cached layers are only good while they are still in that layer list
+            if(layers != null && cachedList.get() == layerList &&
+                    layerList.contains(layers.annotationLayer) &&
+                    layerList.contains(layers.shapesLayer) &&
+                    layerList.contains(layers.instancedLayer)){
+                return layers;
+            }
+            layers = resolve(layerList);
+            cached = layers;
+            cachedList = new WeakReference<>(layerList);
+            return layers;
+        }
+    }
+
+    private static PrefabLayers resolve(LayerList layerList){
+        //ensure we have an annotation layer in case one of graphics has an annotation
+        AnnotationLayer annotationLayer;
+        List<Layer> res = layerList.getLayersByClass(AnnotationLayer.class);
+        if(!res.isEmpty()){
+            annotationLayer = (AnnotationLayer) res.iterator().next();
+            annotationLayer.setEnabled(true);
+        }else{
+            annotationLayer = new AnnotationLayer();
+            annotationLayer.setEnabled(true);
+            annotationLayer.setName("Annotations");
+            layerList.add(annotationLayer);
+        }
+
+        //ensure we have a shapes layers
+        RenderableLayer shapesLayer;
+        Layer layer = layerList.getLayerByName("Shapes");
+        if(!(layer instanceof RenderableLayer)){
+            shapesLayer = new RenderableLayer();
+            shapesLayer.setName("Shapes");
+            shapesLayer.setEnabled(true);
+            layerList.add(shapesLayer);
+        }else{
+            shapesLayer = (RenderableLayer) layer;
+            shapesLayer.setEnabled(true);
+        }
+
+        //ensure we have an instanced shapes layer
+        InstancedPrefabLayer instancedLayer;
+        layer = layerList.getLayerByName(InstancedPrefabLayer.LAYER_NAME);
+        if(!(layer instanceof InstancedPrefabLayer)){
+            instancedLayer = new InstancedPrefabLayer();
+            layerList.add(instancedLayer);
+        }else{
+            instancedLayer = (InstancedPrefabLayer) layer;
+            instancedLayer.setEnabled(true);
+        }
+        return new PrefabLayers(annotationLayer, shapesLayer, instancedLayer);
+    }
+
+}
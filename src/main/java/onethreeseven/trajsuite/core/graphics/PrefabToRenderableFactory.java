@@ -10,15 +10,25 @@ import onethreeseven.trajsuitePlugin.graphics.GraphicsPrefab;
 import onethreeseven.trajsuitePlugin.graphics.LabelPrefab;
 
 import java.awt.*;
+import java.util.List;
 
 /**
- * Turns prefabs into world wind graphics
+ * Turns prefabs into world wind graphics.
+ * The graphics follow changes to their prefab, the listeners doing so are removed by running
+ * the removers each factory method is given (i.e when the graphic is removed).
  * @author Luke Bermingham
  */
 public class PrefabToRenderableFactory {
 
+    /**
+     * Listen to a property of a prefab, remembering how to stop listening.
+     */
+    private static <T> void listen(ObservableValue<T> property, ChangeListener<? super T> listener, List<Runnable> removers){
+        property.addListener(listener);
+        removers.add(() -> property.removeListener(listener));
+    }
 
-    public static SurfaceText createText(LabelPrefab prefab){
+    public static SurfaceText createText(LabelPrefab prefab, List<Runnable> removers){
         LatLon ll = LatLon.fromDegrees(prefab.centerLatLon.get()[0], prefab.centerLatLon.get()[1]);
         Position pos = Position.fromLatLon(ll);
 
@@ -28,16 +38,18 @@ public class PrefabToRenderableFactory {
         text.setBackgroundColor(Color.WHITE);
         text.setPriority(100);
 
-        prefab.centerLatLon.addListener((observable, oldValue, newValue) -> {
+        listen(prefab.centerLatLon, (observable, oldValue, newValue) -> {
             LatLon ll1 = LatLon.fromDegrees(prefab.centerLatLon.get()[0], prefab.centerLatLon.get()[1]);
             Position pos1 = Position.fromLatLon(ll1);
             text.moveTo(pos1);
-        });
+        }, removers);
+        //label text
+        listen(prefab.label, (observable, oldValue, newValue) -> text.setText(newValue), removers);
 
         return text;
     }
 
-    public static AbstractAnnotation createAnnotation(LabelPrefab prefab){
+    public static AbstractAnnotation createAnnotation(LabelPrefab prefab, List<Runnable> removers){
 
         LatLon ll = LatLon.fromDegrees(prefab.centerLatLon.get()[0], prefab.centerLatLon.get()[1]);
         Position pos = Position.fromLatLon(ll);
@@ -58,20 +70,22 @@ public class PrefabToRenderableFactory {
         //add listeners
 
         //color
-        prefab.color.addListener((observable, oldValue, newValue) -> attrs.setTextColor(newValue));
+        listen(prefab.color, (observable, oldValue, newValue) -> attrs.setTextColor(newValue), removers);
         //latlon pos
-        prefab.centerLatLon.addListener((observable, oldValue, newValue) -> {
+        listen(prefab.centerLatLon, (observable, oldValue, newValue) -> {
             LatLon ll1 = LatLon.fromDegrees(prefab.centerLatLon.get()[0], prefab.centerLatLon.get()[1]);
             Position pos1 = Position.fromLatLon(ll1);
             annotation.moveTo(pos1);
-        });
+        }, removers);
+        //label text
+        listen(prefab.label, (observable, oldValue, newValue) -> annotation.setText(newValue), removers);
 
         annotation.setAttributes(attrs);
 
         return annotation;
     }
 
-    public static AbstractSurfaceShape createAnnotation(GraphicsPrefab prefab){
+    public static AbstractSurfaceShape createAnnotation(GraphicsPrefab prefab, List<Runnable> removers){
 
         LatLon ll = LatLon.fromDegrees(prefab.centerLatLon.get()[0], prefab.centerLatLon.get()[1]);
 
@@ -84,7 +98,7 @@ public class PrefabToRenderableFactory {
         updateShapeColor(attr, prefab.color.get());
 
         //when color changes on prefab, update the shape attrs
-        prefab.color.addListener((observable, oldValue, newValue) -> updateShapeColor(attr, newValue));
+        listen(prefab.color, (observable, oldValue, newValue) -> updateShapeColor(attr, newValue), removers);
 
 
         if(prefab instanceof CirclePrefab){
@@ -94,12 +108,12 @@ public class PrefabToRenderableFactory {
             circle.setVisible(true);
 
             //add change listener for radius
-            circlePrefab.radiusMetres.addListener((observable, oldValue, newValue) -> circle.setRadius(newValue.doubleValue()));
+            listen(circlePrefab.radiusMetres, (observable, oldValue, newValue) -> circle.setRadius(newValue.doubleValue()), removers);
             //add change listener for position
-            circlePrefab.centerLatLon.addListener((observable, oldValue, newValue) -> {
+            listen(circlePrefab.centerLatLon, (observable, oldValue, newValue) -> {
                 LatLon ll1 = LatLon.fromDegrees(newValue[0], newValue[1]);
                 circle.moveTo(new Position(ll1, 0));
-            });
+            }, removers);
 
             return circle;
         }
@@ -0,0 +1,115 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The window of time being played back. While it is active, renderables with vertex times
+ * (see {@link GLVboRenderable#setVertexTimes(long[])}) only draw the vertices inside the window.
+ * The vertex times are sorted, so the window is found with a binary search and drawn as an index range
+ * of the vertex buffer that is already uploaded, nothing is re-packed as the window moves.
+ * Times are in epoch milliseconds.
+ * @author Luke Bermingham
+ */
+public final class TimeWindow {
+
+    private static volatile boolean active = false;
+    private static volatile long start = Long.MIN_VALUE;
+    private static volatile long end = Long.MAX_VALUE;
+
+    /**
+     * The range of all the vertex times that have been set, i.e for the ends of a time slider.
+     */
+    private static final AtomicLong dataMin = new AtomicLong(Long.MAX_VALUE);
+    private static final AtomicLong dataMax = new AtomicLong(Long.MIN_VALUE);
+
+    private TimeWindow(){}
+
+    /**
+     * Only draw vertices in this window.
+     * @param start the start of the window (inclusive)
+     * @param end the end of the window (inclusive)
+     */
+    public static void set(long start, long end){
+        TimeWindow.start = start;
+        TimeWindow.end = end;
+        TimeWindow.active = true;
+    }
+
+    /**
+     * Draw all vertices again.
+     */
+    public static void clear(){
+        TimeWindow.active = false;
+    }
+
+    public static boolean isActive() {
+        return active;
+    }
+
+    public static long getStart() {
+        return start;
+    }
+
+    public static long getEnd() {
+        return end;
+    }
+
+    static void include(long min, long max){
+        dataMin.accumulateAndGet(min, Math::min);
+        dataMax.accumulateAndGet(max, Math::max);
+    }
+
+    /**
+     * @return True if any renderable has vertex times.
+     */
+    public static boolean hasData(){
+        return dataMin.get() <= dataMax.get();
+    }
+
+    public static long getDataMin() {
+        return dataMin.get();
+    }
+
+    public static long getDataMax() {
+        return dataMax.get();
+    }
+
+    /**
+     * @param times sorted times
+     * @param t a time
+     * @return the index of the first time that is not before t (times.length if there is none).
+     */
+    static int lowerBound(long[] times, long t){
+        int lo = 0;
+        int hi = times.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(times[mid] < t){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param times sorted times
+     * @param t a time
+     * @return the index of the first time that is after t (times.length if there is none).
+     */
+    static int upperBound(long[] times, long t){
+        int lo = 0;
+        int hi = times.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(times[mid] <= t){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+}
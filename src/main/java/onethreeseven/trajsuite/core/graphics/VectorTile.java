@@ -0,0 +1,290 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * One tile of a vector tile pyramid, keyed by zoom, x and y like the levels of web mercator map tiles
+ * (i.e {@link onethreeseven.trajsuite.core.model.OSMMapnikHigherResLayer}), so x grows east and y grows south.
+ * A tile holds blocks of vertices that are already simplified for its zoom and already projected
+ * to world coordinates (as floats relative to the tile's reference center), so drawing a tile is
+ * an upload and one glDrawArrays per block.
+ * @author Luke Bermingham
+ */
+public final class VectorTile {
+
+    /**
+     * The size of a tile in pixels, used to work out how much detail each zoom needs.
+     */
+    public static final int TILE_SIZE_PIXELS = 256;
+
+    /**
+     * Web mercator cannot show the poles, so latitudes are clamped to this.
+     */
+    public static final double MAX_LATITUDE = 85.0511287798;
+
+    static final int BYTES_PER_VERT = 3 * Buffers.SIZEOF_FLOAT;
+
+    private static final int MAGIC = 0x56544C31;
+    private static final int HEADER_BYTES = 4 * 5 + 8 * 3;
+    private static final int BLOCK_BYTES = 4 * 4;
+
+    /**
+     * Stands in for tiles that have no vertices, so they are not looked for on disk again.
+     */
+    static final VectorTile EMPTY = new VectorTile(-1, -1, -1, new double[3],
+            new int[0], new int[0], new int[0], new int[0], Buffers.newDirectByteBuffer(0));
+
+    private final int zoom;
+    private final int x;
+    private final int y;
+    private final double[] referenceCenter;
+    private final int[] blockModes;
+    private final int[] blockColors;
+    private final int[] blockFirsts;
+    private final int[] blockCounts;
+    private final ByteBuffer vertices;
+
+    /**
+     * @param zoom the zoom level
+     * @param x the column
+     * @param y the row (from the north)
+     * @param referenceCenter the world point the vertices are relative to {x,y,z}.
+     * @param blockModes the gl drawing mode of each block (i.e GL_LINE_STRIP)
+     * @param blockColors the ARGB color of each block
+     * @param blockFirsts the first vertex of each block
+     * @param blockCounts the number of vertices in each block
+     * @param vertices the float x,y,z of every vertex, relative to the reference center, in native order.
+     */
+    VectorTile(int zoom, int x, int y, double[] referenceCenter,
+               int[] blockModes, int[] blockColors, int[] blockFirsts, int[] blockCounts, ByteBuffer vertices) {
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+        this.referenceCenter = referenceCenter;
+        this.blockModes = blockModes;
+        this.blockColors = blockColors;
+        this.blockFirsts = blockFirsts;
+        this.blockCounts = blockCounts;
+        this.vertices = vertices;
+    }
+
+    ////////////////////////
+    //Tile maths
+    ////////////////////////
+
+    /**
+     * @return a single key for a tile.
+     */
+    public static long key(int zoom, int x, int y){
+        return ((long) zoom << 58) | ((long) x << 29) | y;
+    }
+
+    /**
+     * @param lon longitude in degrees
+     * @return the mercator x in [0,1] (west to east).
+     */
+    public static double mercatorX(double lon){
+        return (lon + 180.0) / 360.0;
+    }
+
+    /**
+     * @param lat latitude in degrees
+     * @return the mercator y in [0,1] (north to south).
+     */
+    public static double mercatorY(double lat){
+        double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat));
+        double sin = Math.sin(Math.toRadians(clamped));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /**
+     * @param mercator a mercator x or y in [0,1]
+     * @param zoom the zoom level
+     * @return the column or row of the tile at that zoom.
+     */
+    public static int toTile(double mercator, int zoom){
+        int n = 1 << zoom;
+        return Math.max(0, Math.min(n - 1, (int) Math.floor(mercator * n)));
+    }
+
+    public static double tileToLon(int x, int zoom){
+        return x / (double) (1 << zoom) * 360.0 - 180.0;
+    }
+
+    public static double tileToLat(int y, int zoom){
+        double n = Math.PI - (2.0 * Math.PI * y) / (1 << zoom);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    /**
+     * @param equatorialRadius the radius of the globe in metres
+     * @param zoom the zoom level
+     * @return how many metres a pixel covers at the equator at that zoom.
+     */
+    public static double metresPerPixel(double equatorialRadius, int zoom){
+        return (2 * Math.PI * equatorialRadius) / (TILE_SIZE_PIXELS * (double) (1 << zoom));
+    }
+
+    ////////////////////////
+    //Disk format
+    ////////////////////////
+
+    void write(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + blockModes.length * BLOCK_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(zoom).putInt(x).putInt(y).putInt(blockModes.length);
+        header.putDouble(referenceCenter[0]).putDouble(referenceCenter[1]).putDouble(referenceCenter[2]);
+        for (int i = 0; i < blockModes.length; i++) {
+            header.putInt(blockModes[i]).putInt(blockColors[i]).putInt(blockFirsts[i]).putInt(blockCounts[i]);
+        }
+        header.flip();
+
+        ByteBuffer body = toOrder(vertices, ByteOrder.LITTLE_ENDIAN);
+        File tmp = new File(file.getPath() + ".tmp");
+        try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()){
+            channel.truncate(0);
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+            while(body.hasRemaining()){
+                channel.write(body);
+            }
+        }
+        //replace the old tile in one step, so a reader never sees half a tile
+        if(!tmp.renameTo(file)){
+            if(!file.delete() || !tmp.renameTo(file)){
+                throw new IOException("Could not move the tile into place: " + file);
+            }
+        }
+    }
+
+    static VectorTile read(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header);
+            if(header.getInt() != MAGIC){
+                throw new IOException("Not a vector tile: " + file);
+            }
+            int zoom = header.getInt();
+            int x = header.getInt();
+            int y = header.getInt();
+            int nBlocks = header.getInt();
+            double[] referenceCenter = new double[]{header.getDouble(), header.getDouble(), header.getDouble()};
+
+            ByteBuffer blocks = ByteBuffer.allocate(nBlocks * BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, blocks);
+            int[] modes = new int[nBlocks];
+            int[] colors = new int[nBlocks];
+            int[] firsts = new int[nBlocks];
+            int[] counts = new int[nBlocks];
+            for (int i = 0; i < nBlocks; i++) {
+                modes[i] = blocks.getInt();
+                colors[i] = blocks.getInt();
+                firsts[i] = blocks.getInt();
+                counts[i] = blocks.getInt();
+            }
+
+            int bodyBytes = (int) (channel.size() - channel.position());
+            ByteBuffer body = Buffers.newDirectByteBuffer(bodyBytes).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, body);
+            return new VectorTile(zoom, x, y, referenceCenter, modes, colors, firsts, counts,
+                    toOrder(body, ByteOrder.nativeOrder()));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()){
+            if(channel.read(buf) < 0){
+                throw new IOException("Vector tile is truncated.");
+            }
+        }
+        buf.flip();
+    }
+
+    /**
+     * @return the floats of the buffer in the given byte order (the same buffer if it is already in that order).
+     */
+    private static ByteBuffer toOrder(ByteBuffer src, ByteOrder order){
+        ByteBuffer dup = src.duplicate().order(src.order());
+        dup.position(0);
+        if(src.order() == order){
+            return dup;
+        }
+        ByteBuffer dst = Buffers.newDirectByteBuffer(dup.remaining()).order(order);
+        while(dup.remaining() >= Buffers.SIZEOF_FLOAT){
+            dst.putFloat(dup.getFloat());
+        }
+        dst.flip();
+        return dst;
+    }
+
+    ////////////////////////
+    //Getters
+    ////////////////////////
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public double[] getReferenceCenter() {
+        return referenceCenter;
+    }
+
+    public int getNBlocks(){
+        return blockModes.length;
+    }
+
+    public int getBlockMode(int block){
+        return blockModes[block];
+    }
+
+    public int getBlockColor(int block){
+        return blockColors[block];
+    }
+
+    public int getBlockFirst(int block){
+        return blockFirsts[block];
+    }
+
+    public int getBlockCount(int block){
+        return blockCounts[block];
+    }
+
+    public int getNVerts(){
+        return vertices.limit() / BYTES_PER_VERT;
+    }
+
+    /**
+     * @return the vertices, ready to upload (its limit is the number of bytes).
+     */
+    public ByteBuffer getVertices() {
+        return vertices.duplicate().order(vertices.order());
+    }
+
+    /**
+     * @return roughly how many bytes this tile takes up in memory.
+     */
+    long getSizeBytes(){
+        return vertices.capacity() + (long) blockModes.length * BLOCK_BYTES + HEADER_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "VectorTile{" + zoom + "/" + x + "/" + y + ", blocks=" + getNBlocks() + ", verts=" + getNVerts() + '}';
+    }
+}
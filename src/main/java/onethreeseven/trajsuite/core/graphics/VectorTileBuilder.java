@@ -0,0 +1,310 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Angle;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import onethreeseven.trajsuitePlugin.graphics.GraphicsPayload;
+import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
+import onethreeseven.trajsuitePlugin.graphics.RenderingModes;
+import onethreeseven.trajsuitePlugin.model.BoundingCoordinates;
+
+import javax.media.opengl.GL;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Builds a vector tile pyramid (offline) from entities, to be drawn by a {@link VectorTileLayer}.
+ * For each zoom level, line strips are simplified to half a pixel at that zoom and cut into the tiles they cross,
+ * and points are thinned to one point per pixel at that zoom. The vertices are projected to world coordinates
+ * of the given globe, so the pyramid has to be re-built for a different globe (i.e a flat globe).
+ * Entities drawn in any mode other than line strips are tiled as points.
+ * @author Luke Bermingham
+ */
+public class VectorTileBuilder {
+
+    private static final Logger logger = Logger.getLogger(VectorTileBuilder.class.getSimpleName());
+
+    /**
+     * How many pixels a simplified vertex can be away from where it would be drawn at full resolution.
+     */
+    private static final double MAX_ERROR_PIXELS = 0.5;
+
+    private static final class Entry {
+        private final BoundingCoordinates model;
+        private final GraphicsPayload payload;
+
+        private Entry(BoundingCoordinates model, GraphicsPayload payload) {
+            this.model = model;
+            this.payload = payload;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int minZoom = 2;
+    private int maxZoom = 14;
+
+    /**
+     * @param model an entity's model
+     * @param payload the graphics payload of the entity (it makes the vertex data and has the color and rendering mode).
+     */
+    public void add(BoundingCoordinates model, GraphicsPayload payload){
+        entries.add(new Entry(model, payload));
+    }
+
+    /**
+     * @param minZoom the coarsest zoom level to build.
+     * @param maxZoom the finest zoom level to build.
+     */
+    public void setZooms(int minZoom, int maxZoom){
+        if(minZoom < 0 || maxZoom < minZoom || maxZoom > 22){
+            throw new IllegalArgumentException("Zoom levels must be 0 <= minZoom <= maxZoom <= 22.");
+        }
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Build all the tiles and write them to the store, replacing any pyramid already in it.
+     * The tiles are built and written one zoom level at a time, so only one zoom level of tiles is in memory,
+     * at the cost of making each entity's vertex data once per zoom level.
+     * @param globe the globe used to project the vertices.
+     * @param store where the tiles are written.
+     * @return The number of tiles written.
+     * @throws IOException if a tile could not be written (or an old tile could not be deleted).
+     */
+    public int build(Globe globe, VectorTileStore store) throws IOException {
+        long startTime = System.currentTimeMillis();
+        //tiles of an older (maybe larger) pyramid would otherwise be drawn as if they were this data
+        store.clear();
+
+        int nTiles = 0;
+        Map<Long, TileAccumulator> tiles = new HashMap<>();
+        for (int z = minZoom; z <= maxZoom; z++) {
+            for (int e = 0; e < entries.size(); e++) {
+                addToTiles(globe, e, z, tiles);
+            }
+            for (TileAccumulator accumulator : tiles.values()) {
+                store.put(accumulator.toTile(globe));
+                nTiles++;
+            }
+            tiles.clear();
+        }
+        store.setZooms(minZoom, maxZoom);
+        logger.info("Built " + nTiles + " vector tiles for " + entries.size() + " entities in " +
+                (System.currentTimeMillis() - startTime) + "ms.");
+        return nTiles;
+    }
+
+    /**
+     * Add an entity to the tiles of one zoom level.
+     * @param globe the globe used to project the vertices.
+     * @param e the index of the entity's entry.
+     * @param z the zoom level.
+     * @param tiles the tiles of that zoom level, by their key.
+     */
+    private void addToTiles(Globe globe, int e, int z, Map<Long, TileAccumulator> tiles){
+        Entry entry = entries.get(e);
+        PackedVertexData packed = entry.payload.createVertexData(entry.model);
+        DoubleBuffer data = packed.flushBuffer();
+        int valuesPerVert = packed.getTotalValuesPerVert();
+        int positionOffset = positionOffset(packed.getVertexDataTypes());
+        int nVerts = packed.getNVerts();
+        if(positionOffset == -1 || nVerts == 0){
+            return;
+        }
+
+        //where each vertex is in the tiles
+        double[] mx = new double[nVerts];
+        double[] my = new double[nVerts];
+        for (int v = 0; v < nVerts; v++) {
+            int idx = v * valuesPerVert + positionOffset;
+            Position pos = globe.computePositionFromPoint(new Vec4(data.get(idx), data.get(idx + 1), data.get(idx + 2)));
+            mx[v] = VectorTile.mercatorX(pos.getLongitude().degrees);
+            my[v] = VectorTile.mercatorY(pos.getLatitude().degrees);
+        }
+
+        RenderingModes mode = entry.payload.renderingMode.get();
+        boolean isStrip = mode.equals(RenderingModes.LINE_STRIP) || mode.equals(RenderingModes.LINE_LOOP);
+        int color = entry.payload.fallbackColor.get().getRGB();
+
+        double tolerance = VectorTile.metresPerPixel(globe.getEquatorialRadius(), z) * MAX_ERROR_PIXELS;
+        if(isStrip){
+            int[] kept = VertexSimplifier.simplify(data, valuesPerVert, positionOffset, nVerts, tolerance);
+            int nSegments = mode.equals(RenderingModes.LINE_LOOP) && kept.length > 2 ? kept.length : kept.length - 1;
+            for (int k = 0; k < nSegments; k++) {
+                int a = kept[k];
+                int b = kept[(k + 1) % kept.length];
+                //a segment goes in every tile it crosses, so it is drawn when any of them is visible
+                forEachTileCrossed(mx[a], my[a], mx[b], my[b], z, (x, y) -> accumulator(tiles, z, x, y)
+                        .addSegment(e, color, a, b, data, valuesPerVert, positionOffset));
+            }
+        }else{
+            //keep one point per pixel
+            long nPixels = (long) VectorTile.TILE_SIZE_PIXELS << z;
+            Set<Long> usedPixels = new HashSet<>();
+            for (int v = 0; v < nVerts; v++) {
+                long px = Math.min(nPixels - 1, (long) (mx[v] * nPixels));
+                long py = Math.min(nPixels - 1, (long) (my[v] * nPixels));
+                if(usedPixels.add(px * nPixels + py)){
+                    accumulator(tiles, z, VectorTile.toTile(mx[v], z), VectorTile.toTile(my[v], z))
+                            .addPoint(e, color, v, data, valuesPerVert, positionOffset);
+                }
+            }
+        }
+    }
+
+    private static int positionOffset(PackedVertexData.Types[] types){
+        int offset = 0;
+        for (PackedVertexData.Types type : types) {
+            if(type == PackedVertexData.Types.VERTEX && type.nValues >= 3){
+                return offset;
+            }
+            offset += type.nValues;
+        }
+        return -1;
+    }
+
+    interface TileVisitor {
+        void visit(int x, int y);
+    }
+
+    /**
+     * Walk the tiles a straight (mercator) segment passes through, from the tile of its start to the tile of its end.
+     * @param ax mercator x of the start
+     * @param ay mercator y of the start
+     * @param bx mercator x of the end
+     * @param by mercator y of the end
+     * @param zoom the zoom level of the tiles
+     * @param visitor given each tile crossed, once
+     */
+    static void forEachTileCrossed(double ax, double ay, double bx, double by, int zoom, TileVisitor visitor){
+        int nTiles = 1 << zoom;
+        int x = VectorTile.toTile(ax, zoom);
+        int y = VectorTile.toTile(ay, zoom);
+        int endX = VectorTile.toTile(bx, zoom);
+        int endY = VectorTile.toTile(by, zoom);
+        int stepX = Integer.signum(endX - x);
+        int stepY = Integer.signum(endY - y);
+        double dx = (bx - ax) * nTiles;
+        double dy = (by - ay) * nTiles;
+        //how far along the segment (0 to 1) the next tile edge is, and how far apart the tile edges are
+        double tMaxX = stepX == 0 ? Double.POSITIVE_INFINITY : ((stepX > 0 ? x + 1 : x) - ax * nTiles) / dx;
+        double tMaxY = stepY == 0 ? Double.POSITIVE_INFINITY : ((stepY > 0 ? y + 1 : y) - ay * nTiles) / dy;
+        double tDeltaX = stepX == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dx);
+        double tDeltaY = stepY == 0 ? Double.POSITIVE_INFINITY : Math.abs(1 / dy);
+
+        visitor.visit(x, y);
+        while(x != endX || y != endY){
+            //never step past the end tile, rounding can otherwise overshoot it
+            if(y == endY || (x != endX && tMaxX < tMaxY)){
+                x += stepX;
+                tMaxX += tDeltaX;
+            }else{
+                y += stepY;
+                tMaxY += tDeltaY;
+            }
+            visitor.visit(x, y);
+        }
+    }
+
+    private static TileAccumulator accumulator(Map<Long, TileAccumulator> tiles, int zoom, int x, int y){
+        return tiles.computeIfAbsent(VectorTile.key(zoom, x, y), k -> new TileAccumulator(zoom, x, y));
+    }
+
+    /**
+     * The blocks of a tile while it is being built.
+     */
+    private static final class TileAccumulator {
+        private final int zoom;
+        private final int x;
+        private final int y;
+
+        private double[] verts = new double[3 * 64];
+        private int nVerts = 0;
+        private int[] blockModes = new int[8];
+        private int[] blockColors = new int[8];
+        private int[] blockFirsts = new int[8];
+        private int nBlocks = 0;
+
+        //the block being added to: which entity it is for, and the index of its last vertex in the entity
+        private int lastEntry = -1;
+        private int lastSrcIdx = -1;
+
+        private TileAccumulator(int zoom, int x, int y) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+
+        private void addSegment(int entry, int color, int a, int b, DoubleBuffer data, int valuesPerVert, int positionOffset){
+            //continue the current strip if the segment follows on from it
+            if(nBlocks == 0 || lastEntry != entry || lastSrcIdx != a || blockModes[nBlocks - 1] != GL.GL_LINE_STRIP){
+                newBlock(GL.GL_LINE_STRIP, color);
+                addVert(data, a * valuesPerVert + positionOffset);
+            }
+            addVert(data, b * valuesPerVert + positionOffset);
+            lastEntry = entry;
+            lastSrcIdx = b;
+        }
+
+        private void addPoint(int entry, int color, int v, DoubleBuffer data, int valuesPerVert, int positionOffset){
+            if(nBlocks == 0 || lastEntry != entry || blockModes[nBlocks - 1] != GL.GL_POINTS){
+                newBlock(GL.GL_POINTS, color);
+            }
+            addVert(data, v * valuesPerVert + positionOffset);
+            lastEntry = entry;
+            lastSrcIdx = -1;
+        }
+
+        private void newBlock(int mode, int color){
+            if(nBlocks == blockModes.length){
+                blockModes = Arrays.copyOf(blockModes, nBlocks * 2);
+                blockColors = Arrays.copyOf(blockColors, nBlocks * 2);
+                blockFirsts = Arrays.copyOf(blockFirsts, nBlocks * 2);
+            }
+            blockModes[nBlocks] = mode;
+            blockColors[nBlocks] = color;
+            blockFirsts[nBlocks] = nVerts;
+            nBlocks++;
+        }
+
+        private void addVert(DoubleBuffer data, int idx){
+            if(verts.length < (nVerts + 1) * 3){
+                verts = Arrays.copyOf(verts, verts.length * 2);
+            }
+            verts[nVerts * 3] = data.get(idx);
+            verts[nVerts * 3 + 1] = data.get(idx + 1);
+            verts[nVerts * 3 + 2] = data.get(idx + 2);
+            nVerts++;
+        }
+
+        private VectorTile toTile(Globe globe){
+            //the vertices are stored relative to the center of the tile, so floats keep their precision
+            double centerLat = (VectorTile.tileToLat(y, zoom) + VectorTile.tileToLat(y + 1, zoom)) / 2;
+            double centerLon = (VectorTile.tileToLon(x, zoom) + VectorTile.tileToLon(x + 1, zoom)) / 2;
+            Vec4 center = globe.computePointFromPosition(Angle.fromDegrees(centerLat), Angle.fromDegrees(centerLon), 0);
+            double[] referenceCenter = new double[]{center.x, center.y, center.z};
+
+            ByteBuffer buf = Buffers.newDirectByteBuffer(nVerts * VectorTile.BYTES_PER_VERT);
+            for (int i = 0; i < nVerts * 3; i++) {
+                buf.putFloat((float) (verts[i] - referenceCenter[i % 3]));
+            }
+            buf.flip();
+
+            int[] counts = new int[nBlocks];
+            for (int i = 0; i < nBlocks; i++) {
+                int end = i + 1 < nBlocks ? blockFirsts[i + 1] : nVerts;
+                counts[i] = end - blockFirsts[i];
+            }
+            return new VectorTile(zoom, x, y, referenceCenter,
+                    Arrays.copyOf(blockModes, nBlocks), Arrays.copyOf(blockColors, nBlocks),
+                    Arrays.copyOf(blockFirsts, nBlocks), counts, buf);
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import gov.nasa.worldwind.avlist.AVKey;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.globes.Globe;
+import gov.nasa.worldwind.layers.AbstractLayer;
+import gov.nasa.worldwind.render.DrawContext;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws a vector tile pyramid (see {@link VectorTileBuilder}), streaming in only the tiles that are visible
+ * at the zoom level that matches the view. Tiles are read from the {@link VectorTileStore} in the background,
+ * and while a tile is loading its nearest loaded ancestor is drawn in its place.
+ * So a large dataset is drawn with a bounded number of pre-simplified vertices, no matter its size.
+ * @author Luke Bermingham
+ */
+public class VectorTileLayer extends AbstractLayer {
+
+    private static final ThreadFactory tf = r -> {
+        Thread t = new Thread(r, "VectorTileLoader");
+        t.setDaemon(true);
+        return t;
+    };
+    private static final ExecutorService exec = Executors.newFixedThreadPool(2, tf);
+
+    /**
+     * If more tiles than this are visible at a zoom, a coarser zoom is drawn instead.
+     */
+    private static final int MAX_VISIBLE_TILES = 64;
+    /**
+     * How many zoom levels up to look for a loaded tile to draw while a tile loads.
+     */
+    private static final int MAX_ANCESTOR_LEVELS = 4;
+    /**
+     * At most this many tiles are kept uploaded to the GPU.
+     */
+    private static final int MAX_GPU_TILES = 256;
+
+    private final VectorTileStore store;
+    private final Set<Long> loading = ConcurrentHashMap.newKeySet();
+
+    //only touched on the rendering thread
+    private final LinkedHashMap<Long, GLVertexBuffer> gpuTiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashSet<VectorTile> toDraw = new LinkedHashSet<>();
+    private final Set<Long> drawnThisFrame = new HashSet<>();
+
+    public VectorTileLayer(String name, VectorTileStore store){
+        this.store = store;
+        this.setName(name);
+        this.setEnabled(true);
+        this.setPickEnabled(false);
+    }
+
+    @Override
+    protected void doRender(DrawContext dc) {
+        if(store.getMaxZoom() < 0 || dc.getVisibleSector() == null){
+            return;
+        }
+        collectVisibleTiles(dc);
+        if(toDraw.isEmpty()){
+            return;
+        }
+
+        GL2 gl = dc.getGL().getGL2();
+        gl.glPushAttrib(GL2.GL_CURRENT_BIT | GL2.GL_COLOR_BUFFER_BIT | GL2.GL_LINE_BIT
+                | GL2.GL_POINT_BIT | GL2.GL_ENABLE_BIT);
+        gl.glPushClientAttrib(GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
+        try{
+            gl.glDisable(GL2.GL_LIGHTING);
+            gl.glEnable(GL.GL_BLEND);
+            gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+            gl.glLineWidth((float) GraphicsSettings.getPreferredLineWidth());
+            gl.glPointSize((float) GraphicsSettings.getPreferredPointSize());
+            gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+
+            drawnThisFrame.clear();
+            for (VectorTile tile : toDraw) {
+                drawTile(dc, gl, tile);
+            }
+
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        }finally {
+            gl.glPopClientAttrib();
+            gl.glPopAttrib();
+        }
+        trimGpuTiles(dc);
+    }
+
+    /**
+     * Fill {@link #toDraw} with the visible tiles (or their loaded ancestors) and request the missing ones.
+     */
+    private void collectVisibleTiles(DrawContext dc){
+        toDraw.clear();
+        Sector sector = dc.getVisibleSector();
+        int zoom = chooseZoom(dc);
+        int[] range = tileRange(sector, zoom);
+        //too many tiles, so go coarser
+        while(zoom > store.getMinZoom() && (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1) > MAX_VISIBLE_TILES){
+            zoom--;
+            range = tileRange(sector, zoom);
+        }
+
+        for (int x = range[0]; x <= range[2]; x++) {
+            for (int y = range[1]; y <= range[3]; y++) {
+                VectorTile tile = store.getIfLoaded(zoom, x, y);
+                if(tile == null){
+                    requestLoad(zoom, x, y);
+                    tile = loadedAncestor(zoom, x, y);
+                }
+                if(tile != null && tile != VectorTile.EMPTY){
+                    toDraw.add(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the zoom level whose pixels are the size of the pixels at the center of the view.
+     */
+    private int chooseZoom(DrawContext dc){
+        Globe globe = dc.getGlobe();
+        Position center = dc.getViewportCenterPosition();
+        double distance = center == null ? dc.getView().getEyePosition().getElevation() :
+                dc.getView().getEyePoint().distanceTo3(globe.computePointFromPosition(center));
+        double pixelSize = dc.getView().computePixelSizeAtDistance(Math.max(1, distance));
+        double zoom = Math.log((2 * Math.PI * globe.getEquatorialRadius()) /
+                (VectorTile.TILE_SIZE_PIXELS * pixelSize)) / Math.log(2);
+        return Math.max(store.getMinZoom(), Math.min(store.getMaxZoom(), (int) Math.floor(zoom)));
+    }
+
+    /**
+     * @return {minX, minY, maxX, maxY} of the tiles covering the sector at the zoom.
+     */
+    private static int[] tileRange(Sector sector, int zoom){
+        int minX = VectorTile.toTile(VectorTile.mercatorX(sector.getMinLongitude().degrees), zoom);
+        int maxX = VectorTile.toTile(VectorTile.mercatorX(sector.getMaxLongitude().degrees), zoom);
+        //mercator y grows south
+        int minY = VectorTile.toTile(VectorTile.mercatorY(sector.getMaxLatitude().degrees), zoom);
+        int maxY = VectorTile.toTile(VectorTile.mercatorY(sector.getMinLatitude().degrees), zoom);
+        return new int[]{minX, minY, maxX, maxY};
+    }
+
+    private VectorTile loadedAncestor(int zoom, int x, int y){
+        for (int i = 1; i <= MAX_ANCESTOR_LEVELS && zoom - i >= store.getMinZoom(); i++) {
+            VectorTile ancestor = store.getIfLoaded(zoom - i, x >> i, y >> i);
+            if(ancestor != null){
+                return ancestor;
+            }
+        }
+        return null;
+    }
+
+    private void requestLoad(int zoom, int x, int y){
+        long key = VectorTile.key(zoom, x, y);
+        if(!loading.add(key)){
+            return;
+        }
+        exec.execute(() -> {
+            try{
+                store.get(zoom, x, y);
+            }finally {
+                loading.remove(key);
+                //draw again so the tile shows up
+                firePropertyChange(AVKey.LAYER, null, this);
+            }
+        });
+    }
+
+    private void drawTile(DrawContext dc, GL2 gl, VectorTile tile){
+        long key = VectorTile.key(tile.getZoom(), tile.getX(), tile.getY());
+        GLVertexBuffer buffer = gpuTiles.get(key);
+        if(buffer == null){
+            buffer = new GLVertexBuffer();
+            buffer.setOwner(getName());
+            gpuTiles.put(key, buffer);
+        }
+        //upload it if it has not been uploaded yet (or it was evicted)
+        if(!buffer.isCreated()){
+            ByteBuffer vertices = tile.getVertices();
+            if(!buffer.upload(gl, vertices, vertices.limit())){
+                return;
+            }
+        }
+        if(!buffer.bind(gl)){
+            return;
+        }
+        drawnThisFrame.add(key);
+
+        double[] rc = tile.getReferenceCenter();
+        dc.getView().pushReferenceCenter(dc, new Vec4(rc[0], rc[1], rc[2]));
+        gl.glVertexPointer(3, GL.GL_FLOAT, VectorTile.BYTES_PER_VERT, 0);
+        for (int i = 0; i < tile.getNBlocks(); i++) {
+            int argb = tile.getBlockColor(i);
+            gl.glColor4ub((byte) (argb >> 16), (byte) (argb >> 8), (byte) argb, (byte) (argb >>> 24));
+            gl.glDrawArrays(tile.getBlockMode(i), tile.getBlockFirst(i), tile.getBlockCount(i));
+        }
+        dc.getView().popReferenceCenter(dc);
+    }
+
+    /**
+     * Free the least recently drawn tiles on the GPU (never the ones drawn this frame).
+     */
+    private void trimGpuTiles(DrawContext dc){
+        Iterator<Map.Entry<Long, GLVertexBuffer>> iter = gpuTiles.entrySet().iterator();
+        while(gpuTiles.size() > MAX_GPU_TILES && iter.hasNext()){
+            Map.Entry<Long, GLVertexBuffer> entry = iter.next();
+            if(drawnThisFrame.contains(entry.getKey())){
+                break;
+            }
+            entry.getValue().delete(dc);
+            iter.remove();
+        }
+    }
+
+    public VectorTileStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The number of tiles being read from disk right now.
+     */
+    public int getNLoading(){
+        return loading.size();
+    }
+
+}
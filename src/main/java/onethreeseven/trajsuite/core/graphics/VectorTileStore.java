@@ -0,0 +1,252 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The on-disk cache of a vector tile pyramid (one file per tile, in zoom/x/y folders like map tiles),
+ * with the most recently used tiles kept in memory up to a memory budget.
+ * Reading and writing tiles is safe from any thread.
+ * @author Luke Bermingham
+ */
+public class VectorTileStore {
+
+    private static final Logger logger = Logger.getLogger(VectorTileStore.class.getSimpleName());
+
+    private static final String TILE_SUFFIX = ".vtile";
+    private static final String ZOOMS_FILE = "zooms.properties";
+
+    private final File dir;
+    private int minZoom = 0;
+    private int maxZoom = -1;
+
+    //tiles in the order they were last used (least recent first), including the empty tiles
+    private final LinkedHashMap<Long, VectorTile> memoryCache = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes = 0;
+    private volatile long memoryBudgetBytes = 256L * 1024L * 1024L;
+
+    /**
+     * @param dir the folder the tiles are stored in, it is made if it does not exist.
+     */
+    public VectorTileStore(File dir){
+        this.dir = dir;
+        if(!dir.exists() && !dir.mkdirs()){
+            logger.warning("Could not make the vector tile folder: " + dir);
+        }
+        readZooms();
+    }
+
+    /**
+     * @return The tile (from memory or disk), or null if there is no such tile.
+     */
+    public VectorTile get(int zoom, int x, int y){
+        VectorTile tile = getIfLoaded(zoom, x, y);
+        if(tile == null){
+            tile = VectorTile.EMPTY;
+            File file = tileFile(zoom, x, y);
+            if(file.exists()){
+                try {
+                    tile = VectorTile.read(file);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Could not read the vector tile: " + file, e);
+                }
+            }
+            remember(VectorTile.key(zoom, x, y), tile);
+        }
+        return tile == VectorTile.EMPTY ? null : tile;
+    }
+
+    /**
+     * @return The tile if it is in memory, {@link VectorTile#EMPTY} if it is known to not exist,
+     * or null if it has not been read from disk.
+     */
+    VectorTile getIfLoaded(int zoom, int x, int y){
+        synchronized (memoryCache){
+            return memoryCache.get(VectorTile.key(zoom, x, y));
+        }
+    }
+
+    /**
+     * Write a tile to disk (replacing any tile with the same key).
+     * @param tile the tile
+     * @throws IOException if it could not be written
+     */
+    public void put(VectorTile tile) throws IOException {
+        File file = tileFile(tile.getZoom(), tile.getX(), tile.getY());
+        File parent = file.getParentFile();
+        if(!parent.exists() && !parent.mkdirs()){
+            throw new IOException("Could not make the folder: " + parent);
+        }
+        tile.write(file);
+        //drop the stale copy, it is read again when it is needed
+        forget(VectorTile.key(tile.getZoom(), tile.getX(), tile.getY()));
+    }
+
+    private void remember(long key, VectorTile tile){
+        synchronized (memoryCache){
+            VectorTile prev = memoryCache.put(key, tile);
+            if(prev != null){
+                memoryBytes -= prev.getSizeBytes();
+            }
+            memoryBytes += tile.getSizeBytes();
+            Iterator<VectorTile> iter = memoryCache.values().iterator();
+            while(memoryBytes > memoryBudgetBytes && iter.hasNext()){
+                VectorTile eldest = iter.next();
+                if(eldest == tile){
+                    break;
+                }
+                memoryBytes -= eldest.getSizeBytes();
+                iter.remove();
+            }
+        }
+    }
+
+    private void forget(long key){
+        synchronized (memoryCache){
+            VectorTile prev = memoryCache.remove(key);
+            if(prev != null){
+                memoryBytes -= prev.getSizeBytes();
+            }
+        }
+    }
+
+    /**
+     * Empty the memory cache (the tiles on disk are kept).
+     */
+    public void clearMemory(){
+        synchronized (memoryCache){
+            memoryCache.clear();
+            memoryBytes = 0;
+        }
+    }
+
+    /**
+     * Delete every tile (on disk and in memory) and forget the zoom range, i.e before building a new pyramid
+     * into this folder, so no tiles of the old pyramid are left to be drawn as data.
+     * Only the files of the pyramid are deleted, anything else in the folder is left alone.
+     * @throws IOException if a tile could not be deleted
+     */
+    public void clear() throws IOException {
+        clearMemory();
+        File[] zoomDirs = dir.listFiles(file -> file.isDirectory() && file.getName().matches("\\d+"));
+        if(zoomDirs != null){
+            for (File zoomDir : zoomDirs) {
+                deleteTiles(zoomDir);
+            }
+        }
+        File zoomsFile = new File(dir, ZOOMS_FILE);
+        if(zoomsFile.exists() && !zoomsFile.delete()){
+            throw new IOException("Could not delete: " + zoomsFile);
+        }
+        minZoom = 0;
+        maxZoom = -1;
+    }
+
+    /**
+     * Delete the tiles in a zoom (or x) folder, then the folder if that leaves it empty.
+     */
+    private static void deleteTiles(File folder) throws IOException {
+        File[] files = folder.listFiles();
+        if(files != null){
+            for (File file : files) {
+                if(file.isDirectory()){
+                    deleteTiles(file);
+                }else if(file.getName().endsWith(TILE_SUFFIX) && !file.delete()){
+                    throw new IOException("Could not delete the vector tile: " + file);
+                }
+            }
+        }
+        String[] left = folder.list();
+        if(left != null && left.length == 0 && !folder.delete()){
+            throw new IOException("Could not delete the folder: " + folder);
+        }
+    }
+
+    private File tileFile(int zoom, int x, int y){
+        return new File(dir, zoom + File.separator + x + File.separator + y + TILE_SUFFIX);
+    }
+
+    ////////////////////////
+    //Zoom range
+    ////////////////////////
+
+    /**
+     * @param minZoom the coarsest zoom level that has tiles.
+     * @param maxZoom the finest zoom level that has tiles.
+     */
+    public void setZooms(int minZoom, int maxZoom){
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        try(PrintWriter pw = new PrintWriter(new FileWriter(new File(dir, ZOOMS_FILE)))){
+            pw.println("minZoom=" + minZoom);
+            pw.println("maxZoom=" + maxZoom);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write the zoom levels of the vector tiles.", e);
+        }
+    }
+
+    private void readZooms(){
+        File file = new File(dir, ZOOMS_FILE);
+        if(!file.exists()){
+            return;
+        }
+        try(BufferedReader br = new BufferedReader(new FileReader(file))){
+            String line;
+            while((line = br.readLine()) != null){
+                String[] parts = line.split("=");
+                if(parts.length != 2){
+                    continue;
+                }
+                if(parts[0].trim().equals("minZoom")){
+                    minZoom = Integer.parseInt(parts[1].trim());
+                }else if(parts[0].trim().equals("maxZoom")){
+                    maxZoom = Integer.parseInt(parts[1].trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.log(Level.WARNING, "Could not read the zoom levels of the vector tiles.", e);
+        }
+    }
+
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * @return the finest zoom level that has tiles, or -1 if the pyramid has not been built.
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getMemoryBytes(){
+        synchronized (memoryCache){
+            return memoryBytes;
+        }
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * @param memoryBudgetBytes the most bytes of tiles to keep in memory.
+     */
+    public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "VectorTileStore{" + dir + ", zooms=" + minZoom + "-" + maxZoom +
+                ", memory=" + (getMemoryBytes() / 1024) + "KB}";
+    }
+}
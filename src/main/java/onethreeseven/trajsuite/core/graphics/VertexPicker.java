@@ -0,0 +1,418 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import gov.nasa.worldwind.geom.Matrix;
+import gov.nasa.worldwind.geom.Position;
+import gov.nasa.worldwind.geom.Vec4;
+import gov.nasa.worldwind.pick.PickedObject;
+import gov.nasa.worldwind.render.DrawContext;
+import onethreeseven.trajsuitePlugin.graphics.RenderingModes;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Picks the entity and the vertex under the cursor by drawing into a tiny offscreen framebuffer
+ * that only covers the pixels around the pick point.
+ * The first pass draws each candidate in a unique color to find which entity is nearest the pick point,
+ * the second pass draws only that entity with a per-vertex id buffer (a shared ramp of 32-bit ids) to find the vertex.
+ * Finally the vertex is refined on the CPU to whichever end of the picked segment is nearest the pick point.
+ * Only a few pixels are read back, so picking stays fast even when the candidates have millions of vertices.
+ * @author Luke Bermingham
+ */
+public class VertexPicker {
+
+    /**
+     * The key of the picked vertex index in the {@link PickedObject} made by {@link #addPickedObject}.
+     */
+    public static final String VERTEX_INDEX_KEY = "onethreeseven.trajsuite.VertexIndex";
+
+    /**
+     * The framebuffer covers this many pixels either side of the pick point.
+     */
+    private static final int PICK_RADIUS = 4;
+    private static final int PICK_SIZE = PICK_RADIUS * 2 + 1;
+    /**
+     * Lines/points are drawn at least this wide when picking, so they are easier to hit.
+     */
+    private static final float MIN_PICK_WIDTH = 3;
+
+    /**
+     * The pixels of the framebuffer, nearest the center first.
+     */
+    private static final int[] PIXELS_BY_DISTANCE = IntStream.range(0, PICK_SIZE * PICK_SIZE).boxed()
+            .sorted(Comparator.comparingInt(VertexPicker::distanceToCenterSq))
+            .mapToInt(Integer::intValue).toArray();
+
+    /**
+     * The result of a pick.
+     */
+    public static final class Pick {
+        private final int candidateIdx;
+        private final GLVboRenderable renderable;
+        private final int vertexIndex;
+        private final Vec4 vertexPoint;
+
+        private Pick(int candidateIdx, GLVboRenderable renderable, int vertexIndex, Vec4 vertexPoint) {
+            this.candidateIdx = candidateIdx;
+            this.renderable = renderable;
+            this.vertexIndex = vertexIndex;
+            this.vertexPoint = vertexPoint;
+        }
+
+        /**
+         * @return the index of the picked renderable in the candidates.
+         */
+        public int getCandidateIdx() {
+            return candidateIdx;
+        }
+
+        public GLVboRenderable getRenderable() {
+            return renderable;
+        }
+
+        /**
+         * @return the index of the picked vertex in the renderable's vertex data.
+         */
+        public int getVertexIndex() {
+            return vertexIndex;
+        }
+
+        /**
+         * @return the position of the picked vertex in world coordinates.
+         */
+        public Vec4 getVertexPoint() {
+            return vertexPoint;
+        }
+    }
+
+    private int framebufferId = 0;
+    private int colorRenderbufferId = 0;
+    private int depthRenderbufferId = 0;
+    private final GLVertexBuffer idBuffer = new GLVertexBuffer();
+    private int idBufferNVerts = 0;
+    private final ByteBuffer pixels = Buffers.newDirectByteBuffer(PICK_SIZE * PICK_SIZE * 4);
+    private final double[] matrixArr = new double[16];
+
+    public VertexPicker(){
+        idBuffer.setOwner("picking");
+    }
+
+    /**
+     * Find the renderable and vertex under the pick point.
+     * @param dc the draw context (in picking mode)
+     * @param pickPoint the pick point, in AWT screen coordinates.
+     * @param candidates the renderables that may be under the pick point, i.e the ones in the pick frustum.
+     * @return the pick, or null if nothing is under the pick point.
+     */
+    public Pick pick(DrawContext dc, Point pickPoint, List<GLVboRenderable> candidates){
+        return pick(dc, pickPoint, candidates, null);
+    }
+
+    /**
+     * Find the renderable and vertex under the pick point.
+     * @param dc the draw context (in picking mode)
+     * @param pickPoint the pick point, in AWT screen coordinates.
+     * @param candidates the renderables that may be under the pick point, i.e the ones in the pick frustum.
+     * @param batchRenderer draws the candidates that are batched (they have no vertex buffer of their own), or null.
+     * @return the pick, or null if nothing is under the pick point.
+     */
+    public Pick pick(DrawContext dc, Point pickPoint, List<GLVboRenderable> candidates, GLBatchRenderer batchRenderer){
+        if(pickPoint == null || candidates.isEmpty()){
+            return null;
+        }
+        GL2 gl = dc.getGL().getGL2();
+        Rectangle viewport = dc.getView().getViewport();
+        //gl window coordinates go up from the bottom
+        int pickX = pickPoint.x;
+        int pickY = viewport.height - pickPoint.y - 1;
+
+        if(!ensureFramebuffer(gl)){
+            return null;
+        }
+
+        int[] prevFramebuffer = new int[1];
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, prevFramebuffer, 0);
+        gl.glPushAttrib(GL2.GL_ALL_ATTRIB_BITS);
+        gl.glPushClientAttrib(GL2.GL_CLIENT_VERTEX_ARRAY_BIT);
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glPushMatrix();
+        try{
+            gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId);
+            gl.glViewport(0, 0, PICK_SIZE, PICK_SIZE);
+            setupState(gl);
+            loadPickProjection(dc, gl, viewport, pickX, pickY);
+            gl.glMatrixMode(GL2.GL_MODELVIEW);
+
+            //pass 1: which candidate is nearest the pick point
+            gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+            for (int i = 0; i < candidates.size(); i++) {
+                int code = i + 1;
+                gl.glColor4ub((byte) (code & 0xff), (byte) ((code >> 8) & 0xff), (byte) ((code >> 16) & 0xff), (byte) 255);
+                setPickWidth(gl, candidates.get(i));
+                draw(dc, candidates.get(i), null, batchRenderer);
+            }
+            int candidateIdx = readNearestCode(gl, 0x00ffffff) - 1;
+            if(candidateIdx < 0 || candidateIdx >= candidates.size()){
+                return null;
+            }
+            GLVboRenderable picked = candidates.get(candidateIdx);
+
+            //pass 2: which vertex of the picked candidate is nearest the pick point
+            if(!ensureIdBuffer(gl, picked.packedVertexData.getNVerts())){
+                return null;
+            }
+            gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+            setPickWidth(gl, picked);
+            draw(dc, picked, idBuffer, batchRenderer);
+            int vertexIdx = readNearestCode(gl, 0xffffffff) - 1;
+            if(vertexIdx < 0){
+                return null;
+            }
+            vertexIdx = refine(dc, picked, vertexIdx, pickX, pickY);
+            return new Pick(candidateIdx, picked, vertexIdx, picked.getVertexPoint(vertexIdx));
+        }finally {
+            gl.glMatrixMode(GL2.GL_PROJECTION);
+            gl.glPopMatrix();
+            gl.glMatrixMode(GL2.GL_MODELVIEW);
+            gl.glPopClientAttrib();
+            gl.glPopAttrib();
+            gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, prevFramebuffer[0]);
+        }
+    }
+
+    /**
+     * Add the pick to WorldWind's picked objects, so select listeners (i.e hover tooltips) receive it.
+     * The picked vertex is also drawn into the pick buffer in the pick color, so it resolves as the top pick.
+     * @param dc the draw context (in picking mode)
+     * @param pickPoint the pick point
+     * @param pick the pick
+     * @param userObject the object that was picked, i.e the entity.
+     * @param parentLayer the layer doing the picking.
+     * @return the picked object, its {@link #VERTEX_INDEX_KEY} value is the vertex index.
+     */
+    public PickedObject addPickedObject(DrawContext dc, Point pickPoint, Pick pick, Object userObject,
+                                        gov.nasa.worldwind.layers.Layer parentLayer){
+        GL2 gl = dc.getGL().getGL2();
+        Color color = dc.getUniquePickColor();
+        Position position = pick.vertexPoint == null ? null : dc.getGlobe().computePositionFromPoint(pick.vertexPoint);
+        PickedObject po = new PickedObject(pickPoint, color.getRGB(), userObject, position, false);
+        po.setParentLayer(parentLayer);
+        po.setValue(VERTEX_INDEX_KEY, pick.vertexIndex);
+        dc.addPickedObject(po);
+
+        if(pick.vertexPoint != null){
+            gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_CURRENT_BIT | GL2.GL_POINT_BIT);
+            try{
+                gl.glDisable(GL.GL_DEPTH_TEST);
+                gl.glPointSize(PICK_SIZE);
+                gl.glColor3ub((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
+                dc.getView().pushReferenceCenter(dc, pick.vertexPoint);
+                gl.glBegin(GL.GL_POINTS);
+                gl.glVertex3d(0, 0, 0);
+                gl.glEnd();
+                dc.getView().popReferenceCenter(dc);
+            }finally {
+                gl.glPopAttrib();
+            }
+        }
+        return po;
+    }
+
+    private static void draw(DrawContext dc, GLVboRenderable candidate, GLVertexBuffer idBuffer,
+                             GLBatchRenderer batchRenderer){
+        if(batchRenderer == null || !batchRenderer.drawForPicking(dc, candidate, idBuffer)){
+            candidate.drawForPicking(dc, idBuffer);
+        }
+    }
+
+    /**
+     * The id pass is flat shaded, so a segment has the id of one of its ends.
+     * Choose the end that is nearest the pick point.
+     */
+    private static int refine(DrawContext dc, GLVboRenderable picked, int vertexIdx, int pickX, int pickY){
+        RenderingModes mode = picked.getPayload().renderingMode.get();
+        if(mode.equals(RenderingModes.POINTS)){
+            return vertexIdx;
+        }
+        int best = vertexIdx;
+        double bestDistSq = Double.POSITIVE_INFINITY;
+        for (int candidate = vertexIdx - 1; candidate <= vertexIdx + 1; candidate++) {
+            Vec4 point = picked.getVertexPoint(candidate);
+            if(point == null){
+                continue;
+            }
+            Vec4 screen = dc.getView().project(point);
+            if(screen == null){
+                continue;
+            }
+            double dx = screen.x - pickX;
+            double dy = screen.y - pickY;
+            double distSq = dx * dx + dy * dy;
+            if(distSq < bestDistSq){
+                bestDistSq = distSq;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static void setupState(GL2 gl){
+        //ids must be written exactly as they are
+        gl.glDisable(GL.GL_BLEND);
+        gl.glDisable(GL.GL_DITHER);
+        gl.glDisable(GL2.GL_LIGHTING);
+        gl.glDisable(GL2.GL_FOG);
+        gl.glDisable(GL.GL_TEXTURE_2D);
+        gl.glDisable(GL.GL_SCISSOR_TEST);
+        gl.glDisable(GL2.GL_POINT_SMOOTH);
+        gl.glDisable(GL.GL_LINE_SMOOTH);
+        gl.glDisable(GL2.GL_COLOR_MATERIAL);
+        gl.glShadeModel(GL2.GL_FLAT);
+        gl.glEnable(GL.GL_DEPTH_TEST);
+        gl.glDepthFunc(GL.GL_LEQUAL);
+        gl.glDepthMask(true);
+        gl.glColorMask(true, true, true, true);
+        gl.glClearColor(0, 0, 0, 0);
+        gl.glClearDepth(1);
+    }
+
+    private static void setPickWidth(GL2 gl, GLVboRenderable renderable){
+        float width = Math.max(MIN_PICK_WIDTH, renderable.getPayload().pointOrLineSize.get());
+        gl.glLineWidth(width);
+        gl.glPointSize(width);
+    }
+
+    /**
+     * Load a projection that maps the pixels around the pick point onto the whole framebuffer (like gluPickMatrix).
+     */
+    private void loadPickProjection(DrawContext dc, GL2 gl, Rectangle viewport, int pickX, int pickY){
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glLoadIdentity();
+        gl.glTranslated(
+                (viewport.width - 2.0 * (pickX - viewport.x)) / PICK_SIZE,
+                (viewport.height - 2.0 * (pickY - viewport.y)) / PICK_SIZE,
+                0);
+        gl.glScaled(viewport.width / (double) PICK_SIZE, viewport.height / (double) PICK_SIZE, 1.0);
+        Matrix projection = dc.getView().getProjectionMatrix();
+        projection.toArray(matrixArr, 0, false);
+        gl.glMultMatrixd(matrixArr, 0);
+    }
+
+    /**
+     * Read back the framebuffer and find the non-zero code nearest the center.
+     * @param mask the bits of each pixel that hold the code.
+     * @return the code, or 0 if nothing was drawn.
+     */
+    private int readNearestCode(GL2 gl, int mask){
+        pixels.clear();
+        gl.glPixelStorei(GL.GL_PACK_ALIGNMENT, 1);
+        gl.glReadPixels(0, 0, PICK_SIZE, PICK_SIZE, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, pixels);
+        for (int pixel : PIXELS_BY_DISTANCE) {
+            int i = pixel * 4;
+            int code = (pixels.get(i) & 0xff) |
+                    ((pixels.get(i + 1) & 0xff) << 8) |
+                    ((pixels.get(i + 2) & 0xff) << 16) |
+                    ((pixels.get(i + 3) & 0xff) << 24);
+            code &= mask;
+            if(code != 0){
+                return code;
+            }
+        }
+        return 0;
+    }
+
+    private static int distanceToCenterSq(int pixel){
+        int dx = pixel % PICK_SIZE - PICK_RADIUS;
+        int dy = pixel / PICK_SIZE - PICK_RADIUS;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Make sure the shared id buffer has an id for every vertex, vertex i has the id i + 1 (0 means nothing).
+     */
+    private boolean ensureIdBuffer(GL2 gl, int nVerts){
+        if(!idBuffer.isCreated()){
+            //evicted (or never made), so start again from the size needed
+            idBufferNVerts = 0;
+        }else if(idBufferNVerts >= nVerts){
+            return true;
+        }
+        //grow by doubling so the ramp is not rebuilt for every slightly bigger entity
+        int size = Math.max(nVerts, idBufferNVerts * 2);
+        ByteBuffer ids = Buffers.newDirectByteBuffer(size * 4);
+        for (int i = 0; i < size; i++) {
+            int id = i + 1;
+            ids.put((byte) (id & 0xff));
+            ids.put((byte) ((id >> 8) & 0xff));
+            ids.put((byte) ((id >> 16) & 0xff));
+            ids.put((byte) ((id >> 24) & 0xff));
+        }
+        ids.flip();
+        if(!idBuffer.upload(gl, ids, ids.limit())){
+            return false;
+        }
+        idBufferNVerts = size;
+        return true;
+    }
+
+    private boolean ensureFramebuffer(GL2 gl){
+        if(framebufferId != 0){
+            return true;
+        }
+        if(!gl.isExtensionAvailable("GL_ARB_framebuffer_object") && !gl.isExtensionAvailable("GL_EXT_framebuffer_object")){
+            return false;
+        }
+        int[] ids = new int[2];
+        gl.glGenFramebuffers(1, ids, 0);
+        framebufferId = ids[0];
+        gl.glGenRenderbuffers(2, ids, 0);
+        colorRenderbufferId = ids[0];
+        depthRenderbufferId = ids[1];
+
+        int[] prevFramebuffer = new int[1];
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, prevFramebuffer, 0);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, colorRenderbufferId);
+        gl.glRenderbufferStorage(GL.GL_RENDERBUFFER, GL.GL_RGBA8, PICK_SIZE, PICK_SIZE);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, depthRenderbufferId);
+        gl.glRenderbufferStorage(GL.GL_RENDERBUFFER, GL.GL_DEPTH_COMPONENT24, PICK_SIZE, PICK_SIZE);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, 0);
+
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebufferId);
+        gl.glFramebufferRenderbuffer(GL.GL_FRAMEBUFFER, GL.GL_COLOR_ATTACHMENT0, GL.GL_RENDERBUFFER, colorRenderbufferId);
+        gl.glFramebufferRenderbuffer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, GL.GL_RENDERBUFFER, depthRenderbufferId);
+        boolean complete = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER) == GL.GL_FRAMEBUFFER_COMPLETE;
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, prevFramebuffer[0]);
+        if(!complete){
+            dispose(gl);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Free the framebuffer and the id buffer.
+     * @param dc the draw context
+     */
+    public void dispose(DrawContext dc){
+        dispose(dc.getGL().getGL2());
+        idBuffer.delete(dc);
+        idBufferNVerts = 0;
+    }
+
+    private void dispose(GL2 gl){
+        if(framebufferId != 0){
+            gl.glDeleteFramebuffers(1, new int[]{framebufferId}, 0);
+            gl.glDeleteRenderbuffers(2, new int[]{colorRenderbufferId, depthRenderbufferId}, 0);
+            framebufferId = 0;
+            colorRenderbufferId = 0;
+            depthRenderbufferId = 0;
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import onethreeseven.trajsuitePlugin.graphics.PackedVertexData;
+
+import java.nio.DoubleBuffer;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Packs the vertex data of {@link GLVboRenderable} on worker threads, so the OpenGL thread
+ * never stalls on packing (i.e {@code GraphicsPayload.createVertexData(model)}).
+ * Finished vertex data is handed back through a lock-free queue that the OpenGL thread drains
+ * each frame, after that the OpenGL thread only has to upload it.
+ * @author Luke Bermingham
+ */
+public final class VertexPreparationExecutor {
+
+    private static final Logger logger = Logger.getLogger(VertexPreparationExecutor.class.getSimpleName());
+
+    private static final VertexPreparationExecutor instance = new VertexPreparationExecutor();
+
+    public static VertexPreparationExecutor getInstance() {
+        return instance;
+    }
+
+    /**
+     * Vertex data that has been packed (or failed to pack) and is waiting for the OpenGL thread.
+     */
+    private static final class Prepared {
+        private final GLVboRenderable target;
+        private final long version;
+        private final int[] dirtyRange;
+        private final PackedVertexData vertexData;
+        private final DoubleBuffer vertexBuffer;
+        private final Throwable error;
+
+        private Prepared(GLVboRenderable target, long version, int[] dirtyRange,
+                         PackedVertexData vertexData, DoubleBuffer vertexBuffer, Throwable error) {
+            this.target = target;
+            this.version = version;
+            this.dirtyRange = dirtyRange;
+            this.vertexData = vertexData;
+            this.vertexBuffer = vertexBuffer;
+            this.error = error;
+        }
+    }
+
+    private final ExecutorService exec;
+    private final Queue<Prepared> completed = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> onPreparedListeners = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nInFlight = new AtomicInteger(0);
+
+    private VertexPreparationExecutor(){
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, "VertexPreparation-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        //leave a core for the OpenGL thread
+        int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.exec = Executors.newFixedThreadPool(nThreads, tf);
+    }
+
+    /**
+     * Pack some vertex data on a worker thread.
+     * @param target the renderable the vertex data is for.
+     * @param version increases with each request made by the target, so out of order results can be dropped.
+     * @param dirtyRange the range of vertices that changed {from, to}, or null if they all changed.
+     * @param packer makes the vertex data (this is the slow part).
+     */
+    void submit(GLVboRenderable target, long version, int[] dirtyRange, Supplier<PackedVertexData> packer){
+        nInFlight.incrementAndGet();
+        exec.execute(() -> {
+            //the renderable must always hear back (even about an Error), or it waits on this request forever
+            Prepared prepared;
+            try{
+                PackedVertexData vertexData = packer.get();
+                DoubleBuffer vertexBuffer = vertexData.flushBuffer();
+                prepared = new Prepared(target, version, dirtyRange, vertexData, vertexBuffer, null);
+            }catch (Throwable e){
+                prepared = new Prepared(target, version, dirtyRange, null, null, e);
+            }
+            completed.add(prepared);
+            nInFlight.decrementAndGet();
+            //get the OpenGL thread to draw a frame, so it picks up the vertex data
+            for (Runnable listener : onPreparedListeners) {
+                listener.run();
+            }
+        });
+    }
+
+    /**
+     * Hand all the finished vertex data to their renderables, must be called on the OpenGL thread.
+     * @return The number of renderables that received vertex data.
+     */
+    public int drainCompleted(){
+        int nDrained = 0;
+        Prepared prepared;
+        while((prepared = completed.poll()) != null){
+            if(prepared.error != null){
+                logger.log(Level.SEVERE, "Could not create the vertex data of a renderable.", prepared.error);
+            }
+            prepared.target.onVertexDataPrepared(prepared.version, prepared.vertexData,
+                    prepared.vertexBuffer, prepared.dirtyRange);
+            nDrained++;
+        }
+        return nDrained;
+    }
+
+    /**
+     * @param listener called (on a worker thread) when some vertex data is ready, i.e to request a redraw.
+     */
+    public void addOnPreparedListener(Runnable listener){
+        onPreparedListeners.add(listener);
+    }
+
+    public void removeOnPreparedListener(Runnable listener){
+        onPreparedListeners.remove(listener);
+    }
+
+    /**
+     * @return The number of renderables whose vertex data is being packed right now.
+     */
+    public int getNInFlight(){
+        return nInFlight.get();
+    }
+
+}
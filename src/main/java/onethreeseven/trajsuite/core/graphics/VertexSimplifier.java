@@ -0,0 +1,128 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Simplifies packed vertex data (a line strip) with Douglas-Peucker on the vertex positions.
+ * Whole vertices are kept or dropped, so any per-vertex colors/normals are kept with their positions.
+ * @author Luke Bermingham
+ */
+final class VertexSimplifier {
+
+    private VertexSimplifier() {
+    }
+
+    /**
+     * Find the vertices to keep so the simplified strip is within the tolerance of the original.
+     * @param data the packed vertex data (double precision, read with absolute gets so it is not modified).
+     * @param valuesPerVert the number of values in each vertex.
+     * @param positionOffset the offset of the x,y,z position within each vertex.
+     * @param nVerts the number of vertices.
+     * @param tolerance the maximum distance (in world units, i.e metres) a dropped vertex can be from the simplified strip.
+     * @return the indices of the vertices to keep, in order (the first and last are always kept).
+     */
+    static int[] simplify(DoubleBuffer data, int valuesPerVert, int positionOffset, int nVerts, double tolerance){
+        if(nVerts <= 2){
+            int[] all = new int[nVerts];
+            for (int i = 0; i < nVerts; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        boolean[] keep = new boolean[nVerts];
+        keep[0] = true;
+        keep[nVerts - 1] = true;
+        double toleranceSq = tolerance * tolerance;
+
+        //iterative, so very long strips do not overflow the call stack
+        int[] stack = new int[64];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = nVerts - 1;
+        while(stackSize > 0){
+            int end = stack[--stackSize];
+            int start = stack[--stackSize];
+            if(end - start < 2){
+                continue;
+            }
+            int startIdx = start * valuesPerVert + positionOffset;
+            int endIdx = end * valuesPerVert + positionOffset;
+            double ax = data.get(startIdx), ay = data.get(startIdx + 1), az = data.get(startIdx + 2);
+            double abx = data.get(endIdx) - ax, aby = data.get(endIdx + 1) - ay, abz = data.get(endIdx + 2) - az;
+            double abLenSq = abx * abx + aby * aby + abz * abz;
+
+            int furthest = -1;
+            double furthestDistSq = toleranceSq;
+            for (int i = start + 1; i < end; i++) {
+                int idx = i * valuesPerVert + positionOffset;
+                double distSq = distanceToSegmentSq(
+                        data.get(idx) - ax, data.get(idx + 1) - ay, data.get(idx + 2) - az,
+                        abx, aby, abz, abLenSq);
+                if(distSq > furthestDistSq){
+                    furthestDistSq = distSq;
+                    furthest = i;
+                }
+            }
+
+            if(furthest != -1){
+                keep[furthest] = true;
+                if(stackSize + 4 > stack.length){
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[stackSize++] = start;
+                stack[stackSize++] = furthest;
+                stack[stackSize++] = furthest;
+                stack[stackSize++] = end;
+            }
+        }
+
+        int nKept = 0;
+        for (boolean k : keep) {
+            if(k){
+                nKept++;
+            }
+        }
+        int[] kept = new int[nKept];
+        int j = 0;
+        for (int i = 0; i < nVerts; i++) {
+            if(keep[i]){
+                kept[j++] = i;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * @return the squared distance from point p to segment ab, where p and b are given relative to a.
+     */
+    private static double distanceToSegmentSq(double px, double py, double pz,
+                                              double bx, double by, double bz, double bLenSq){
+        double t = bLenSq > 0 ? (px * bx + py * by + pz * bz) / bLenSq : 0;
+        t = Math.max(0, Math.min(1, t));
+        double dx = px - t * bx;
+        double dy = py - t * by;
+        double dz = pz - t * bz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Copy only the kept vertices (all their values) into a new buffer.
+     * @param data the packed vertex data.
+     * @param valuesPerVert the number of values in each vertex.
+     * @param kept the indices of the vertices to keep.
+     * @return a new buffer holding only the kept vertices, ready to read from (position 0).
+     */
+    static DoubleBuffer gather(DoubleBuffer data, int valuesPerVert, int[] kept){
+        DoubleBuffer out = DoubleBuffer.allocate(kept.length * valuesPerVert);
+        for (int vert : kept) {
+            int idx = vert * valuesPerVert;
+            for (int n = 0; n < valuesPerVert; n++) {
+                out.put(data.get(idx + n));
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+}
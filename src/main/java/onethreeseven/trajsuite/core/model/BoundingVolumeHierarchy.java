@@ -0,0 +1,266 @@
+package onethreeseven.trajsuite.core.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A bounding volume hierarchy over axis-aligned boxes.
+ * Queries only visit the branches of the tree whose boxes pass the given test (i.e intersect the view frustum),
+ * so the cost of a query grows with the number of results rather than with the number of items.
+ * Items can be inserted and removed at any time, recently inserted items are kept in a small pending list
+ * and the tree is rebuilt (lazily, at query time) once enough items have been inserted or removed.
+ * @param <T> The type of item being indexed, items are compared by identity.
+ * @author Luke Bermingham
+ */
+public class BoundingVolumeHierarchy<T> {
+
+    /**
+     * A test that decides whether a query should visit an axis-aligned box.
+     */
+    @FunctionalInterface
+    public interface BoxTest {
+        /**
+         * @param min the minimum corner of the box {x,y,z}
+         * @param max the maximum corner of the box {x,y,z}
+         * @return True if the box should be visited.
+         */
+        boolean intersects(double[] min, double[] max);
+    }
+
+    private static final int LEAF_SIZE = 8;
+    private static final int MIN_REBUILD_THRESHOLD = 32;
+
+    private static final class Item<T> {
+        private final T value;
+        private final double[] min;
+        private final double[] max;
+        private boolean inTree = false;
+        private boolean removed = false;
+
+        private Item(T value, double[] min, double[] max) {
+            this.value = value;
+            this.min = min;
+            this.max = max;
+        }
+
+        private double center(int axis){
+            return (min[axis] + max[axis]) * 0.5;
+        }
+    }
+
+    private final Map<T, Item<T>> items = new IdentityHashMap<>();
+    private final ArrayList<Item<T>> pending = new ArrayList<>();
+
+    //the tree, stored as flat arrays
+    private Item<T>[] treeItems = newItemArray(0);
+    private int nRemovedInTree = 0;
+    private double[] nodeMin = new double[0];
+    private double[] nodeMax = new double[0];
+    private int[] nodeLeft = new int[0];
+    private int[] nodeRight = new int[0];
+    private int[] nodeStart = new int[0];
+    private int[] nodeCount = new int[0];
+    private int nNodes = 0;
+    //re-used by each query so traversal does not allocate
+    private int[] stack = new int[64];
+    private final double[] scratchMin = new double[3];
+    private final double[] scratchMax = new double[3];
+
+    /**
+     * Insert an item into the hierarchy, if it is already in the hierarchy its box is updated.
+     * @param value the item
+     * @param min the minimum corner of its box {x,y,z}
+     * @param max the maximum corner of its box {x,y,z}
+     */
+    public void insert(T value, double[] min, double[] max){
+        remove(value);
+        Item<T> item = new Item<>(value, min.clone(), max.clone());
+        items.put(value, item);
+        pending.add(item);
+    }
+
+    /**
+     * @param value the item to remove
+     * @return True if the item was in the hierarchy.
+     */
+    public boolean remove(T value){
+        Item<T> item = items.remove(value);
+        if(item == null){
+            return false;
+        }
+        if(item.inTree){
+            item.removed = true;
+            nRemovedInTree++;
+        }else{
+            pending.remove(item);
+        }
+        return true;
+    }
+
+    /**
+     * Remove every item that does not pass the given test.
+     * @param keep the test, items failing it are removed.
+     */
+    public void retainIf(Predicate<T> keep){
+        ArrayList<T> toRemove = new ArrayList<>();
+        for (T value : items.keySet()) {
+            if(!keep.test(value)){
+                toRemove.add(value);
+            }
+        }
+        for (T value : toRemove) {
+            remove(value);
+        }
+    }
+
+    public boolean contains(T value){
+        return items.containsKey(value);
+    }
+
+    public int size(){
+        return items.size();
+    }
+
+    public void clear(){
+        items.clear();
+        pending.clear();
+        treeItems = newItemArray(0);
+        nRemovedInTree = 0;
+        nNodes = 0;
+    }
+
+    /**
+     * Visit every item whose box passes the test.
+     * @param test the box test, i.e does the box intersect the view frustum.
+     * @param visitor receives each item that passes the test.
+     */
+    public void query(BoxTest test, Consumer<T> visitor){
+        int nLive = treeItems.length - nRemovedInTree;
+        int threshold = Math.max(MIN_REBUILD_THRESHOLD, nLive / 4);
+        if(pending.size() > threshold || nRemovedInTree > threshold){
+            rebuild();
+        }
+
+        //traverse the tree
+        if(nNodes > 0){
+            int stackSize = 0;
+            stack[stackSize++] = 0;
+            while(stackSize > 0){
+                int node = stack[--stackSize];
+                System.arraycopy(nodeMin, node * 3, scratchMin, 0, 3);
+                System.arraycopy(nodeMax, node * 3, scratchMax, 0, 3);
+                if(!test.intersects(scratchMin, scratchMax)){
+                    continue;
+                }
+                if(nodeLeft[node] < 0){
+                    int end = nodeStart[node] + nodeCount[node];
+                    for (int i = nodeStart[node]; i < end; i++) {
+                        Item<T> item = treeItems[i];
+                        if(!item.removed && test.intersects(item.min, item.max)){
+                            visitor.accept(item.value);
+                        }
+                    }
+                }else{
+                    if(stackSize + 2 > stack.length){
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = nodeLeft[node];
+                    stack[stackSize++] = nodeRight[node];
+                }
+            }
+        }
+
+        //check the items that have not made it into the tree yet
+        for (Item<T> item : pending) {
+            if(test.intersects(item.min, item.max)){
+                visitor.accept(item.value);
+            }
+        }
+    }
+
+    /**
+     * Build the tree from scratch using all the live items.
+     */
+    private void rebuild(){
+        Item<T>[] live = newItemArray(items.size());
+        int i = 0;
+        for (Item<T> item : items.values()) {
+            item.inTree = true;
+            live[i++] = item;
+        }
+        pending.clear();
+        nRemovedInTree = 0;
+        treeItems = live;
+
+        //splitting at the median means every leaf has at least LEAF_SIZE / 2 items
+        int maxNodes = 2 * (live.length / (LEAF_SIZE / 2) + 1);
+        nodeMin = new double[maxNodes * 3];
+        nodeMax = new double[maxNodes * 3];
+        nodeLeft = new int[maxNodes];
+        nodeRight = new int[maxNodes];
+        nodeStart = new int[maxNodes];
+        nodeCount = new int[maxNodes];
+        nNodes = 0;
+        if(live.length > 0){
+            build(0, live.length);
+        }
+    }
+
+    /**
+     * Recursively build a node over the items in the range [start, end).
+     * @return the index of the node built.
+     */
+    private int build(int start, int end){
+        int node = nNodes++;
+        nodeStart[node] = start;
+        nodeCount[node] = end - start;
+
+        //node bounds
+        for (int d = 0; d < 3; d++) {
+            nodeMin[node * 3 + d] = Double.POSITIVE_INFINITY;
+            nodeMax[node * 3 + d] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = start; i < end; i++) {
+            Item<T> item = treeItems[i];
+            for (int d = 0; d < 3; d++) {
+                nodeMin[node * 3 + d] = Math.min(nodeMin[node * 3 + d], item.min[d]);
+                nodeMax[node * 3 + d] = Math.max(nodeMax[node * 3 + d], item.max[d]);
+            }
+        }
+
+        if(end - start <= LEAF_SIZE){
+            nodeLeft[node] = -1;
+            nodeRight[node] = -1;
+            return node;
+        }
+
+        //split on the median of the longest axis
+        int axis = 0;
+        double longest = -1;
+        for (int d = 0; d < 3; d++) {
+            double extent = nodeMax[node * 3 + d] - nodeMin[node * 3 + d];
+            if(extent > longest){
+                longest = extent;
+                axis = d;
+            }
+        }
+        final int splitAxis = axis;
+        Arrays.sort(treeItems, start, end, Comparator.comparingDouble(item -> item.center(splitAxis)));
+        int mid = (start + end) >>> 1;
+
+        nodeLeft[node] = build(start, mid);
+        nodeRight[node] = build(mid, end);
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Item<T>[] newItemArray(int size){
+        return (Item<T>[]) new Item[size];
+    }
+
+}
@@ -2,18 +2,33 @@ package onethreeseven.trajsuite.core.model;
 
 import gov.nasa.worldwind.layers.AbstractLayer;
 import gov.nasa.worldwind.render.DrawContext;
+import onethreeseven.trajsuite.core.graphics.GLBufferManager;
 import onethreeseven.trajsuite.core.graphics.GLVboRenderable;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A layer where entities reside for one render loop then they are cleaned up and removed.
+ * Any thread can add to the queue without blocking the render thread, and the render thread only
+ * spends a small time budget each frame cleaning up, so removing many entities at once is spread across frames.
  * @author Luke Bermingham
  */
 public class CleanupLayer extends AbstractLayer {
 
-    private final Collection<GLVboRenderable> toCleanup = Collections.synchronizedCollection(new ArrayList<>());
+    private final Queue<GLVboRenderable> toCleanup = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nPending = new AtomicInteger(0);
+
+    /**
+     * How long (in milliseconds) each frame may spend on cleanup.
+     */
+    private volatile double frameBudgetMs = 4;
+
+    /**
+     * Run each frame before cleaning up, i.e to queue the graphics of long hidden entities for cleanup.
+     * This layer is always drawn, so it also runs when the entities' layers are disabled.
+     */
+    private volatile Runnable beforeCleanup = null;
 
     public CleanupLayer(){
         this.setEnabled(true);
@@ -23,16 +38,49 @@ public class CleanupLayer extends AbstractLayer {
 
     public void add(GLVboRenderable cleanupGraphic){
         toCleanup.add(cleanupGraphic);
+        nPending.incrementAndGet();
+    }
+
+    /**
+     * @return The number of graphics that are still waiting to be cleaned up.
+     */
+    public int getNPending(){
+        return nPending.get();
+    }
+
+    public void setBeforeCleanup(Runnable beforeCleanup) {
+        this.beforeCleanup = beforeCleanup;
+    }
+
+    public double getFrameBudgetMs() {
+        return frameBudgetMs;
+    }
+
+    public void setFrameBudgetMs(double frameBudgetMs) {
+        this.frameBudgetMs = frameBudgetMs;
     }
 
     @Override
     protected void doRender(DrawContext drawContext) {
-        //do cleanup, then clear the list
-        synchronized (toCleanup){
-            for (GLVboRenderable glVboRenderable : toCleanup) {
-                glVboRenderable.cleanup(drawContext);
+        Runnable beforeCleanup = this.beforeCleanup;
+        if(beforeCleanup != null){
+            beforeCleanup.run();
+        }
+        //cleanup until we run out of time (but always make some progress)
+        long deadline = System.nanoTime() + (long) (frameBudgetMs * 1e6);
+        GLVboRenderable glVboRenderable;
+        while((glVboRenderable = toCleanup.poll()) != null){
+            nPending.decrementAndGet();
+            glVboRenderable.cleanup(drawContext);
+            if(System.nanoTime() > deadline){
+                break;
             }
-            toCleanup.clear();
         }
+        //there is more to do, so come back next frame
+        if(!toCleanup.isEmpty()){
+            drawContext.setRedrawRequested(1);
+        }
+        //this layer draws first, so keep the gpu memory under budget before anything else draws
+        GLBufferManager.getInstance().enforceBudget(drawContext);
     }
 }
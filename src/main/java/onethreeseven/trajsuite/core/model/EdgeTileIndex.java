@@ -0,0 +1,544 @@
+package onethreeseven.trajsuite.core.model;
+
+import onethreeseven.geo.model.LatLonBounds;
+import onethreeseven.geo.projection.AbstractGeographicProjection;
+import onethreeseven.trajsuitePlugin.settings.PluginSettings;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A grid over a graph's edges, built once, so the edges in view are found by looking up the grid cells
+ * in view instead of searching the graph. Each edge's geometry is also projected once, up front,
+ * and stored as line segment pairs (edge ABC is stored ABBC), so the edges in view are copied straight
+ * into a buffer that is ready to upload.
+ * The grid and the geometry are stored as flat arrays with offsets (one array of offsets and one of values),
+ * so a graph with millions of edges is a handful of objects rather than millions.
+ * The geometry is split into fixed size chunks addressed by long offsets, so it grows without copying
+ * and is not limited to 2^31 values.
+ * Every edge is found through the cells it overlaps, not by walking out from a seed node, so road networks
+ * in several disconnected pieces (islands, clipped extracts) are found in full.
+ * @author Luke Bermingham
+ */
+public class EdgeTileIndex {
+
+    static final int DEFAULT_EDGES_PER_CELL = 32;
+    private static final int MAX_CELLS_PER_AXIS = 2048;
+    private static final int VALUES_PER_VERT = 3;
+    private static final int CHUNK_BITS = 18;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final LatLonBounds sector;
+    private final int nCols;
+    private final int nRows;
+    private final double cellLat;
+    private final double cellLon;
+
+    //the edges' projected segments, the segments of edge i are values edgeStart[i]..edgeStart[i+1]
+    //of the chunks laid end to end
+    private final long[] edgeStart;
+    private final double[][] segmentChunks;
+
+    //the edges' geographic bounds (minLat, maxLat, minLon, maxLon per edge), to skip edges just outside the view
+    //as floats (rounded outwards) to halve their size on big graphs
+    private final float[] edgeBounds;
+
+    //the edges in each cell, the edges of cell i are cellEdges[cellStart[i]..cellStart[i+1])
+    private final int[] cellStart;
+    private final int[] cellEdges;
+
+    //marks edges (by id) already visited by a query, edges are in every cell they overlap
+    private final BitSet visited;
+    private final int nEdges;
+    //the edges found by the last query, reused between queries
+    private int[] found = new int[64];
+
+    private EdgeTileIndex(LatLonBounds sector, int nCols, int nRows, long[] edgeStart, double[][] segmentChunks,
+                          float[] edgeBounds, int[] cellStart, int[] cellEdges) {
+        this.sector = sector;
+        this.nCols = nCols;
+        this.nRows = nRows;
+        this.cellLat = (sector.getMaxLat() - sector.getMinLat()) / nRows;
+        this.cellLon = (sector.getMaxLon() - sector.getMinLon()) / nCols;
+        this.edgeStart = edgeStart;
+        this.segmentChunks = segmentChunks;
+        this.edgeBounds = edgeBounds;
+        this.cellStart = cellStart;
+        this.cellEdges = cellEdges;
+        this.nEdges = edgeStart.length - 1;
+        this.visited = new BitSet(nEdges);
+    }
+
+    public static EdgeTileIndex build(GraphEdgeDAO dao, AbstractGeographicProjection projection){
+        return build(dao, projection, DEFAULT_EDGES_PER_CELL);
+    }
+
+    /**
+     * Project and index all the edges of a graph.
+     * @param dao the graph
+     * @param projection projects the edges into graphics coordinates
+     * @param edgesPerCell roughly how many edges each grid cell should hold
+     * @return the index
+     */
+    public static EdgeTileIndex build(GraphEdgeDAO dao, AbstractGeographicProjection projection, int edgesPerCell){
+        return build(dao, projection, edgesPerCell, edgeId -> true, 0);
+    }
+
+    /**
+     * Project and index some of the edges of a graph, i.e to make a coarser version of it for viewing from far away.
+     * Edges keep their ids, the edges left out are just never found.
+     * @param dao the graph
+     * @param projection projects the edges into graphics coordinates
+     * @param edgesPerCell roughly how many edges each grid cell should hold
+     * @param include which edges to index
+     * @param simplifyTolerance way geometry closer than this (in degrees) to a straighter line is dropped, 0 keeps it all
+     * @return the index
+     */
+    public static EdgeTileIndex build(GraphEdgeDAO dao, AbstractGeographicProjection projection, int edgesPerCell,
+                                      IntPredicate include, double simplifyTolerance){
+        final int nEdges = dao.getNEdges();
+        int nIncluded = 0;
+        boolean[] keep = new boolean[8];
+        final double smallElevation = PluginSettings.smallElevation.getSetting();
+
+        long[] edgeStart = new long[nEdges + 1];
+        float[] edgeBounds = new float[nEdges * 4];
+        ChunkedValues coords = new ChunkedValues();
+        double[] xyz = new double[VALUES_PER_VERT];
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            if(!include.test(edgeId)){
+                //no segments, and bounds that are in no cell
+                edgeStart[edgeId + 1] = coords.size;
+                Arrays.fill(edgeBounds, edgeId * 4, edgeId * 4 + 4, Float.NaN);
+                continue;
+            }
+            nIncluded++;
+            //the edge's points as lat, lon pairs: base node, way points, adjacent node
+            double[] latLons = dao.getEdgeLatLons(edgeId);
+            int nPts = latLons.length / 2;
+            if(simplifyTolerance > 0 && nPts > 2){
+                if(keep.length < nPts){
+                    keep = new boolean[nPts];
+                }
+                nPts = simplify(latLons, nPts, simplifyTolerance, keep);
+            }
+
+            double eMinLat = Double.POSITIVE_INFINITY, eMaxLat = Double.NEGATIVE_INFINITY;
+            double eMinLon = Double.POSITIVE_INFINITY, eMaxLon = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < nPts; i++) {
+                double lat = latLons[i * 2];
+                double lon = latLons[i * 2 + 1];
+                eMinLat = Math.min(eMinLat, lat);
+                eMaxLat = Math.max(eMaxLat, lat);
+                eMinLon = Math.min(eMinLon, lon);
+                eMaxLon = Math.max(eMaxLon, lon);
+                project(projection, lat, lon, smallElevation, xyz, 0);
+                coords.add(xyz);
+                //store full segments (not sequences), so inner points are pushed twice
+                if(i > 0 && i < nPts - 1){
+                    coords.add(xyz);
+                }
+            }
+            edgeStart[edgeId + 1] = coords.size;
+            edgeBounds[edgeId * 4] = Math.nextDown((float) eMinLat);
+            edgeBounds[edgeId * 4 + 1] = Math.nextUp((float) eMaxLat);
+            edgeBounds[edgeId * 4 + 2] = Math.nextDown((float) eMinLon);
+            edgeBounds[edgeId * 4 + 3] = Math.nextUp((float) eMaxLon);
+            minLat = Math.min(minLat, eMinLat);
+            maxLat = Math.max(maxLat, eMaxLat);
+            minLon = Math.min(minLon, eMinLon);
+            maxLon = Math.max(maxLon, eMaxLon);
+        }
+        if(nIncluded == 0){
+            minLat = maxLat = minLon = maxLon = 0;
+        }
+        LatLonBounds sector = new LatLonBounds(minLat, maxLat, minLon, maxLon);
+
+        //pick a grid with square-ish cells holding about edgesPerCell edges each
+        double latSpan = Math.max(1e-9, maxLat - minLat);
+        double lonSpan = Math.max(1e-9, maxLon - minLon);
+        double nCells = Math.max(1, nIncluded / (double) Math.max(1, edgesPerCell));
+        int nCols = clampCells((int) Math.ceil(Math.sqrt(nCells * lonSpan / latSpan)));
+        int nRows = clampCells((int) Math.ceil(nCells / nCols));
+
+        //count the edges in each cell, then fill
+        int[] cellStart = new int[nCols * nRows + 1];
+        int[] range = new int[4];
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            if(Float.isNaN(edgeBounds[edgeId * 4])){
+                continue;
+            }
+            cellRange(sector, nCols, nRows, edgeBounds[edgeId * 4], edgeBounds[edgeId * 4 + 1],
+                    edgeBounds[edgeId * 4 + 2], edgeBounds[edgeId * 4 + 3], range);
+            for (int row = range[0]; row <= range[1]; row++) {
+                for (int col = range[2]; col <= range[3]; col++) {
+                    cellStart[row * nCols + col + 1]++;
+                }
+            }
+        }
+        for (int i = 1; i < cellStart.length; i++) {
+            cellStart[i] += cellStart[i - 1];
+        }
+        int[] cellEdges = new int[cellStart[cellStart.length - 1]];
+        int[] fill = Arrays.copyOf(cellStart, cellStart.length - 1);
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            if(Float.isNaN(edgeBounds[edgeId * 4])){
+                continue;
+            }
+            cellRange(sector, nCols, nRows, edgeBounds[edgeId * 4], edgeBounds[edgeId * 4 + 1],
+                    edgeBounds[edgeId * 4 + 2], edgeBounds[edgeId * 4 + 3], range);
+            for (int row = range[0]; row <= range[1]; row++) {
+                for (int col = range[2]; col <= range[3]; col++) {
+                    cellEdges[fill[row * nCols + col]++] = edgeId;
+                }
+            }
+        }
+
+        return new EdgeTileIndex(sector, nCols, nRows, edgeStart,
+                coords.toChunks(), edgeBounds, cellStart, cellEdges);
+    }
+
+    /**
+     * Values appended into fixed size chunks, so growing never copies what is already there.
+     */
+    private static final class ChunkedValues {
+        private final ArrayList<double[]> chunks = new ArrayList<>();
+        private double[] current = null;
+        private long size = 0;
+
+        private void add(double[] values){
+            for (double value : values) {
+                int offset = (int) (size & CHUNK_MASK);
+                if(offset == 0){
+                    current = new double[CHUNK_SIZE];
+                    chunks.add(current);
+                }
+                current[offset] = value;
+                size++;
+            }
+        }
+
+        /**
+         * @return the chunks, the last one trimmed to what was added.
+         */
+        private double[][] toChunks(){
+            double[][] arr = chunks.toArray(new double[0][]);
+            int lastSize = (int) (size & CHUNK_MASK);
+            if(lastSize > 0){
+                arr[arr.length - 1] = Arrays.copyOf(arr[arr.length - 1], lastSize);
+            }
+            return arr;
+        }
+    }
+
+    /**
+     * Drop the points of a polyline that are within a tolerance of the line between the points either side
+     * of them (Douglas-Peucker), the end points are always kept.
+     * @param latLons the polyline as lat, lon pairs, the points left are moved to the front
+     * @param nPts the number of points
+     * @param tolerance in degrees
+     * @param keep scratch space of at least nPts
+     * @return the number of points left
+     */
+    static int simplify(double[] latLons, int nPts, double tolerance, boolean[] keep){
+        Arrays.fill(keep, 0, nPts, false);
+        keep[0] = true;
+        keep[nPts - 1] = true;
+        simplify(latLons, 0, nPts - 1, tolerance * tolerance, keep);
+        int nKept = 0;
+        for (int i = 0; i < nPts; i++) {
+            if(keep[i]){
+                latLons[nKept * 2] = latLons[i * 2];
+                latLons[nKept * 2 + 1] = latLons[i * 2 + 1];
+                nKept++;
+            }
+        }
+        return nKept;
+    }
+
+    private static void simplify(double[] latLons, int first, int last, double toleranceSq, boolean[] keep){
+        if(last - first < 2){
+            return;
+        }
+        double ay = latLons[first * 2], ax = latLons[first * 2 + 1];
+        double dy = latLons[last * 2] - ay, dx = latLons[last * 2 + 1] - ax;
+        double lenSq = dx * dx + dy * dy;
+        int furthest = -1;
+        double furthestSq = toleranceSq;
+        for (int i = first + 1; i < last; i++) {
+            double py = latLons[i * 2] - ay, px = latLons[i * 2 + 1] - ax;
+            //distance to the closest point on the segment
+            double t = lenSq == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lenSq));
+            double ex = px - t * dx, ey = py - t * dy;
+            double distSq = ex * ex + ey * ey;
+            if(distSq > furthestSq){
+                furthestSq = distSq;
+                furthest = i;
+            }
+        }
+        if(furthest != -1){
+            keep[furthest] = true;
+            simplify(latLons, first, furthest, toleranceSq, keep);
+            simplify(latLons, furthest, last, toleranceSq, keep);
+        }
+    }
+
+    private static void project(AbstractGeographicProjection projection, double lat, double lon,
+                                double smallElevation, double[] out, int offset){
+        double[] xy = projection.geographicToCartesian(lat, lon);
+        out[offset] = xy[0];
+        out[offset + 1] = xy[1];
+        out[offset + 2] = xy.length >= VALUES_PER_VERT ? xy[2] : smallElevation;
+    }
+
+    private static int clampCells(int n){
+        return Math.max(1, Math.min(MAX_CELLS_PER_AXIS, n));
+    }
+
+    /**
+     * Find the cells a lat/lon box overlaps.
+     * @param out {minRow, maxRow, minCol, maxCol}
+     * @return False if the box misses the grid entirely.
+     */
+    private static boolean cellRange(LatLonBounds sector, int nCols, int nRows,
+                                     double minLat, double maxLat, double minLon, double maxLon, int[] out){
+        if(maxLat < sector.getMinLat() || minLat > sector.getMaxLat() ||
+                maxLon < sector.getMinLon() || minLon > sector.getMaxLon()){
+            return false;
+        }
+        double latSpan = Math.max(1e-9, sector.getMaxLat() - sector.getMinLat());
+        double lonSpan = Math.max(1e-9, sector.getMaxLon() - sector.getMinLon());
+        out[0] = clamp((int) Math.floor((minLat - sector.getMinLat()) / latSpan * nRows), nRows);
+        out[1] = clamp((int) Math.floor((maxLat - sector.getMinLat()) / latSpan * nRows), nRows);
+        out[2] = clamp((int) Math.floor((minLon - sector.getMinLon()) / lonSpan * nCols), nCols);
+        out[3] = clamp((int) Math.floor((maxLon - sector.getMinLon()) / lonSpan * nCols), nCols);
+        return true;
+    }
+
+    private static int clamp(int idx, int n){
+        return Math.max(0, Math.min(n - 1, idx));
+    }
+
+    /**
+     * Visit each edge that (by its bounding box) is within the view, each edge is visited once.
+     * @param view the visible area
+     * @param action given each edge id
+     * @return the number of edges visited
+     */
+    public synchronized int forEachEdge(LatLonBounds view, IntConsumer action){
+        int n = findEdges(view);
+        for (int i = 0; i < n; i++) {
+            action.accept(found[i]);
+        }
+        return n;
+    }
+
+    /**
+     * Collect the ids of the edges in view into {@link #found}.
+     * @return how many were found
+     */
+    private int findEdges(LatLonBounds view){
+        int[] range = new int[4];
+        if(nEdges == 0 || !cellRange(sector, nCols, nRows,
+                view.getMinLat(), view.getMaxLat(), view.getMinLon(), view.getMaxLon(), range)){
+            return 0;
+        }
+        int nFound = 0;
+        for (int row = range[0]; row <= range[1]; row++) {
+            for (int col = range[2]; col <= range[3]; col++) {
+                nFound = findEdges(row * nCols + col, view, nFound);
+            }
+        }
+        unmark(range);
+        return nFound;
+    }
+
+    /**
+     * Collect the ids of the edges of a cell that are in view and not yet visited into {@link #found}.
+     * @param nFound how many have been found so far
+     * @return how many have been found now
+     */
+    private int findEdges(int cell, LatLonBounds view, int nFound){
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            int edgeId = cellEdges[i];
+            if(visited.get(edgeId)){
+                continue;
+            }
+            visited.set(edgeId);
+            if(intersects(edgeId, view)){
+                if(nFound == found.length){
+                    found = Arrays.copyOf(found, nFound * 2);
+                }
+                found[nFound++] = edgeId;
+            }
+        }
+        return nFound;
+    }
+
+    /**
+     * Unmark by walking the cells again, clearing the whole set would cost the size of the graph per query.
+     */
+    private void unmark(int[] range){
+        for (int row = range[0]; row <= range[1]; row++) {
+            for (int col = range[2]; col <= range[3]; col++) {
+                int cell = row * nCols + col;
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    visited.clear(cellEdges[i]);
+                }
+            }
+        }
+    }
+
+    private boolean intersects(int edgeId, LatLonBounds view){
+        int i = edgeId * 4;
+        return edgeBounds[i + 1] >= view.getMinLat() && edgeBounds[i] <= view.getMaxLat() &&
+                edgeBounds[i + 3] >= view.getMinLon() && edgeBounds[i + 2] <= view.getMaxLon();
+    }
+
+    /**
+     * Gets the edges that are visible within the view.
+     * Edges are packed in node pairs. Edge AB and BC are packed ABBC.
+     * @param view the visible area
+     * @return a direct buffer of the packed edges in graphics coordinates, filled (its position is at the end).
+     */
+    public synchronized DoubleBuffer getEdges(LatLonBounds view){
+        DoubleBuffer buf = pack(findEdges(view));
+        if(buf == null){
+            //nothing in view, one degenerate edge so there is still something to upload
+            buf = newDirectDoubleBuffer(2 * VALUES_PER_VERT);
+            buf.position(buf.limit());
+        }
+        return buf;
+    }
+
+    /**
+     * Gets the edges that are visible within the view a few grid cells at a time, the cells nearest
+     * the centre of the view first, so what is being looked at can be drawn before the rest has been found.
+     * Each edge is given once, in the first batch that reaches it.
+     * @param view the visible area
+     * @param nBatches roughly how many batches to split the view into
+     * @param batch given the packed edges of each batch (like {@link #getEdges(LatLonBounds)}),
+     *              batches with no edges are skipped
+     * @param cancelled checked before each batch, stops early when true (i.e the view has moved on)
+     * @return False if it was cancelled before all the edges were given.
+     */
+    public synchronized boolean streamEdges(LatLonBounds view, int nBatches, Consumer<DoubleBuffer> batch,
+                                            BooleanSupplier cancelled){
+        int[] range = new int[4];
+        if(nEdges == 0 || !cellRange(sector, nCols, nRows,
+                view.getMinLat(), view.getMaxLat(), view.getMinLon(), view.getMaxLon(), range)){
+            return !cancelled.getAsBoolean();
+        }
+        //the cell at the centre of the view, then rings of cells around it
+        int[] centre = new int[4];
+        double midLat = (view.getMinLat() + view.getMaxLat()) / 2;
+        double midLon = (view.getMinLon() + view.getMaxLon()) / 2;
+        cellRange(sector, nCols, nRows, midLat, midLat, midLon, midLon, centre);
+        int centreRow = Math.max(range[0], Math.min(range[1], centre[0]));
+        int centreCol = Math.max(range[2], Math.min(range[3], centre[2]));
+        int nRings = 1 + Math.max(
+                Math.max(centreRow - range[0], range[1] - centreRow),
+                Math.max(centreCol - range[2], range[3] - centreCol));
+        int ringsPerBatch = Math.max(1, (int) Math.ceil(nRings / (double) Math.max(1, nBatches)));
+
+        try{
+            for (int firstRing = 0; firstRing < nRings; firstRing += ringsPerBatch) {
+                if(cancelled.getAsBoolean()){
+                    return false;
+                }
+                int nFound = 0;
+                int lastRing = Math.min(nRings, firstRing + ringsPerBatch);
+                for (int ring = firstRing; ring < lastRing; ring++) {
+                    for (int row = centreRow - ring; row <= centreRow + ring; row++) {
+                        if(row < range[0] || row > range[1]){
+                            continue;
+                        }
+                        //whole rows at the top and bottom of the ring, just the two sides in between
+                        boolean edgeRow = row == centreRow - ring || row == centreRow + ring;
+                        int colStep = edgeRow || ring == 0 ? 1 : 2 * ring;
+                        for (int col = centreCol - ring; col <= centreCol + ring; col += colStep) {
+                            if(col >= range[2] && col <= range[3]){
+                                nFound = findEdges(row * nCols + col, view, nFound);
+                            }
+                        }
+                    }
+                }
+                DoubleBuffer buf = pack(nFound);
+                if(buf != null){
+                    batch.accept(buf);
+                }
+            }
+            return true;
+        }finally {
+            unmark(range);
+        }
+    }
+
+    /**
+     * @param nFound how many edges of {@link #found} to pack
+     * @return the packed segments of the found edges, or null if they have none.
+     */
+    private DoubleBuffer pack(int nFound){
+        long nValues = 0;
+        for (int i = 0; i < nFound; i++) {
+            nValues += edgeStart[found[i] + 1] - edgeStart[found[i]];
+        }
+        if(nValues == 0){
+            return null;
+        }
+        DoubleBuffer buf = newDirectDoubleBuffer(Math.toIntExact(nValues));
+        for (int i = 0; i < nFound; i++) {
+            int edgeId = found[i];
+            //an edge's values may run over the end of one chunk into the next
+            long from = edgeStart[edgeId];
+            long to = edgeStart[edgeId + 1];
+            while(from < to){
+                int offset = (int) (from & CHUNK_MASK);
+                int n = (int) Math.min(to - from, CHUNK_SIZE - offset);
+                buf.put(segmentChunks[(int) (from >>> CHUNK_BITS)], offset, n);
+                from += n;
+            }
+        }
+        return buf;
+    }
+
+    private static DoubleBuffer newDirectDoubleBuffer(int nValues){
+        return ByteBuffer.allocateDirect(nValues * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * @return The area the edges are in.
+     */
+    public LatLonBounds getSector() {
+        return sector;
+    }
+
+    public int getNEdges(){
+        return nEdges;
+    }
+
+    public int getNCells(){
+        return nCols * nRows;
+    }
+
+    /**
+     * @param edgeId an edge
+     * @return the number of vertices of the edge's packed segments.
+     */
+    public int getNVerts(int edgeId){
+        return (int) ((edgeStart[edgeId + 1] - edgeStart[edgeId]) / VALUES_PER_VERT);
+    }
+
+}
@@ -6,6 +6,8 @@ import onethreeseven.trajsuitePlugin.model.BoundingCoordinates;
 import onethreeseven.trajsuitePlugin.util.BoundsUtil;
 
 import java.nio.DoubleBuffer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * Represents a graph that made up of geographical nodes and edges (model used for rendering).
@@ -29,6 +31,43 @@ public abstract class GeographicGraph implements BoundingCoordinates {
      */
     public abstract DoubleBuffer getEdges(LatLonBounds viewBounds);
 
+    /**
+     * Gets the edges that are visible within the sector, in as much detail as is worth drawing from this altitude.
+     * Graphs with only one level of detail give all their edges.
+     * @param viewBounds the visible bounds
+     * @param eyeAltitude the altitude of the eye in metres
+     * @return the packed edges in graphics coordinates (ready for rendering).
+     */
+    public DoubleBuffer getEdges(LatLonBounds viewBounds, double eyeAltitude){
+        return getEdges(viewBounds);
+    }
+
+    /**
+     * Gets the edges that are visible within the sector in batches, the edges nearest the centre of the view first,
+     * so they can be drawn while the rest are still being found. Graphs that cannot split their edges give one batch.
+     * @param viewBounds the visible bounds
+     * @param eyeAltitude the altitude of the eye in metres
+     * @param batch given each batch of packed edges (like {@link #getEdges(LatLonBounds)})
+     * @param cancelled checked between batches, stops early when true (i.e the view has moved on)
+     * @return False if it was cancelled before all the edges were given.
+     */
+    public boolean streamEdges(LatLonBounds viewBounds, double eyeAltitude,
+                               Consumer<DoubleBuffer> batch, BooleanSupplier cancelled){
+        if(cancelled.getAsBoolean()){
+            return false;
+        }
+        batch.accept(getEdges(viewBounds, eyeAltitude));
+        return true;
+    }
+
+    /**
+     * @param eyeAltitude the altitude of the eye in metres
+     * @return the level of detail the graph is drawn at from this altitude, 0 is full detail.
+     */
+    public int getLevelOfDetail(double eyeAltitude){
+        return 0;
+    }
+
     public LatLonBounds getSector(){
         return sector;
     }
@@ -0,0 +1,57 @@
+package onethreeseven.trajsuite.core.model;
+
+/**
+ * A graph data provider that can list its edges, so their geometry can be indexed ahead of time.
+ * @see EdgeTileIndex
+ * @author Luke Bermingham
+ */
+public interface GraphEdgeDAO extends GraphDAO {
+
+    /**
+     * @return The number of edges, edge ids are 0 to this (exclusive).
+     */
+    int getNEdges();
+
+    int getBaseNode(int edgeId);
+
+    int getAdjNode(int edgeId);
+
+    /**
+     * @param edgeId the edge
+     * @return the points between the base and adjacent node (i.e the bends of a road) as lat, lon pairs,
+     * empty if the edge is straight.
+     */
+    default double[] getWayGeometry(int edgeId){
+        return new double[0];
+    }
+
+    /**
+     * @param edgeId the edge
+     * @return how important the edge's road is, 0 for the most important (i.e motorways), larger for lesser roads.
+     * Lesser roads are left out when the graph is viewed from far away.
+     */
+    default int getRoadClass(int edgeId){
+        return 0;
+    }
+
+    /**
+     * Gets all the points of an edge at once, DAOs that look an edge up to answer each of
+     * {@link #getBaseNode(int)}, {@link #getAdjNode(int)} and {@link #getWayGeometry(int)} should override this
+     * to look the edge up once.
+     * @param edgeId the edge
+     * @return a new array of the base node, the way points, then the adjacent node, as lat, lon pairs.
+     */
+    default double[] getEdgeLatLons(int edgeId){
+        double[] way = getWayGeometry(edgeId);
+        int baseNode = getBaseNode(edgeId);
+        int adjNode = getAdjNode(edgeId);
+        double[] latLons = new double[way.length + 4];
+        latLons[0] = getLat(baseNode);
+        latLons[1] = getLon(baseNode);
+        System.arraycopy(way, 0, latLons, 2, way.length);
+        latLons[latLons.length - 2] = getLat(adjNode);
+        latLons[latLons.length - 1] = getLon(adjNode);
+        return latLons;
+    }
+
+}
@@ -0,0 +1,29 @@
+package onethreeseven.trajsuite.core.model;
+
+import onethreeseven.trajsuitePlugin.model.BaseTrajSuiteProgram;
+import onethreeseven.trajsuitePlugin.model.Layers;
+
+/**
+ * The TrajSuite program without any graphics, for running batch jobs (i.e on a server).
+ * Its layers only hold the models, there are no renderables or WorldWind layers,
+ * and it does not listen for user input (commands are given to its CLI directly).
+ * @see onethreeseven.trajsuite.core.HeadlessMain
+ * @author Luke Bermingham
+ */
+public class HeadlessTrajSuiteProgram extends BaseTrajSuiteProgram {
+
+    protected HeadlessTrajSuiteProgram() {
+        super();
+    }
+
+    @Override
+    protected Layers makeLayers() {
+        //plain layers, entities are just wrapped models
+        return new Layers(){};
+    }
+
+    public void shutdown(){
+        getCLI().shutdown();
+    }
+
+}
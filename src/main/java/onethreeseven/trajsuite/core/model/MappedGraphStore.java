@@ -0,0 +1,350 @@
+package onethreeseven.trajsuite.core.model;
+
+import onethreeseven.geo.model.LatLonBounds;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+
+/**
+ * A road graph stored in a file of flat primitive arrays that is memory mapped rather than read,
+ * so opening it is instant and graphs larger than the heap can be used (the OS pages in what is touched).
+ * Nodes are ints 0 to n, their lat/lons are fixed-point ints (1e-7 degrees, about a centimetre),
+ * and the edges of each node are stored as compressed sparse rows (one array of offsets, one of edge ids).
+ * Write one from any graph with {@link #write(File, GraphEdgeDAO)}, then {@link #open(File)} it.
+ * @author Luke Bermingham
+ */
+public class MappedGraphStore implements GraphEdgeDAO {
+
+    private static final int MAGIC = 0x54534752; //TSGR
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 40;
+    private static final double FIXED_POINT_SCALE = 1e7;
+    //each section is mapped in chunks, a single mapping cannot be more than 2GB
+    private static final int CHUNK_SHIFT = 30;
+
+    private final int nNodes;
+    private final int nEdges;
+    private final long nWayPoints;
+    private final LatLonBounds bounds;
+
+    private final Section nodeLats;
+    private final Section nodeLons;
+    private final Section adjStart;
+    private final Section adjEdges;
+    private final Section edgeBase;
+    private final Section edgeAdj;
+    private final Section roadClasses;
+    private final Section wayStart;
+    private final Section wayLatLons;
+
+    /**
+     * A mapped region of the file, read by byte offset.
+     * Chunks are a power of two bytes, so values never straddle two chunks.
+     */
+    private static final class Section {
+        private final MappedByteBuffer[] chunks;
+
+        Section(FileChannel channel, long offset, long nBytes) throws IOException {
+            int nChunks = (int) ((nBytes + (1L << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT);
+            this.chunks = new MappedByteBuffer[nChunks];
+            for (int i = 0; i < nChunks; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                long size = Math.min(1L << CHUNK_SHIFT, nBytes - start);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, size);
+                chunks[i].order(ByteOrder.BIG_ENDIAN);
+            }
+        }
+
+        int getInt(long idx){
+            long pos = idx << 2;
+            return chunks[(int) (pos >>> CHUNK_SHIFT)].getInt((int) (pos & ((1L << CHUNK_SHIFT) - 1)));
+        }
+
+        long getLong(long idx){
+            long pos = idx << 3;
+            return chunks[(int) (pos >>> CHUNK_SHIFT)].getLong((int) (pos & ((1L << CHUNK_SHIFT) - 1)));
+        }
+
+        byte getByte(long idx){
+            return chunks[(int) (idx >>> CHUNK_SHIFT)].get((int) (idx & ((1L << CHUNK_SHIFT) - 1)));
+        }
+    }
+
+    private MappedGraphStore(FileChannel channel) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        header.order(ByteOrder.BIG_ENDIAN);
+        if(header.getInt() != MAGIC){
+            throw new IOException("Not a graph store file.");
+        }
+        int version = header.getInt();
+        if(version != VERSION){
+            throw new IOException("Unsupported graph store version: " + version);
+        }
+        this.nNodes = header.getInt();
+        this.nEdges = header.getInt();
+        this.nWayPoints = header.getLong();
+        this.bounds = new LatLonBounds(
+                fromFixed(header.getInt()), fromFixed(header.getInt()),
+                fromFixed(header.getInt()), fromFixed(header.getInt()));
+
+        long offset = HEADER_BYTES;
+        this.nodeLats = new Section(channel, offset, 4L * nNodes);
+        offset += 4L * nNodes;
+        this.nodeLons = new Section(channel, offset, 4L * nNodes);
+        offset += 4L * nNodes;
+        this.adjStart = new Section(channel, offset, 4L * (nNodes + 1));
+        offset += 4L * (nNodes + 1);
+        this.adjEdges = new Section(channel, offset, 8L * nEdges);
+        offset += 8L * nEdges;
+        this.edgeBase = new Section(channel, offset, 4L * nEdges);
+        offset += 4L * nEdges;
+        this.edgeAdj = new Section(channel, offset, 4L * nEdges);
+        offset += 4L * nEdges;
+        this.wayStart = new Section(channel, offset, 8L * (nEdges + 1));
+        offset += 8L * (nEdges + 1);
+        this.wayLatLons = new Section(channel, offset, 8L * nWayPoints);
+        offset += 8L * nWayPoints;
+        this.roadClasses = new Section(channel, offset, nEdges);
+        offset += nEdges;
+        if(offset != channel.size()){
+            throw new IOException("Graph store file is " + channel.size() + " bytes, expected " + offset + ".");
+        }
+    }
+
+    /**
+     * Map a graph store file, nothing is read until it is used.
+     * @param file a file made by {@link #write(File, GraphEdgeDAO)}
+     * @return the graph
+     * @throws IOException if the file cannot be mapped or is not a graph store
+     */
+    public static MappedGraphStore open(File file) throws IOException {
+        //the mappings stay valid after the channel is closed
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            return new MappedGraphStore(channel);
+        }
+    }
+
+    /**
+     * Write a graph to a graph store file.
+     * Node ids are kept, so there are as many nodes as the largest node id used by an edge (plus one).
+     * @param file where to write it
+     * @param source the graph
+     * @throws IOException if it cannot be written
+     */
+    public static void write(File file, GraphEdgeDAO source) throws IOException {
+        final int nEdges = source.getNEdges();
+        int[] base = new int[nEdges];
+        int[] adj = new int[nEdges];
+        int nNodes = 0;
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            base[edgeId] = source.getBaseNode(edgeId);
+            adj[edgeId] = source.getAdjNode(edgeId);
+            nNodes = Math.max(nNodes, Math.max(base[edgeId], adj[edgeId]) + 1);
+        }
+
+        //each edge is listed under both of its nodes
+        int[] adjStart = new int[nNodes + 1];
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            adjStart[base[edgeId] + 1]++;
+            adjStart[adj[edgeId] + 1]++;
+        }
+        for (int i = 1; i < adjStart.length; i++) {
+            adjStart[i] += adjStart[i - 1];
+        }
+        int[] adjEdges = new int[2 * nEdges];
+        int[] fill = new int[nNodes];
+        System.arraycopy(adjStart, 0, fill, 0, nNodes);
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            adjEdges[fill[base[edgeId]]++] = edgeId;
+            adjEdges[fill[adj[edgeId]]++] = edgeId;
+        }
+
+        long[] wayStart = new long[nEdges + 1];
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            wayStart[edgeId + 1] = wayStart[edgeId] + source.getWayGeometry(edgeId).length / 2;
+        }
+
+        int minLat = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE;
+        int minLon = Integer.MAX_VALUE, maxLon = Integer.MIN_VALUE;
+        int[] lats = new int[nNodes];
+        int[] lons = new int[nNodes];
+        for (int nodeId = 0; nodeId < nNodes; nodeId++) {
+            lats[nodeId] = toFixed(source.getLat(nodeId));
+            lons[nodeId] = toFixed(source.getLon(nodeId));
+            minLat = Math.min(minLat, lats[nodeId]);
+            maxLat = Math.max(maxLat, lats[nodeId]);
+            minLon = Math.min(minLon, lons[nodeId]);
+            maxLon = Math.max(maxLon, lons[nodeId]);
+        }
+        if(nNodes == 0){
+            minLat = maxLat = minLon = maxLon = 0;
+        }
+
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nNodes);
+            out.writeInt(nEdges);
+            out.writeLong(wayStart[nEdges]);
+            out.writeInt(minLat);
+            out.writeInt(maxLat);
+            out.writeInt(minLon);
+            out.writeInt(maxLon);
+            writeInts(out, lats);
+            writeInts(out, lons);
+            writeInts(out, adjStart);
+            writeInts(out, adjEdges);
+            writeInts(out, base);
+            writeInts(out, adj);
+            for (long start : wayStart) {
+                out.writeLong(start);
+            }
+            for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+                for (double latOrLon : source.getWayGeometry(edgeId)) {
+                    out.writeInt(toFixed(latOrLon));
+                }
+            }
+            for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+                out.writeByte(Math.max(0, Math.min(Byte.MAX_VALUE, source.getRoadClass(edgeId))));
+            }
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int toFixed(double degrees){
+        return (int) Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    private static double fromFixed(int fixed){
+        return fixed / FIXED_POINT_SCALE;
+    }
+
+    public int getNNodes() {
+        return nNodes;
+    }
+
+    @Override
+    public int getNEdges() {
+        return nEdges;
+    }
+
+    /**
+     * @return The area around all the nodes, stored in the file so it is known without touching them.
+     */
+    public LatLonBounds getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public double getLat(int nodeId) {
+        return fromFixed(nodeLats.getInt(nodeId));
+    }
+
+    @Override
+    public double getLon(int nodeId) {
+        return fromFixed(nodeLons.getInt(nodeId));
+    }
+
+    /**
+     * Get the lat/lons of a run of nodes in one call.
+     * @param fromNode the first node
+     * @param nNodes how many nodes
+     * @param out filled with lat, lon pairs from the start
+     */
+    public void getLatLons(int fromNode, int nNodes, double[] out){
+        for (int i = 0; i < nNodes; i++) {
+            out[i * 2] = fromFixed(nodeLats.getInt(fromNode + i));
+            out[i * 2 + 1] = fromFixed(nodeLons.getInt(fromNode + i));
+        }
+    }
+
+    /**
+     * Get the fixed-point lat/lons (1e-7 degrees) of a run of nodes in one call, without converting them.
+     * @param fromNode the first node
+     * @param nNodes how many nodes
+     * @param lats filled with the lats from the start
+     * @param lons filled with the lons from the start
+     */
+    public void getFixedLatLons(int fromNode, int nNodes, int[] lats, int[] lons){
+        for (int i = 0; i < nNodes; i++) {
+            lats[i] = nodeLats.getInt(fromNode + i);
+            lons[i] = nodeLons.getInt(fromNode + i);
+        }
+    }
+
+    @Override
+    public int getBaseNode(int edgeId) {
+        return edgeBase.getInt(edgeId);
+    }
+
+    @Override
+    public int getAdjNode(int edgeId) {
+        return edgeAdj.getInt(edgeId);
+    }
+
+    @Override
+    public double[] getWayGeometry(int edgeId) {
+        long start = wayStart.getLong(edgeId);
+        int nPts = (int) (wayStart.getLong(edgeId + 1) - start);
+        double[] latLons = new double[nPts * 2];
+        for (int i = 0; i < latLons.length; i++) {
+            latLons[i] = fromFixed(wayLatLons.getInt(start * 2 + i));
+        }
+        return latLons;
+    }
+
+    @Override
+    public int getRoadClass(int edgeId) {
+        return roadClasses.getByte(edgeId);
+    }
+
+    /**
+     * @return The number of edges that touch the node.
+     */
+    public int getDegree(int nodeId){
+        return adjStart.getInt(nodeId + 1) - adjStart.getInt(nodeId);
+    }
+
+    /**
+     * @param nodeId the node
+     * @param i which of its edges, 0 to {@link #getDegree(int)}
+     * @return the edge id
+     */
+    public int getEdge(int nodeId, int i){
+        return adjEdges.getInt((long) adjStart.getInt(nodeId) + i);
+    }
+
+    /**
+     * Visit each edge that touches a node.
+     * @param nodeId the node
+     * @param action given each edge id
+     */
+    public void forEachEdge(int nodeId, IntConsumer action){
+        int end = adjStart.getInt(nodeId + 1);
+        for (int i = adjStart.getInt(nodeId); i < end; i++) {
+            action.accept(adjEdges.getInt(i));
+        }
+    }
+
+    /**
+     * @return The node at the other end of the edge from this node.
+     */
+    public int getOtherNode(int edgeId, int nodeId){
+        int base = edgeBase.getInt(edgeId);
+        return base == nodeId ? edgeAdj.getInt(edgeId) : base;
+    }
+
+}
@@ -20,6 +20,13 @@ import java.net.URL;
  */
 public class OSMMapnikHigherResLayer extends BasicMercatorTiledImageLayer {
 
+    /**
+     * Where the tiles come from, so they can be prefetched into the same cache.
+     * @see TilePrefetcher
+     */
+    public static final TileCacheStore.TileSource TILE_SOURCE =
+            new TileCacheStore.TileSource("Earth/Wikimedia", "http://a.tile.openstreetmap.org/", ".png", 16);
+
     public OSMMapnikHigherResLayer() {
         super(makeLevels());
         setUseMipMaps(true);
@@ -33,12 +40,12 @@ public class OSMMapnikHigherResLayer extends BasicMercatorTiledImageLayer {
 
         params.setValue(AVKey.TILE_WIDTH, 256);
         params.setValue(AVKey.TILE_HEIGHT, 256);
-        params.setValue(AVKey.DATA_CACHE_NAME, "Earth/Wikimedia");
+        params.setValue(AVKey.DATA_CACHE_NAME, TILE_SOURCE.cacheName);
         //params.setValue(AVKey.SERVICE, "https://cartodb-basemaps-a.global.ssl.fastly.net/dark_all/");
-        params.setValue(AVKey.SERVICE, "http://a.tile.openstreetmap.org/");
+        params.setValue(AVKey.SERVICE, TILE_SOURCE.service);
         params.setValue(AVKey.DATASET_NAME, "*");
-        params.setValue(AVKey.FORMAT_SUFFIX, ".png");
-        params.setValue(AVKey.NUM_LEVELS, 16);
+        params.setValue(AVKey.FORMAT_SUFFIX, TILE_SOURCE.formatSuffix);
+        params.setValue(AVKey.NUM_LEVELS, TILE_SOURCE.nLevels);
         params.setValue(AVKey.NUM_EMPTY_LEVELS, 0);
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle
                 .fromDegrees(22.5D), Angle.fromDegrees(45.0D)));
@@ -8,6 +8,8 @@ import onethreeseven.trajsuitePlugin.model.BoundingCoordinates;
 import onethreeseven.trajsuitePlugin.model.VisibleEntity;
 import onethreeseven.trajsuitePlugin.util.IdGenerator;
 
+import java.util.function.Supplier;
+
 /**
  * An entity that implements the methods required to render itself.
  * @param <T> The type of bounding object that we wish to render.
@@ -15,20 +17,64 @@ import onethreeseven.trajsuitePlugin.util.IdGenerator;
  */
 public class RenderableEntity<T extends BoundingCoordinates> extends VisibleEntity<T> implements Renderable {
 
-    protected final GLVboRenderable renderable;
+    private final GraphicsPayload payload;
+    private final Supplier<GLVboRenderable> renderableFactory;
+    private volatile GLVboRenderable renderable = null;
 
-    protected RenderableEntity(String id, T model, boolean selected, boolean visible, GLVboRenderable renderable){
+    /**
+     * False when the renderable was given rather than made, it cannot be made again so it is never released.
+     */
+    private final boolean releasable;
+
+    /**
+     * When the entity was last hidden (System.nanoTime), only meaningful while it is hidden.
+     */
+    private volatile long hiddenSinceNanos;
+
+    /**
+     * Told when the entity is shown, so its layer can give it graphics without walking the whole layer.
+     */
+    private volatile Runnable shownListener = null;
+
+    /**
+     * @param renderableFactory makes the renderable, it is only called the first frame the entity is drawn,
+     *                          so entities that are hidden (or in a disabled layer) cost no graphics until they are shown.
+     *                          The renderable may be released after being hidden for a while and made again later.
+     */
+    protected RenderableEntity(String id, T model, boolean selected, boolean visible,
+                               GraphicsPayload payload, Supplier<GLVboRenderable> renderableFactory){
+        this(id, model, selected, visible, payload, renderableFactory, true);
+    }
+
+    private RenderableEntity(String id, T model, boolean selected, boolean visible,
+                             GraphicsPayload payload, Supplier<GLVboRenderable> renderableFactory, boolean releasable){
         super(id, model, selected, visible);
-        this.renderable = renderable;
+        this.payload = payload;
+        this.renderableFactory = renderableFactory;
+        this.releasable = releasable;
+        this.hiddenSinceNanos = System.nanoTime();
 
         //update shape/annotation visibility according to entity visibility
         this.isVisibleProperty().addListener(
                 (observable, oldValue, newValue) -> {
-                    renderable.setPrefabsVisibility(newValue);
+                    if(!newValue){
+                        hiddenSinceNanos = System.nanoTime();
+                    }
+                    Runnable shownListener = this.shownListener;
+                    if(newValue && shownListener != null){
+                        shownListener.run();
+                    }
+                    GLVboRenderable renderable = this.renderable;
+                    if(renderable != null){
+                        renderable.setPrefabsVisibility(newValue);
+                    }
                 });
+    }
 
-        //setup prefab visibility initially
-        renderable.setPrefabsVisibility(visible);
+    protected RenderableEntity(String id, T model, boolean selected, boolean visible, GLVboRenderable renderable){
+        this(id, model, selected, visible, renderable.getPayload(), () -> renderable, false);
+        //the renderable already exists, so setup prefab visibility initially
+        getRenderable().setPrefabsVisibility(visible);
     }
 
     protected RenderableEntity(String id, T model, GLVboRenderable renderable){
@@ -39,17 +85,73 @@ public class RenderableEntity<T extends BoundingCoordinates> extends VisibleEnti
         this(IdGenerator.nextId(), model, renderable);
     }
 
+    /**
+     * @return The renderable of this entity, it is made if it has not been yet.
+     */
+    public GLVboRenderable getRenderable(){
+        GLVboRenderable renderable = this.renderable;
+        if(renderable != null){
+            return renderable;
+        }
+        synchronized (this){
+            if(this.renderable == null){
+                GLVboRenderable made = renderableFactory.get();
+                made.setPrefabsVisibility(isVisibleProperty().get());
+                this.renderable = made;
+            }
+            return this.renderable;
+        }
+    }
+
+    /**
+     * @return True if the renderable has been made (i.e the entity has been drawn).
+     */
+    public boolean hasRenderable(){
+        return renderable != null;
+    }
+
+    /**
+     * @param shownListener run when the entity is shown, null to stop telling anyone.
+     */
+    void setShownListener(Runnable shownListener) {
+        this.shownListener = shownListener;
+    }
+
+    /**
+     * Let go of the renderable if the entity has been hidden for a while, it is made again when next drawn.
+     * @param hiddenForNanos how long the entity must have been hidden (ignored if force is true)
+     * @param force release it even if the entity is visible, i.e because its layer is disabled
+     * @return the renderable that was let go (its graphics still need cleaning up), or null if it was kept.
+     */
+    public GLVboRenderable releaseRenderable(long hiddenForNanos, boolean force){
+        if(!releasable || renderable == null){
+            return null;
+        }
+        synchronized (this){
+            GLVboRenderable renderable = this.renderable;
+            //prefab graphics listen to the prefabs (which outlive the renderable), so keep them
+            if(renderable == null || renderable.hasPrefabGraphics()){
+                return null;
+            }
+            if(!force && (isVisibleProperty().get() || System.nanoTime() - hiddenSinceNanos < hiddenForNanos)){
+                return null;
+            }
+            this.renderable = null;
+            return renderable;
+        }
+    }
+
     /**
      * Puts the graphic in a state so that when it next draws the internals will be refreshed.
      */
     public GraphicsPayload getPayload(){
-        return renderable.getPayload();
+        return payload;
     }
 
     @Override
     public void render(DrawContext dc) {
-        if (renderable != null && isVisibleProperty().get()) {
-            renderable.render(dc);
+        if (isVisibleProperty().get()) {
+            getRenderable().render(dc);
         }
     }
 
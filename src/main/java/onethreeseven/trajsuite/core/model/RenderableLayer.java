@@ -1,18 +1,28 @@
 package onethreeseven.trajsuite.core.model;
 
+import gov.nasa.worldwind.geom.Box;
+import gov.nasa.worldwind.geom.Frustum;
 import gov.nasa.worldwind.layers.AbstractLayer;
-import gov.nasa.worldwind.pick.PickSupport;
 import gov.nasa.worldwind.render.DrawContext;
 import gov.nasa.worldwind.render.Renderable;
 import gov.nasa.worldwind.util.Logging;
+import onethreeseven.trajsuite.core.graphics.GLBatchRenderer;
 import onethreeseven.trajsuite.core.graphics.GLVboRenderable;
+import onethreeseven.trajsuite.core.graphics.GraphicsSettings;
+import onethreeseven.trajsuite.core.graphics.HeatmapRenderer;
+import onethreeseven.trajsuite.core.graphics.VertexPicker;
+import onethreeseven.trajsuite.core.util.WWBoundsUtil;
 import onethreeseven.trajsuitePlugin.model.VisibleEntityLayer;
 import onethreeseven.trajsuitePlugin.model.WrappedEntity;
 
-import javax.media.opengl.GL2;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 /**
  * A layer of {@link Renderable} that are added to the layer list for rendering.
@@ -21,25 +31,220 @@ public class RenderableLayer extends VisibleEntityLayer {
 
     private final AbstractLayer wwLayer;
 
+    /**
+     * When batch rendering, entities are packed into a few large VBOs and drawn together.
+     */
+    private boolean batchRendering = GraphicsSettings.useBatchRendering();
+    private final GLBatchRenderer batchRenderer = new GLBatchRenderer();
+    private final ArrayList<GLVboRenderable> batchMembers = new ArrayList<>();
+    private final Set<GLVboRenderable> drawnBatchMembers = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * A spatial index over the bounding boxes of the entities, so each frame only visits the entities
+     * that intersect the view frustum. It is only touched on the rendering thread, other threads
+     * just mark it as stale and it is brought up to date before the next frame.
+     */
+    private final BoundingVolumeHierarchy<RenderableEntity> spatialIndex = new BoundingVolumeHierarchy<>();
+    private final Map<RenderableEntity, Box> indexedBoxes = new IdentityHashMap<>();
+    private final Set<RenderableEntity> unboundedEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final double[] indexMin = new double[3];
+    private final double[] indexMax = new double[3];
+    private volatile boolean spatialIndexStale = true;
+    //entities whose bounds changed, re-inserted without walking the whole layer
+    private final ConcurrentLinkedQueue<RenderableEntity> movedEntities = new ConcurrentLinkedQueue<>();
+    //entities that were shown, inserted (and given graphics) without walking the whole layer
+    private final ConcurrentLinkedQueue<RenderableEntity> shownEntities = new ConcurrentLinkedQueue<>();
+
+    /**
+     * When the WorldWind layer was disabled (System.nanoTime), so graphics of disabled layers can be released.
+     * Only meaningful while it is disabled.
+     */
+    private volatile long disabledSinceNanos = System.nanoTime();
+
+    /**
+     * Picks the entity and the vertex of the entity under the cursor.
+     */
+    private final VertexPicker vertexPicker = new VertexPicker();
+    private final ArrayList<GLVboRenderable> pickCandidates = new ArrayList<>();
+    private final ArrayList<RenderableEntity> pickEntities = new ArrayList<>();
+
+    /**
+     * Draws the entities as a density heatmap (instead of drawing each entity).
+     */
+    private volatile boolean heatmapRendering = false;
+    private final HeatmapRenderer heatmapRenderer = new HeatmapRenderer();
+
     RenderableLayer(String layername, Map<String, RenderableEntity> entities){
         super(layername, entities, true);
         this.wwLayer = makeWWLayer();
+        this.batchRenderer.setOwner(layername);
     }
 
     RenderableLayer(String layerName) {
         super(layerName, true);
         this.wwLayer = makeWWLayer();
+        this.batchRenderer.setOwner(layerName);
     }
 
     public void add(RenderableEntity entity){
         super.add(entity);
+        invalidateSpatialIndex();
     }
 
     public RenderableEntity remove(String entityId){
         WrappedEntity entity = super.remove(entityId);
+        invalidateSpatialIndex();
         return (RenderableEntity) entity;
     }
 
+    /**
+     * Mark the spatial index as out of date, i.e because entities were added/removed or their bounds changed.
+     * It is re-synced with the entities in this layer before the next frame is drawn.
+     */
+    void invalidateSpatialIndex(){
+        spatialIndexStale = true;
+    }
+
+    /**
+     * Bring the spatial index up to date with the entities in this layer,
+     * only entities that are new or whose bounding box changed are re-inserted.
+     */
+    private void syncSpatialIndex(){
+        //clear the flag first, so changes made while syncing are picked up next frame
+        spatialIndexStale = false;
+        //every entity is visited anyway
+        movedEntities.clear();
+        shownEntities.clear();
+        Set<RenderableEntity> present = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Object entityObj : RenderableLayer.this) {
+            if(!(entityObj instanceof RenderableEntity)){
+                continue;
+            }
+            RenderableEntity entity = (RenderableEntity) entityObj;
+            //so only this entity is inserted when it is shown
+            entity.setShownListener(() -> shownEntities.add(entity));
+            if(syncEntity(entity)){
+                present.add(entity);
+            }
+        }
+        //remove the entities that are no longer in this layer
+        indexedBoxes.keySet().retainAll(present);
+        unboundedEntities.retainAll(present);
+        spatialIndex.retainIf(present::contains);
+    }
+
+    /**
+     * Bring the place of one entity in the spatial index up to date,
+     * it is only re-inserted if it is new or its bounding box changed.
+     * @return False if the entity is left out, i.e it is hidden and has no graphics yet.
+     */
+    private boolean syncEntity(RenderableEntity entity){
+        //hidden entities that have no graphics yet are left out until they are visible,
+        //visible ones get their graphics now (the first frame they could be drawn)
+        if(!entity.hasRenderable() && !entity.isVisibleProperty().get()){
+            return false;
+        }
+        Box box = entity.getRenderable().getBoundingBox();
+        //the renderable caches its box, so the same box means the same bounds
+        if(indexedBoxes.containsKey(entity) && indexedBoxes.get(entity) == box){
+            return true;
+        }
+        if(!indexedBoxes.containsKey(entity)){
+            //account the entity's gpu memory to this layer
+            entity.getRenderable().setBufferOwner(getLayerName());
+        }
+        //so only this entity is re-inserted when its bounds change
+        entity.getRenderable().setBoundsChangedListener(() -> movedEntities.add(entity));
+        index(entity, box);
+        return true;
+    }
+
+    /**
+     * Insert the entities that were shown and re-insert the entities whose bounds changed since the last frame.
+     */
+    private void syncChangedEntities(){
+        RenderableEntity entity;
+        while((entity = shownEntities.poll()) != null){
+            //it may have been hidden again since, entities that are removed stop telling this layer
+            if(entity.isVisibleProperty().get()){
+                syncEntity(entity);
+            }
+        }
+        while((entity = movedEntities.poll()) != null){
+            //it may have been removed (or released) since
+            if(!indexedBoxes.containsKey(entity) || !entity.hasRenderable()){
+                continue;
+            }
+            Box box = entity.getRenderable().getBoundingBox();
+            if(indexedBoxes.get(entity) != box){
+                index(entity, box);
+            }
+        }
+    }
+
+    private void index(RenderableEntity entity, Box box){
+        indexedBoxes.put(entity, box);
+        if(box == null){
+            spatialIndex.remove(entity);
+            unboundedEntities.add(entity);
+        }else{
+            unboundedEntities.remove(entity);
+            WWBoundsUtil.toAxisAlignedBounds(box, indexMin, indexMax);
+            spatialIndex.insert(entity, indexMin, indexMax);
+        }
+    }
+
+    /**
+     * Visit the visible entities that may be on screen this frame (in picking mode: those under the pick point).
+     * @param dc the draw context
+     * @param action what to do with each entity
+     */
+    private void forEachOnScreen(DrawContext dc, Consumer<RenderableEntity> action){
+        if(spatialIndexStale){
+            syncSpatialIndex();
+        }else if(!shownEntities.isEmpty() || !movedEntities.isEmpty()){
+            syncChangedEntities();
+        }
+        Frustum[] frustums = dc.isPickingMode() ?
+                dc.getPickFrustums().toArray(new Frustum[0]) :
+                new Frustum[]{dc.getView().getFrustumInModelCoordinates()};
+        Consumer<RenderableEntity> visibleAction = entity -> {
+            if(entity.isVisibleProperty().get()){
+                action.accept(entity);
+            }
+        };
+        spatialIndex.query(WWBoundsUtil.frustumTest(frustums), visibleAction);
+        //we do not know where these are yet, so let them cull themselves
+        unboundedEntities.forEach(visibleAction);
+    }
+
+    /**
+     * Release the graphics of entities that have been hidden for a while (or all of them if this layer
+     * has been disabled for a while), they are made again when next drawn.
+     * An enabled layer is never counted as hidden, even when nothing has been drawn for a while.
+     * @param hiddenForNanos how long an entity (or this layer) must have been hidden
+     * @param cleanup what to do with each released renderable, i.e queue it for cleanup
+     * @return the number of renderables released
+     */
+    int releaseHidden(long hiddenForNanos, Consumer<GLVboRenderable> cleanup){
+        boolean layerHidden = !wwLayer.isEnabled() && System.nanoTime() - disabledSinceNanos >= hiddenForNanos;
+        int nReleased = 0;
+        for (Object entityObj : RenderableLayer.this) {
+            if(!(entityObj instanceof RenderableEntity)){
+                continue;
+            }
+            GLVboRenderable released = ((RenderableEntity) entityObj).releaseRenderable(hiddenForNanos, layerHidden);
+            if(released != null){
+                cleanup.accept(released);
+                nReleased++;
+            }
+        }
+        if(nReleased > 0){
+            invalidateSpatialIndex();
+        }
+        return nReleased;
+    }
+
     @Override
     public RenderableEntity get(String id) {
         return (RenderableEntity) super.get(id);
@@ -49,20 +254,81 @@ public class RenderableLayer extends VisibleEntityLayer {
         return wwLayer;
     }
 
+    public boolean isBatchRendering() {
+        return batchRendering;
+    }
+
+    /**
+     * @param batchRendering True to draw all entities in this layer in batches (one draw call per rendering mode)
+     *                       instead of drawing each entity on its own.
+     */
+    public void setBatchRendering(boolean batchRendering) {
+        this.batchRendering = batchRendering;
+    }
+
+    public boolean isHeatmapRendering() {
+        return heatmapRendering;
+    }
+
+    /**
+     * @param heatmapRendering True to draw the vertices of all entities in this layer as a density heatmap,
+     *                         i.e for millions of points where drawing each point is just overdraw.
+     * @see #getHeatmapRenderer() to change the kernel radius and color ramp.
+     */
+    public void setHeatmapRendering(boolean heatmapRendering) {
+        this.heatmapRendering = heatmapRendering;
+    }
+
+    public HeatmapRenderer getHeatmapRenderer() {
+        return heatmapRenderer;
+    }
+
+    /**
+     * @param dc the draw context
+     * @return True if the heatmap was drawn, false if heatmaps are not supported.
+     */
+    private boolean renderHeatmap(DrawContext dc){
+        if(!heatmapRenderer.begin(dc)){
+            return false;
+        }
+        try{
+            forEachOnScreen(dc, entity -> heatmapRenderer.accumulate(dc, entity.getRenderable()));
+        }finally {
+            heatmapRenderer.end(dc);
+        }
+        return true;
+    }
+
+    private void renderBatched(DrawContext dc){
+        batchMembers.clear();
+        drawnBatchMembers.clear();
+        //first, so entities that get their graphics this frame are batched too
+        forEachOnScreen(dc, entity -> drawnBatchMembers.add(entity.getRenderable()));
+        for (Object entity : RenderableLayer.this) {
+            if(entity instanceof RenderableEntity && ((RenderableEntity) entity).hasRenderable()){
+                batchMembers.add(((RenderableEntity) entity).getRenderable());
+            }
+        }
+        batchRenderer.render(dc, batchMembers, drawnBatchMembers::contains);
+    }
+
     private AbstractLayer makeWWLayer(){
         AbstractLayer wwLayer = new AbstractLayer() {
 
-            private final PickSupport pickSupport = new PickSupport();
-
             @Override
             protected void doRender(DrawContext dc) {
-                for (Object entity : RenderableLayer.this) {
-                    if(entity instanceof RenderableEntity){
-                        if(((RenderableEntity) entity).isVisibleProperty().get()){
-                            ((RenderableEntity) entity).render(dc);
-                        }
-                    }
+                if(heatmapRendering && renderHeatmap(dc)){
+                    return;
                 }
+                if(batchRendering){
+                    renderBatched(dc);
+                    return;
+                }
+                //batching was turned off, release the batches
+                if(!batchRenderer.isEmpty()){
+                    batchRenderer.dispose(dc);
+                }
+                forEachOnScreen(dc, entity -> entity.render(dc));
             }
 
             @Override
@@ -70,53 +336,45 @@ public class RenderableLayer extends VisibleEntityLayer {
                 return RenderableLayer.this.getLayerName();
             }
 
+            @Override
+            public void setEnabled(boolean enabled) {
+                if(!enabled && isEnabled()){
+                    disabledSinceNanos = System.nanoTime();
+                }
+                super.setEnabled(enabled);
+            }
+
             //Picking
             @Override
             protected void doPick(DrawContext dc, Point pickPoint) {
                 //only do picking if the layer is visible
-                if (isEnabled()) {
-                    GL2 gl = dc.getGL().getGL2();
-                    //enable the color bit, essential for picking
-                    gl.glEnable(GL2.GL_COLOR_MATERIAL);
-                    pickSupport.clearPickList();
-                    pickSupport.beginPicking(dc);
-
+                if (isEnabled() && pickPoint != null) {
+                    pickCandidates.clear();
+                    pickEntities.clear();
+                    forEachOnScreen(dc, entity -> {
+                        pickCandidates.add(entity.getRenderable());
+                        pickEntities.add(entity);
+                    });
                     try {
-                        for (Object entityObj : RenderableLayer.this) {
-                            if(entityObj instanceof RenderableEntity){
-                                RenderableEntity entity = (RenderableEntity) entityObj;
-                                //set the unique picking color
-                                java.awt.Color color = dc.getUniquePickColor();
-                                gl.glColor3ub((byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue());
-                                try {
-                                    entity.render(dc);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                    String msg = Logging.getMessage("generic.ExceptionWhilePickingRenderable");
-                                    Logging.logger().severe(msg);
-                                    Logging.logger().log(java.util.logging.Level.FINER, msg, e); // show exception for this level
-                                    continue; // go on to next renderable
-                                }
-
-                                //add a pickable object
-                                pickSupport.addPickableObject(color.getRGB(), entity);
-                            }
-
+                        //batched entities are drawn from their batch, they have no vertex buffer of their own
+                        VertexPicker.Pick pick = vertexPicker.pick(dc, pickPoint, pickCandidates,
+                                batchRendering ? batchRenderer : null);
+                        if (pick != null) {
+                            vertexPicker.addPickedObject(dc, pickPoint, pick, pickEntities.get(pick.getCandidateIdx()), this);
                         }
-
-                        pickSupport.resolvePick(dc, pickPoint, this);
-                    } finally {
-                        pickSupport.endPicking(dc);
-                        //disable color bit
-                        gl.glDisable(GL2.GL_COLOR_MATERIAL);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        String msg = Logging.getMessage("generic.ExceptionWhilePickingRenderable");
+                        Logging.logger().severe(msg);
+                        Logging.logger().log(java.util.logging.Level.FINER, msg, e); // show exception for this level
                     }
                 }
             }
 
         };
 
-        //by default turn picking off
-        wwLayer.setPickEnabled(false);
+        //picking only draws the entities near the pick point into a tiny framebuffer, so it is cheap enough to leave on
+        wwLayer.setPickEnabled(true);
         return wwLayer;
     }
 
@@ -0,0 +1,276 @@
+package onethreeseven.trajsuite.core.model;
+
+import gov.nasa.worldwind.WorldWind;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A bounded on-disk cache of base map tiles, keyed by tile source (layer), level, column and row.
+ * Tiles are stored where WorldWind's mercator tile layers look for them
+ * ({@code <cache name>/<level>/<row>/<row>_<column><suffix>} in the WorldWind file store),
+ * so tiles put here (i.e by {@link TilePrefetcher}) are drawn without going to the network.
+ * When the tiles of the known sources take up more than the budget the least recently used ones are deleted
+ * (a tile is "used" when it is written or touched by the prefetcher).
+ * @author Luke Bermingham
+ */
+public class TileCacheStore {
+
+    private static final Logger logger = Logger.getLogger(TileCacheStore.class.getSimpleName());
+
+    /**
+     * Where a base map layer gets its tiles from, tiles are addressed with the usual slippy map zoom/x/y
+     * (y from the north), WorldWind's level zero is zoom {@link #LEVEL_ZERO_ZOOM}.
+     * Only sources that allow prefetching are bulk downloaded by the {@link TilePrefetcher},
+     * public servers like openstreetmap.org forbid it in their tile usage policies.
+     */
+    public static final class TileSource {
+
+        public static final int LEVEL_ZERO_ZOOM = 3;
+
+        public final String cacheName;
+        public final String service;
+        public final String formatSuffix;
+        public final int nLevels;
+        public final boolean allowsPrefetch;
+
+        /**
+         * A source whose tiles may only be fetched as they are viewed (not prefetched or seeded).
+         */
+        public TileSource(String cacheName, String service, String formatSuffix, int nLevels) {
+            this(cacheName, service, formatSuffix, nLevels, false);
+        }
+
+        /**
+         * @param allowsPrefetch True only if the server allows its tiles to be bulk downloaded.
+         */
+        public TileSource(String cacheName, String service, String formatSuffix, int nLevels, boolean allowsPrefetch) {
+            this.cacheName = cacheName;
+            this.service = service;
+            this.formatSuffix = formatSuffix;
+            this.nLevels = nLevels;
+            this.allowsPrefetch = allowsPrefetch;
+        }
+
+        /**
+         * @param service a server with the same tiles that allows them to be bulk downloaded (i.e your own tile server)
+         * @return A source that prefetches from that server into this source's cache, so its layer draws the tiles.
+         */
+        public TileSource mirroredAt(String service){
+            return new TileSource(cacheName, service, formatSuffix, nLevels, true);
+        }
+
+        public int getMinZoom(){
+            return LEVEL_ZERO_ZOOM;
+        }
+
+        public int getMaxZoom(){
+            return LEVEL_ZERO_ZOOM + nLevels - 1;
+        }
+
+        public URL getURL(int zoom, int x, int y) throws MalformedURLException {
+            return new URL(service + zoom + "/" + x + "/" + y + formatSuffix);
+        }
+
+        @Override
+        public String toString() {
+            return cacheName;
+        }
+    }
+
+    private static TileCacheStore inst = null;
+
+    private final File root;
+    private volatile long maxBytes;
+    private final AtomicLong sizeBytes = new AtomicLong(-1);
+    private final Set<TileSource> sources = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param root the directory the tiles are under
+     * @param maxBytes how many bytes of tiles to keep
+     */
+    public TileCacheStore(File root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The store in WorldWind's file store (2GB budget).
+     */
+    public static synchronized TileCacheStore getInstance(){
+        if(inst == null){
+            inst = new TileCacheStore(WorldWind.getDataFileStore().getWriteLocation(), 2L * 1024 * 1024 * 1024);
+        }
+        return inst;
+    }
+
+    /**
+     * @return The file a tile is stored in (whether or not it exists).
+     */
+    public File getFile(TileSource source, int zoom, int x, int y){
+        //a new source has tiles that are not counted yet
+        if(sources.add(source)){
+            sizeBytes.set(-1);
+        }
+        int level = zoom - TileSource.LEVEL_ZERO_ZOOM;
+        //worldwind counts rows from the south
+        int row = (1 << zoom) - 1 - y;
+        return new File(root, source.cacheName + File.separator + level + File.separator +
+                row + File.separator + row + "_" + x + source.formatSuffix);
+    }
+
+    public boolean contains(TileSource source, int zoom, int x, int y){
+        return getFile(source, zoom, x, y).isFile();
+    }
+
+    /**
+     * Mark a tile as recently used, so it is evicted last.
+     * @return True if the tile is in the cache.
+     */
+    public boolean touch(TileSource source, int zoom, int x, int y){
+        File file = getFile(source, zoom, x, y);
+        return file.isFile() && file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Store a tile (it is written to a temporary file then moved, so a tile is never seen half written).
+     * @param data the encoded tile image
+     */
+    public void put(TileSource source, int zoom, int x, int y, byte[] data) throws IOException {
+        File file = getFile(source, zoom, x, y);
+        File dir = file.getParentFile();
+        if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()){
+            throw new IOException("Could not make tile cache directory: " + dir);
+        }
+        long oldLength = file.isFile() ? file.length() : 0;
+        Path tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+        try{
+            Files.write(tmp, data);
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }finally {
+            Files.deleteIfExists(tmp);
+        }
+        if(sizeBytes.get() >= 0){
+            sizeBytes.addAndGet(data.length - oldLength);
+        }
+        if(getSizeBytes() > maxBytes){
+            evict();
+        }
+    }
+
+    /**
+     * Read a tile by mapping its file into memory.
+     * @return the tile's bytes, or null if it is not in the cache.
+     */
+    public ByteBuffer read(TileSource source, int zoom, int x, int y) throws IOException {
+        File file = getFile(source, zoom, x, y);
+        if(!file.isFile()){
+            return null;
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * @return How many bytes the tiles of the known sources take up.
+     */
+    public long getSizeBytes(){
+        long size = sizeBytes.get();
+        if(size < 0){
+            size = 0;
+            for (File file : listTiles()) {
+                size += file.length();
+            }
+            sizeBytes.set(size);
+        }
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if(getSizeBytes() > maxBytes){
+            evict();
+        }
+    }
+
+    /**
+     * Delete the least recently used tiles until the cache is back to 90% of its budget
+     * (so it is not evicting on every put).
+     */
+    public synchronized void evict(){
+        List<File> tiles = listTiles();
+        long[] lastModified = new long[tiles.size()];
+        long size = 0;
+        List<Integer> order = new ArrayList<>(tiles.size());
+        for (int i = 0; i < tiles.size(); i++) {
+            lastModified[i] = tiles.get(i).lastModified();
+            size += tiles.get(i).length();
+            order.add(i);
+        }
+        long target = (long) (maxBytes * 0.9);
+        if(size <= target){
+            sizeBytes.set(size);
+            return;
+        }
+        order.sort(Comparator.comparingLong(i -> lastModified[i]));
+        int nEvicted = 0;
+        for (int i : order) {
+            if(size <= target){
+                break;
+            }
+            File tile = tiles.get(i);
+            long length = tile.length();
+            if(tile.delete()){
+                size -= length;
+                nEvicted++;
+            }
+        }
+        sizeBytes.set(size);
+        logger.fine("Evicted " + nEvicted + " tiles, the tile cache is now " + size + " bytes.");
+    }
+
+    private List<File> listTiles(){
+        List<File> tiles = new ArrayList<>();
+        //a mirror shares the cache of the source it mirrors
+        Set<String> listed = new HashSet<>();
+        for (TileSource source : sources) {
+            File dir = new File(root, source.cacheName);
+            if(!listed.add(source.cacheName) || !dir.isDirectory()){
+                continue;
+            }
+            try(Stream<Path> paths = Files.walk(dir.toPath())){
+                paths.filter(p -> p.toString().endsWith(source.formatSuffix))
+                        .map(Path::toFile)
+                        .filter(File::isFile)
+                        .forEach(tiles::add);
+            }catch (IOException e){
+                logger.log(Level.WARNING, "Could not list the tiles in " + dir, e);
+            }
+        }
+        return tiles;
+    }
+
+}
@@ -0,0 +1,357 @@
+package onethreeseven.trajsuite.core.model;
+
+import gov.nasa.worldwind.WorldWind;
+import gov.nasa.worldwind.WorldWindow;
+import gov.nasa.worldwind.event.RenderingEvent;
+import gov.nasa.worldwind.layers.Layer;
+import onethreeseven.geo.model.LatLonBounds;
+import onethreeseven.trajsuite.core.graphics.VectorTile;
+import onethreeseven.trajsuite.core.util.WWExtrasUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads base map tiles into the {@link TileCacheStore} before WorldWind asks for them.
+ * While following a view it fetches the tiles around what is on screen and the next zoom level in,
+ * so panning and zooming find their tiles already on disk.
+ * It can also seed an area of interest ahead of time, so the base map works with no network (i.e demos and field work).
+ * The newest requests are fetched first and the oldest are dropped when too many are waiting,
+ * because the camera has usually moved on from them.
+ * Only sources that allow it are prefetched or seeded (the public OSM and Stamen servers do not),
+ * give a layer's source a mirror you may bulk download from with {@link #setMirror(TileCacheStore.TileSource, TileCacheStore.TileSource)}.
+ * @author Luke Bermingham
+ */
+public class TilePrefetcher {
+
+    private static final Logger logger = Logger.getLogger(TilePrefetcher.class.getSimpleName());
+
+    private static final int MAX_QUEUED = 512;
+    private static final int N_WORKERS = 2;
+    private static final long VIEW_PREFETCH_COOLDOWN_MS = 250;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    private static TilePrefetcher inst = null;
+
+    private final TileCacheStore store;
+    private final LinkedBlockingDeque<TileRequest> queue = new LinkedBlockingDeque<>();
+    private final Set<TileRequest> queued = ConcurrentHashMap.newKeySet();
+    private final Map<TileCacheStore.TileSource, TileCacheStore.TileSource> mirrors = new ConcurrentHashMap<>();
+    private volatile boolean enabled = true;
+    private long lastViewPrefetchMs = 0;
+    private LatLonBounds lastView = null;
+
+    private static final class TileRequest {
+        final TileCacheStore.TileSource source;
+        final int zoom;
+        final int x;
+        final int y;
+
+        TileRequest(TileCacheStore.TileSource source, int zoom, int x, int y) {
+            this.source = source;
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TileRequest)) return false;
+            TileRequest that = (TileRequest) o;
+            return zoom == that.zoom && x == that.x && y == that.y && source == that.source;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(VectorTile.key(zoom, x, y)) + System.identityHashCode(source);
+        }
+    }
+
+    public TilePrefetcher(TileCacheStore store) {
+        this.store = store;
+        for (int i = 0; i < N_WORKERS; i++) {
+            Thread t = new Thread(this::work, "Tile prefetcher " + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public static synchronized TilePrefetcher getInstance(){
+        if(inst == null){
+            inst = new TilePrefetcher(TileCacheStore.getInstance());
+        }
+        return inst;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled False to stop fetching tiles as the view moves (seeding still works).
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if(!enabled){
+            queue.clear();
+            queued.clear();
+        }
+    }
+
+    /**
+     * @return The tile source of a layer, or null if its tiles cannot be prefetched.
+     */
+    public static TileCacheStore.TileSource getTileSource(Layer layer){
+        if(layer instanceof OSMMapnikHigherResLayer){
+            return OSMMapnikHigherResLayer.TILE_SOURCE;
+        }
+        if(layer instanceof StamenTonerBaseMapLayer){
+            return StamenTonerBaseMapLayer.TILE_SOURCE;
+        }
+        return null;
+    }
+
+    /**
+     * Prefetch (and seed) a layer's tiles from another server, i.e one you are allowed to bulk download from.
+     * @param source the tile source of a layer, see {@link #getTileSource(Layer)}
+     * @param mirror where to download its tiles from instead, see {@link TileCacheStore.TileSource#mirroredAt(String)},
+     *               or null to stop using a mirror
+     */
+    public void setMirror(TileCacheStore.TileSource source, TileCacheStore.TileSource mirror){
+        if(mirror == null){
+            mirrors.remove(source);
+        }else{
+            mirrors.put(source, mirror);
+        }
+    }
+
+    /**
+     * @return Where to prefetch a source's tiles from, or null if they cannot be prefetched.
+     */
+    private TileCacheStore.TileSource prefetchSourceOf(TileCacheStore.TileSource source){
+        TileCacheStore.TileSource prefetchSource = mirrors.getOrDefault(source, source);
+        return prefetchSource.allowsPrefetch ? prefetchSource : null;
+    }
+
+    /**
+     * Prefetch tiles for the enabled base map layers whenever the view moves.
+     * It checks after frames are drawn (rather than listening to the view) so it keeps working when the view is replaced.
+     * @param wwd the world window to follow
+     */
+    public void followView(WorldWindow wwd){
+        wwd.addRenderingListener(event -> {
+            if(!enabled || !RenderingEvent.AFTER_BUFFER_SWAP.equals(event.getStage())){
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if(now - lastViewPrefetchMs < VIEW_PREFETCH_COOLDOWN_MS){
+                return;
+            }
+            lastViewPrefetchMs = now;
+            LatLonBounds visible = WWExtrasUtil.getVisibleSector(wwd.getView());
+            if(visible == null || visible.equals(lastView)){
+                return;
+            }
+            lastView = visible;
+            int viewportWidth = Math.max(1, wwd.getView().getViewport().width);
+            for (Layer layer : wwd.getModel().getLayers()) {
+                TileCacheStore.TileSource source = getTileSource(layer);
+                if(source != null && layer.isEnabled() && prefetchSourceOf(source) != null){
+                    prefetchView(source, visible, viewportWidth);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue the tiles around the view (one tile beyond each edge) and the tiles of the view one zoom level in.
+     * Nothing is queued if the source (or its mirror) does not allow prefetching.
+     * @param source where the tiles come from
+     * @param view the area on screen
+     * @param viewportWidth how many pixels wide the screen is
+     */
+    public void prefetchView(TileCacheStore.TileSource source, LatLonBounds view, int viewportWidth){
+        source = prefetchSourceOf(source);
+        if(source == null){
+            return;
+        }
+        int zoom = zoomForView(source, view, viewportWidth);
+        //queued newest first, so queue the next zoom first and the tiles on screen last
+        if(zoom < source.getMaxZoom()){
+            queueArea(source, view, zoom + 1, 0);
+        }
+        queueArea(source, view, zoom, 1);
+    }
+
+    /**
+     * @return The zoom level whose tiles are closest to one tile pixel per screen pixel for this view.
+     */
+    static int zoomForView(TileCacheStore.TileSource source, LatLonBounds view, int viewportWidth){
+        double lonSpan = Math.max(1e-9, view.getMaxLon() - view.getMinLon());
+        double tilesAcross = viewportWidth / (double) VectorTile.TILE_SIZE_PIXELS;
+        int zoom = (int) Math.floor(Math.log(tilesAcross * 360.0 / lonSpan) / Math.log(2));
+        return Math.max(source.getMinZoom(), Math.min(source.getMaxZoom(), zoom));
+    }
+
+    private void queueArea(TileCacheStore.TileSource source, LatLonBounds area, int zoom, int border){
+        int n = 1 << zoom;
+        int minX = Math.max(0, VectorTile.toTile(VectorTile.mercatorX(area.getMinLon()), zoom) - border);
+        int maxX = Math.min(n - 1, VectorTile.toTile(VectorTile.mercatorX(area.getMaxLon()), zoom) + border);
+        int minY = Math.max(0, VectorTile.toTile(VectorTile.mercatorY(area.getMaxLat()), zoom) - border);
+        int maxY = Math.min(n - 1, VectorTile.toTile(VectorTile.mercatorY(area.getMinLat()), zoom) + border);
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                queue(new TileRequest(source, zoom, x, y));
+            }
+        }
+    }
+
+    private void queue(TileRequest request){
+        if(!queued.add(request)){
+            return;
+        }
+        queue.offerFirst(request);
+        //drop the oldest requests, the camera has moved on from them
+        while(queue.size() > MAX_QUEUED){
+            TileRequest dropped = queue.pollLast();
+            if(dropped == null){
+                break;
+            }
+            queued.remove(dropped);
+        }
+    }
+
+    private void work(){
+        while(true){
+            TileRequest request;
+            try {
+                request = queue.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try{
+                //already on disk, just mark it as used
+                if(!store.touch(request.source, request.zoom, request.x, request.y)){
+                    fetch(request);
+                }
+            }catch (IOException e){
+                logger.log(Level.FINE, "Could not prefetch tile " + request.zoom + "/" + request.x + "/" + request.y, e);
+            }finally {
+                queued.remove(request);
+            }
+        }
+    }
+
+    /**
+     * Download a tile into the cache if it is not there already.
+     * @return True if the tile was downloaded.
+     */
+    private boolean fetch(TileRequest request) throws IOException {
+        if(store.contains(request.source, request.zoom, request.x, request.y)){
+            return false;
+        }
+        if(WorldWind.getNetworkStatus().isNetworkUnavailable()){
+            return false;
+        }
+        URLConnection connection = request.source.getURL(request.zoom, request.x, request.y).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        //tile servers ask that clients identify themselves
+        connection.setRequestProperty("User-Agent", "TrajSuite");
+        if(connection instanceof HttpURLConnection){
+            int code = ((HttpURLConnection) connection).getResponseCode();
+            if(code != HttpURLConnection.HTTP_OK){
+                throw new IOException("Tile server responded " + code);
+            }
+        }
+        byte[] data;
+        try(InputStream in = connection.getInputStream()){
+            ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+            byte[] buf = new byte[8192];
+            int read;
+            while((read = in.read(buf)) != -1){
+                out.write(buf, 0, read);
+            }
+            data = out.toByteArray();
+        }
+        if(data.length == 0){
+            throw new IOException("Tile was empty.");
+        }
+        store.put(request.source, request.zoom, request.x, request.y, data);
+        return true;
+    }
+
+    /**
+     * Download every tile of an area between two zoom levels (on the calling thread), i.e before going offline.
+     * Tiles already in the cache are not downloaded again.
+     * @param source where the tiles come from, it (or its mirror) must allow prefetching
+     * @param area the area of interest
+     * @param minZoom the first zoom level
+     * @param maxZoom the last zoom level (inclusive)
+     * @param progress told how many tiles are done so far (may be null)
+     * @return the number of tiles downloaded
+     * @throws IllegalArgumentException if the source does not allow its tiles to be bulk downloaded
+     */
+    public int seed(TileCacheStore.TileSource source, LatLonBounds area, int minZoom, int maxZoom, IntConsumer progress){
+        TileCacheStore.TileSource prefetchSource = prefetchSourceOf(source);
+        if(prefetchSource == null){
+            throw new IllegalArgumentException("The " + source + " tile server does not allow bulk downloads, " +
+                    "seed from a server that does (see TilePrefetcher.setMirror).");
+        }
+        source = prefetchSource;
+        minZoom = Math.max(source.getMinZoom(), minZoom);
+        maxZoom = Math.min(source.getMaxZoom(), maxZoom);
+        int nDone = 0;
+        int nDownloaded = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            int minX = VectorTile.toTile(VectorTile.mercatorX(area.getMinLon()), zoom);
+            int maxX = VectorTile.toTile(VectorTile.mercatorX(area.getMaxLon()), zoom);
+            int minY = VectorTile.toTile(VectorTile.mercatorY(area.getMaxLat()), zoom);
+            int maxY = VectorTile.toTile(VectorTile.mercatorY(area.getMinLat()), zoom);
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    try{
+                        if(fetch(new TileRequest(source, zoom, x, y))){
+                            nDownloaded++;
+                        }
+                    }catch (IOException e){
+                        logger.log(Level.WARNING, "Could not seed tile " + zoom + "/" + x + "/" + y, e);
+                    }
+                    nDone++;
+                    if(progress != null){
+                        progress.accept(nDone);
+                    }
+                }
+            }
+        }
+        return nDownloaded;
+    }
+
+    /**
+     * @return How many tiles {@link #seed(TileCacheStore.TileSource, LatLonBounds, int, int, IntConsumer)} would visit.
+     */
+    public static long countTiles(LatLonBounds area, int minZoom, int maxZoom){
+        long count = 0;
+        for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+            long nx = VectorTile.toTile(VectorTile.mercatorX(area.getMaxLon()), zoom) -
+                    VectorTile.toTile(VectorTile.mercatorX(area.getMinLon()), zoom) + 1;
+            long ny = VectorTile.toTile(VectorTile.mercatorY(area.getMinLat()), zoom) -
+                    VectorTile.toTile(VectorTile.mercatorY(area.getMaxLat()), zoom) + 1;
+            count += nx * ny;
+        }
+        return count;
+    }
+
+}
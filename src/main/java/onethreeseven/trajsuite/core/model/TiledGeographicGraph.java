@@ -0,0 +1,210 @@
+package onethreeseven.trajsuite.core.model;
+
+import onethreeseven.geo.model.LatLonBounds;
+import onethreeseven.geo.projection.AbstractGeographicProjection;
+
+import java.nio.DoubleBuffer;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+/**
+ * A geographic graph whose edges are projected and indexed once, so finding the edges in view
+ * is a lookup of the grid cells in view rather than a search of the whole graph.
+ * When it knows its graph's edges it also keeps coarser versions of itself (only the major roads, with straighter ways)
+ * for viewing from far away, so zooming out over a city does not draw every street.
+ * The coarser versions are built in the background when the graph is made (coarsest first),
+ * until a level is ready the nearest level that is ready is drawn instead.
+ * @see EdgeTileIndex
+ * @author Luke Bermingham
+ */
+public class TiledGeographicGraph extends GeographicGraph {
+
+    private static final Logger logger = Logger.getLogger(TiledGeographicGraph.class.getSimpleName());
+
+    private static final ThreadFactory tf = r -> {
+        Thread t = new Thread(r, "GraphLevelBuilder");
+        t.setDaemon(true);
+        return t;
+    };
+    private static final ExecutorService levelBuilder = Executors.newSingleThreadExecutor(tf);
+
+    /**
+     * A coarser version of the graph, drawn while the eye is at least a certain altitude.
+     */
+    public static final class Level {
+        private final double minAltitude;
+        private final int maxRoadClass;
+        private final double simplifyTolerance;
+
+        /**
+         * @param minAltitude the eye altitude (in metres) this level is drawn from
+         * @param maxRoadClass the least important road class drawn, see {@link GraphEdgeDAO#getRoadClass(int)}
+         * @param simplifyTolerance how far (in degrees) way geometry may be straightened
+         */
+        public Level(double minAltitude, int maxRoadClass, double simplifyTolerance) {
+            this.minAltitude = minAltitude;
+            this.maxRoadClass = maxRoadClass;
+            this.simplifyTolerance = simplifyTolerance;
+        }
+    }
+
+    //full detail below 5km, then fewer roads and straighter ways as the eye gets higher
+    private static final Level[] DEFAULT_LEVELS = new Level[]{
+            new Level(5000, 2, 0.0001),
+            new Level(50000, 1, 0.001),
+            new Level(500000, 0, 0.01)
+    };
+
+    //how many batches the edges in view are streamed in
+    private static final int N_BATCHES = 6;
+
+    private final EdgeTileIndex index;
+    private final GraphEdgeDAO dao;
+    private final AbstractGeographicProjection projection;
+    private final Level[] levels;
+    //built in the background, null until each level is ready
+    private final AtomicReferenceArray<EdgeTileIndex> levelIndices;
+    private final CompletableFuture<Void> levelsBuilt;
+
+    public TiledGeographicGraph(EdgeTileIndex index, AbstractGeographicProjection projection) {
+        this(index, null, projection, new Level[0]);
+    }
+
+    public TiledGeographicGraph(GraphEdgeDAO dao, AbstractGeographicProjection projection) {
+        this(EdgeTileIndex.build(dao, projection), dao, projection);
+    }
+
+    public TiledGeographicGraph(EdgeTileIndex index, GraphEdgeDAO dao, AbstractGeographicProjection projection) {
+        this(index, dao, projection, DEFAULT_LEVELS);
+    }
+
+    /**
+     * @param index the full detail index of the graph
+     * @param dao the graph, to build the coarser levels from
+     * @param projection the projection of the edges
+     * @param levels the coarser levels, in order of increasing altitude
+     */
+    public TiledGeographicGraph(EdgeTileIndex index, GraphEdgeDAO dao, AbstractGeographicProjection projection,
+                                Level[] levels) {
+        super(index.getSector(), projection);
+        this.index = index;
+        this.dao = dao;
+        this.projection = projection;
+        this.levels = dao == null ? new Level[0] : levels;
+        this.levelIndices = new AtomicReferenceArray<>(this.levels.length);
+        this.levelsBuilt = this.levels.length == 0 ?
+                CompletableFuture.completedFuture(null) :
+                CompletableFuture.runAsync(this::buildLevels, levelBuilder);
+    }
+
+    /**
+     * Build the coarser levels, coarsest (and quickest) first.
+     */
+    private void buildLevels(){
+        for (int levelOfDetail = levels.length; levelOfDetail > 0; levelOfDetail--) {
+            long startTime = System.currentTimeMillis();
+            Level level = levels[levelOfDetail - 1];
+            try{
+                levelIndices.set(levelOfDetail - 1, EdgeTileIndex.build(dao, projection, EdgeTileIndex.DEFAULT_EDGES_PER_CELL,
+                        edgeId -> dao.getRoadClass(edgeId) <= level.maxRoadClass, level.simplifyTolerance));
+            }catch (Exception e){
+                logger.log(java.util.logging.Level.SEVERE, "Could not build level of detail " + levelOfDetail, e);
+                continue;
+            }
+            logger.info("Built level of detail " + levelOfDetail + " in " +
+                    (System.currentTimeMillis() - startTime) + " millis.");
+        }
+    }
+
+    /**
+     * Wait for the coarser levels to be built, i.e before timing or testing them.
+     */
+    void awaitLevels() throws InterruptedException, ExecutionException {
+        levelsBuilt.get();
+    }
+
+    @Override
+    public DoubleBuffer getEdges(LatLonBounds viewBounds) {
+        return index.getEdges(viewBounds);
+    }
+
+    @Override
+    public DoubleBuffer getEdges(LatLonBounds viewBounds, double eyeAltitude) {
+        return getIndex(getLevelOfDetail(eyeAltitude)).getEdges(viewBounds);
+    }
+
+    @Override
+    public boolean streamEdges(LatLonBounds viewBounds, double eyeAltitude,
+                               Consumer<DoubleBuffer> batch, BooleanSupplier cancelled) {
+        return getIndex(getLevelOfDetail(eyeAltitude)).streamEdges(viewBounds, N_BATCHES, batch, cancelled);
+    }
+
+    /**
+     * @return The level of detail for this altitude that is ready to draw, the nearest one to the level
+     * that suits the altitude (preferring the coarser one) while that level is still being built.
+     */
+    @Override
+    public int getLevelOfDetail(double eyeAltitude) {
+        int wanted = 0;
+        while(wanted < levels.length && eyeAltitude >= levels[wanted].minAltitude){
+            wanted++;
+        }
+        //full detail is always ready, so this stops
+        for (int offset = 0; ; offset++) {
+            if(isBuilt(wanted + offset)){
+                return wanted + offset;
+            }
+            if(isBuilt(wanted - offset)){
+                return wanted - offset;
+            }
+        }
+    }
+
+    private boolean isBuilt(int levelOfDetail){
+        return levelOfDetail == 0 ||
+                (levelOfDetail > 0 && levelOfDetail <= levels.length && levelIndices.get(levelOfDetail - 1) != null);
+    }
+
+    /**
+     * Visit the id of each edge in view once, including edges of pieces of the graph that
+     * are not connected to the rest.
+     * @param viewBounds the visible bounds
+     * @param action given each edge id
+     * @return the number of edges visited
+     */
+    public int forEachEdge(LatLonBounds viewBounds, IntConsumer action) {
+        return index.forEachEdge(viewBounds, action);
+    }
+
+    @Override
+    public Iterator<double[]> coordinateIter() {
+        throw new UnsupportedOperationException("Cannot iterate the coordinate of a graph that changes with the viewport.");
+    }
+
+    @Override
+    public Iterator<double[]> geoCoordinateIter() {
+        throw new UnsupportedOperationException("Cannot iterate the coordinate of a graph that changes with the viewport.");
+    }
+
+    public EdgeTileIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @param levelOfDetail 0 for full detail, see {@link #getLevelOfDetail(double)}
+     * @return the index of that level, or null if it is still being built
+     */
+    public EdgeTileIndex getIndex(int levelOfDetail) {
+        return levelOfDetail == 0 ? index : levelIndices.get(levelOfDetail - 1);
+    }
+
+}
@@ -1,9 +1,16 @@
 package onethreeseven.trajsuite.core.model;
 
+import gov.nasa.worldwind.globes.Globe;
 import gov.nasa.worldwind.layers.LayerList;
 import javafx.beans.value.ChangeListener;
 import javafx.collections.ListChangeListener;
 import onethreeseven.trajsuite.core.graphics.GLVboRenderable;
+import onethreeseven.trajsuite.core.graphics.GraphicsSettings;
+import onethreeseven.trajsuite.core.graphics.VectorTileBuilder;
+import onethreeseven.trajsuite.core.graphics.VectorTileLayer;
+import onethreeseven.trajsuite.core.graphics.VectorTileStore;
+import onethreeseven.trajsuite.core.util.RedrawScheduler;
+import onethreeseven.trajsuite.core.util.TemporalUtil;
 import onethreeseven.trajsuitePlugin.graphics.GraphicsPayload;
 import onethreeseven.trajsuitePlugin.graphics.GraphicsPrefab;
 import onethreeseven.trajsuitePlugin.graphics.RenderingModes;
@@ -13,7 +20,11 @@ import onethreeseven.trajsuitePlugin.model.WrappedEntity;
 import onethreeseven.trajsuitePlugin.model.WrappedEntityLayer;
 import onethreeseven.trajsuitePlugin.transaction.AddEntitiesTransaction;
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Logger;
 
 /**
  * The manager of all layers and persistent entities.
@@ -21,22 +32,40 @@ import java.util.*;
  */
 public class TrajsuiteLayers extends Layers {
 
+    private static final Logger logger = Logger.getLogger(TrajsuiteLayers.class.getSimpleName());
+
     private final LayerList renderableLayers;
     private final CleanupLayer cleanupLayer;
+    private final Collection<RenderableLayer> entityLayers = new ArrayList<>();
+    private final RedrawScheduler redrawScheduler = new RedrawScheduler();
+
+    /**
+     * How often hidden entities are checked for graphics to release.
+     */
+    private static final long RELEASE_CHECK_INTERVAL_NANOS = 1_000_000_000L;
+    private long lastReleaseCheckNanos = 0;
 
     public TrajsuiteLayers(){
         super();
         this.renderableLayers = new LayerList();
         this.cleanupLayer = new CleanupLayer();
         this.renderableLayers.add(cleanupLayer);
+        this.cleanupLayer.setBeforeCleanup(this::releaseHiddenRenderables);
     }
 
     @Override
     protected WrappedEntity newEntity(String entityId, Object model, boolean selected, boolean visible, GraphicsPayload graphicsPayload) {
         if(model instanceof BoundingCoordinates){
             BoundingCoordinates boundingModel = (BoundingCoordinates) model;
-            GLVboRenderable renderable = new GLVboRenderable(boundingModel, graphicsPayload, renderableLayers);
-            return new RenderableEntity<>(entityId, boundingModel, selected, visible, renderable);
+            //so spatio-temporal models can be played back, read once here rather than on the rendering thread
+            //each time the renderable is made
+            long[] vertexTimes = TemporalUtil.getSortedTimes(model);
+            //the renderable is made the first frame the entity is drawn, hidden entities cost no graphics
+            return new RenderableEntity<>(entityId, boundingModel, selected, visible, graphicsPayload, () -> {
+                GLVboRenderable renderable = new GLVboRenderable(boundingModel, graphicsPayload, renderableLayers);
+                renderable.setVertexTimes(vertexTimes);
+                return renderable;
+            });
         }
         return super.newEntity(entityId, model, selected, visible, graphicsPayload);
     }
@@ -60,6 +89,9 @@ public class TrajsuiteLayers extends Layers {
         RenderableLayer layer = new RenderableLayer(layerName, renderableEntitiesmap);
         if(renderableLayers != null){
             renderableLayers.add(layer.getWorldWindLayer());
+            synchronized (entityLayers){
+                entityLayers.add(layer);
+            }
         }
         return layer;
     }
@@ -70,6 +102,43 @@ public class TrajsuiteLayers extends Layers {
         //removes it from worldwind
         if(layer instanceof RenderableLayer){
             renderableLayers.remove(((RenderableLayer) layer).getWorldWindLayer());
+            synchronized (entityLayers){
+                entityLayers.remove(layer);
+            }
+        }
+    }
+
+    /**
+     * The spatial indices of the layers must be re-synced because an entity was added/removed or its bounds changed.
+     */
+    private void invalidateSpatialIndices(){
+        synchronized (entityLayers){
+            for (RenderableLayer layer : entityLayers) {
+                layer.invalidateSpatialIndex();
+            }
+        }
+    }
+
+    /**
+     * Release the graphics of entities that have been hidden for longer than
+     * {@link GraphicsSettings#getReleaseHiddenAfterSeconds()}, called on the rendering thread each frame.
+     */
+    private void releaseHiddenRenderables(){
+        double releaseAfterSeconds = GraphicsSettings.getReleaseHiddenAfterSeconds();
+        long now = System.nanoTime();
+        if(releaseAfterSeconds <= 0 || now - lastReleaseCheckNanos < RELEASE_CHECK_INTERVAL_NANOS){
+            return;
+        }
+        lastReleaseCheckNanos = now;
+        long hiddenForNanos = (long) (releaseAfterSeconds * 1e9);
+        int nReleased = 0;
+        synchronized (entityLayers){
+            for (RenderableLayer layer : entityLayers) {
+                nReleased += layer.releaseHidden(hiddenForNanos, cleanupLayer::add);
+            }
+        }
+        if(nReleased > 0){
+            logger.fine("Released the graphics of " + nReleased + " hidden entities.");
         }
     }
 
@@ -79,15 +148,95 @@ public class TrajsuiteLayers extends Layers {
         process(transaction);
     }
 
+    /**
+     * Add many entities in one transaction, i.e loading a large dataset.
+     * The globe is redrawn once at the end rather than as each entity is added,
+     * and the throughput (entities per second) is logged.
+     * @param layername the layer to add the entities to
+     * @param models the models by their entity id
+     * @param payloadFactory makes the graphics payload of each model
+     * @param <T> the type of model
+     */
+    public <T extends BoundingCoordinates> void addAll(String layername, Map<String, T> models,
+                                                       Function<? super T, GraphicsPayload> payloadFactory){
+        if(models.isEmpty()){
+            return;
+        }
+        long startNanos = System.nanoTime();
+        AddEntitiesTransaction transaction = new AddEntitiesTransaction();
+        for (Map.Entry<String, T> entry : models.entrySet()) {
+            transaction.add(layername, entry.getKey(), entry.getValue(), payloadFactory.apply(entry.getValue()));
+        }
+        redrawScheduler.runSuspended(() -> process(transaction));
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        logger.info(String.format("Added %d entities to %s in %.2fs (%.0f entities/s)",
+                models.size(), layername, seconds, models.size() / seconds));
+    }
+
+    /**
+     * Build a vector tile pyramid of a layer's entities and draw it with a {@link VectorTileLayer},
+     * i.e so a huge layer can be viewed zoomed out (disable the entity layer to only draw the tiles).
+     * Building can take a while, so call this off the rendering and FX threads.
+     * @param layername the entity layer to tile
+     * @param dir where the tiles are written
+     * @param globe the globe the tiles are projected onto
+     * @return the tile layer that was added
+     * @throws IOException if a tile could not be written
+     */
+    public VectorTileLayer addVectorTileLayer(String layername, File dir, Globe globe) throws IOException {
+        RenderableLayer layer = null;
+        synchronized (entityLayers){
+            for (RenderableLayer entityLayer : entityLayers) {
+                if(entityLayer.getLayerName().equals(layername)){
+                    layer = entityLayer;
+                    break;
+                }
+            }
+        }
+        if(layer == null){
+            throw new IllegalArgumentException("There is no entity layer called " + layername);
+        }
+
+        VectorTileBuilder builder = new VectorTileBuilder();
+        for (Object entityObj : layer) {
+            if(entityObj instanceof RenderableEntity){
+                RenderableEntity entity = (RenderableEntity) entityObj;
+                builder.add((BoundingCoordinates) entity.getModel(), entity.getPayload());
+            }
+        }
+        VectorTileStore store = new VectorTileStore(dir);
+        builder.build(globe, store);
+
+        VectorTileLayer tileLayer = new VectorTileLayer(layername + " (tiles)", store);
+        renderableLayers.add(tileLayer);
+        return tileLayer;
+    }
+
     public LayerList getRenderableLayers() {
         return renderableLayers;
     }
 
+    /**
+     * @return The scheduler that redraws the globe when entities are edited,
+     * suspend it while making bulk edits so they cause one redraw.
+     */
+    public RedrawScheduler getRedrawScheduler() {
+        return redrawScheduler;
+    }
+
+    /**
+     * @return The number of removed entities whose graphics have not been released yet.
+     */
+    public int getNPendingCleanups() {
+        return cleanupLayer.getNPending();
+    }
+
     ////////////////////////////////////////////
     //Properties that count towards edits
     ////////////////////////////////////////////
 
     final ListChangeListener<GraphicsPrefab> graphicsPrefabsChanged = c -> accumulator.accumulate();
+    //an entity whose bounds change tells its own layer, see GLBaseRenderable#setBoundsChangedListener
     final ChangeListener<? super Boolean> isDirtyChanged = (ChangeListener<Boolean>) (observable, oldValue, newValue) -> accumulator.accumulate();
     final ChangeListener<? super Color> colorChanged = (ChangeListener<Color>) (observable, oldValue, newValue) -> accumulator.accumulate();
     final ChangeListener<? super Boolean> drawOnTopChanged = (ChangeListener<Boolean>) (observable, oldValue, newValue) -> accumulator.accumulate();
@@ -100,6 +249,7 @@ public class TrajsuiteLayers extends Layers {
     protected void onEntityAdded(WrappedEntity entity) {
         super.onEntityAdded(entity);
         if(entity instanceof RenderableEntity){
+            invalidateSpatialIndices();
             GraphicsPayload payload = ((RenderableEntity) entity).getPayload();
             payload.additionalPrefabs.addListener(graphicsPrefabsChanged);
             payload.isDirty.addListener(isDirtyChanged);
@@ -126,8 +276,14 @@ public class TrajsuiteLayers extends Layers {
             payload.smoothPoints.removeListener(smoothPointsChanged);
             payload.pointOrLineSize.removeListener(pointOrLineSizeChanged);
             payload.renderingMode.removeListener(renderingModeChanged);
-            //add the graphic to the cleanup layer
-            cleanupLayer.add(((RenderableEntity) entity).renderable);
+            //an entity being shown tells its own layer, see RenderableLayer#syncSpatialIndex
+            ((RenderableEntity) entity).setShownListener(null);
+            invalidateSpatialIndices();
+            //add the graphic to the cleanup layer (if it was ever made)
+            RenderableEntity renderableEntity = (RenderableEntity) entity;
+            if(renderableEntity.hasRenderable()){
+                cleanupLayer.add(renderableEntity.getRenderable());
+            }
         }
     }
 }
@@ -5,16 +5,32 @@ import onethreeseven.trajsuitePlugin.model.ProgramSupplier;
 
 /**
  * Supplier to pass in a {@link TrajSuiteProgram} instead of a {@link BaseTrajSuiteProgram}
+ * (or a {@link HeadlessTrajSuiteProgram} when running headless).
  * @author Luke Bermingham
  */
 public class TrajsuiteProgramSupplier implements ProgramSupplier {
 
-    private static TrajSuiteProgram inst;
+    private static BaseTrajSuiteProgram inst;
+    private static boolean headless = false;
+
+    /**
+     * @param headless True to supply a program with no graphics, must be set before the program is first supplied.
+     */
+    public static void setHeadless(boolean headless){
+        if(inst != null && headless != TrajsuiteProgramSupplier.headless){
+            throw new IllegalStateException("The program has already been made, too late to change whether it is headless.");
+        }
+        TrajsuiteProgramSupplier.headless = headless;
+    }
+
+    public static boolean isHeadless() {
+        return headless;
+    }
 
     @Override
     public BaseTrajSuiteProgram supply() {
         if(inst == null){
-            inst = new TrajSuiteProgram();
+            inst = headless ? new HeadlessTrajSuiteProgram() : new TrajSuiteProgram();
         }
         return inst;
     }
@@ -0,0 +1,162 @@
+package onethreeseven.trajsuite.core.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces redraw requests, so many edits in a short time (i.e re-coloring 100k entities)
+ * cause one redraw per frame interval instead of one redraw per edit.
+ * The first request schedules a redraw for the end of the current frame interval and every
+ * request until then is folded into it. While suspended (i.e during a bulk transaction) requests
+ * are only remembered, and one redraw happens when it is resumed.
+ * @author Luke Bermingham
+ */
+public class RedrawScheduler {
+
+    private static final ThreadFactory tf = r -> {
+        Thread t = new Thread(r, "RedrawScheduler");
+        t.setDaemon(true);
+        return t;
+    };
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(tf);
+
+    private volatile Runnable target = null;
+    private volatile long minIntervalNanos = TimeUnit.SECONDS.toNanos(1) / 60;
+    private volatile long lastRedrawNanos = 0;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicBoolean deferred = new AtomicBoolean(false);
+    private final AtomicInteger suspendDepth = new AtomicInteger(0);
+
+    //statistics
+    private final AtomicLong nRequests = new AtomicLong(0);
+    private final AtomicLong nRedraws = new AtomicLong(0);
+
+    /**
+     * @param target what does the redrawing, i.e {@code wwd::redraw}. Requests before there is a target are deferred.
+     */
+    public void setTarget(Runnable target){
+        this.target = target;
+        if(target != null && deferred.getAndSet(false)){
+            requestRedraw();
+        }
+    }
+
+    /**
+     * Ask for a redraw, safe to call from any thread and very cheap when a redraw is already scheduled.
+     */
+    public void requestRedraw(){
+        nRequests.incrementAndGet();
+        if(defer()){
+            return;
+        }
+        if(scheduled.compareAndSet(false, true)){
+            long wait = Math.max(0, lastRedrawNanos + minIntervalNanos - System.nanoTime());
+            timer.schedule(this::redraw, wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Remember a redraw for later if redrawing is suspended or there is no target.
+     * @return False if the redraw can happen now.
+     */
+    private boolean defer(){
+        if(suspendDepth.get() == 0 && target != null){
+            return false;
+        }
+        deferred.set(true);
+        //look again, resume() (or setTarget) may have run between the check and setting the flag and missed it,
+        //whoever takes the flag back does the redraw
+        return suspendDepth.get() > 0 || target == null || !deferred.getAndSet(false);
+    }
+
+    private void redraw(){
+        //clear first, so requests made while redrawing schedule another redraw
+        scheduled.set(false);
+        if(defer()){
+            return;
+        }
+        Runnable target = this.target;
+        if(target == null){
+            //removed since, wait for the next one
+            requestRedraw();
+            return;
+        }
+        lastRedrawNanos = System.nanoTime();
+        nRedraws.incrementAndGet();
+        target.run();
+    }
+
+    /**
+     * Stop redrawing until {@link #resume()} is called (calls can be nested).
+     */
+    public void suspend(){
+        suspendDepth.incrementAndGet();
+    }
+
+    /**
+     * Undo a {@link #suspend()}, when the last one is undone there is one redraw if any were requested.
+     */
+    public void resume(){
+        int depth = suspendDepth.updateAndGet(d -> Math.max(0, d - 1));
+        if(depth == 0 && deferred.getAndSet(false)){
+            requestRedraw();
+        }
+    }
+
+    /**
+     * Run some bulk edits with redrawing suspended.
+     * @param bulkEdits the edits
+     */
+    public void runSuspended(Runnable bulkEdits){
+        suspend();
+        try{
+            bulkEdits.run();
+        }finally {
+            resume();
+        }
+    }
+
+    public boolean isSuspended(){
+        return suspendDepth.get() > 0;
+    }
+
+    /**
+     * @param maxRedrawsPerSecond the most redraws this will cause each second (i.e the display's refresh rate).
+     */
+    public void setMaxRedrawsPerSecond(double maxRedrawsPerSecond){
+        if(maxRedrawsPerSecond <= 0){
+            throw new IllegalArgumentException("Max redraws per second must be positive.");
+        }
+        this.minIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / maxRedrawsPerSecond);
+    }
+
+    public double getMaxRedrawsPerSecond(){
+        return TimeUnit.SECONDS.toNanos(1) / (double) minIntervalNanos;
+    }
+
+    /**
+     * @return How many redraws were asked for.
+     */
+    public long getNRequests(){
+        return nRequests.get();
+    }
+
+    /**
+     * @return How many redraws actually happened.
+     */
+    public long getNRedraws(){
+        return nRedraws.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RedrawScheduler{requests=" + nRequests.get() + ", redraws=" + nRedraws.get() +
+                ", suspended=" + isSuspended() + '}';
+    }
+}
@@ -0,0 +1,74 @@
+package onethreeseven.trajsuite.core.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Times the phases of starting TrajSuite (i.e creating the program, building the view, the first frame of the globe)
+ * and logs them, so it is clear where startup time goes.
+ * Times are measured from when this class is first used, which is at the very start of {@code main}.
+ * @author Luke Bermingham
+ */
+public final class StartupProfiler {
+
+    private static final Logger logger = Logger.getLogger(StartupProfiler.class.getSimpleName());
+
+    private static final long startNanos = System.nanoTime();
+    private static long lastMarkNanos = startNanos;
+    private static final List<String> phases = new ArrayList<>();
+    private static boolean finished = false;
+
+    private StartupProfiler() {
+    }
+
+    /**
+     * Start timing, call this first thing in main (any other call also starts it).
+     */
+    public static void start(){
+        mark("Started");
+    }
+
+    /**
+     * Record that a phase of startup has finished, logging how long it took.
+     * Marks after {@link #finish(String)} are ignored, so code that also runs after startup can mark freely.
+     * @param phase what just finished, i.e "Loaded world layers"
+     */
+    public static synchronized void mark(String phase){
+        if(finished){
+            return;
+        }
+        long now = System.nanoTime();
+        String line = String.format("%-40s %8.1fms (+%.1fms, %s)", phase,
+                (now - startNanos) / 1e6, (now - lastMarkNanos) / 1e6, Thread.currentThread().getName());
+        lastMarkNanos = now;
+        phases.add(line);
+        logger.fine(line);
+    }
+
+    /**
+     * Record the last phase of startup and log a summary of all the phases.
+     * @param phase the last phase, i.e "First frame"
+     */
+    public static synchronized void finish(String phase){
+        if(finished){
+            return;
+        }
+        mark(phase);
+        finished = true;
+        StringBuilder sb = new StringBuilder("Startup took ")
+                .append(String.format("%.1fms", (lastMarkNanos - startNanos) / 1e6));
+        for (String line : phases) {
+            sb.append(System.lineSeparator()).append("  ").append(line);
+        }
+        logger.info(sb.toString());
+    }
+
+    /**
+     * @return Milliseconds since startup began.
+     */
+    public static double getElapsedMs(){
+        return (System.nanoTime() - startNanos) / 1e6;
+    }
+
+}
@@ -0,0 +1,60 @@
+package onethreeseven.trajsuite.core.util;
+
+import onethreeseven.datastructures.model.STPt;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * Utilities for entities whose points have times, i.e spatio-temporal trajectories.
+ * @author Luke Bermingham
+ */
+public final class TemporalUtil {
+
+    private TemporalUtil() {
+    }
+
+    /**
+     * @param time a time
+     * @return the time in epoch milliseconds (the time is treated as UTC, so it maps back the same way).
+     */
+    public static long toEpochMillis(LocalDateTime time){
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    public static LocalDateTime fromEpochMillis(long millis){
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    /**
+     * Get the time of each point of a model, in the order the points are stored (which is the order
+     * they are packed into vertices).
+     * @param model some model, i.e an STTrajectory
+     * @return the times in epoch milliseconds, or null if the model is not made of spatio-temporal points
+     * or its points are not sorted by time.
+     */
+    public static long[] getSortedTimes(Object model){
+        if(!(model instanceof Iterable)){
+            return null;
+        }
+        long[] times = new long[64];
+        int n = 0;
+        for (Object pt : (Iterable<?>) model) {
+            if(!(pt instanceof STPt)){
+                return null;
+            }
+            long time = toEpochMillis(((STPt) pt).getTime());
+            if(n > 0 && time < times[n - 1]){
+                return null;
+            }
+            if(n == times.length){
+                times = Arrays.copyOf(times, n * 2);
+            }
+            times[n++] = time;
+        }
+        return n == 0 ? null : Arrays.copyOf(times, n);
+    }
+
+}
@@ -22,6 +22,9 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URL;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 
 /**
@@ -33,6 +36,13 @@ public final class ViewChanger {
 
 
 
+    //parses the world layers config off the JavaFX thread
+    private static final ExecutorService worldLayerLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "World layer loader");
+        t.setDaemon(true);
+        return t;
+    });
+
     private ViewChanger(){}
 
     public static void changeToRoundEarth(WorldWindow wwd) {
@@ -115,11 +125,64 @@ public final class ViewChanger {
             layer.setEnabled(false);
         }
 
+        LayerList worldLayers = loadWorldLayers();
+        if(worldLayers == null){
+            return;
+        }
+        for (Layer layer : worldLayers) {
+
+            Layer existingLayer = ll.getLayerByName(layer.getName());
+
+            if (existingLayer == null) {
+                ll.add(layer);
+            } else {
+                ll.remove(existingLayer);
+                ll.add(layer);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #setupWorldLayers(LayerList)} but the layers config is parsed on a background thread,
+     * so the globe can start drawing (our layers) before the tile layers are ready.
+     * The world layers are put underneath any layers already in the layer list.
+     * @param ll the layer list to add the world layers to
+     * @param onLoaded called (on the background thread) once the layers are added, i.e to redraw
+     * @return a future that completes once the layers are added
+     */
+    public static CompletableFuture<Void> setupWorldLayersAsync(LayerList ll, Runnable onLoaded) {
+        //turn off all flat grid layers
+        for (Layer layer : ll.getLayersByClass(LatLonGraticuleLayer.class)) {
+            layer.setEnabled(false);
+        }
+        return CompletableFuture.runAsync(() -> {
+            LayerList worldLayers = loadWorldLayers();
+            StartupProfiler.mark("Parsed world layers");
+            if(worldLayers == null){
+                return;
+            }
+            int insertIdx = 0;
+            for (Layer layer : worldLayers) {
+                Layer existingLayer = ll.getLayerByName(layer.getName());
+                if (existingLayer == null) {
+                    ll.add(insertIdx++, layer);
+                } else {
+                    ll.set(ll.indexOf(existingLayer), layer);
+                }
+            }
+            onLoaded.run();
+        }, worldLayerLoader);
+    }
+
+    /**
+     * @return The layers in the world layers config, or null if it could not be loaded.
+     */
+    private static LayerList loadWorldLayers(){
         URL url = ViewChanger.class.getResource("/onethreeseven/trajsuite/core/view/worldwind_layers.xml");
 
         if(url == null){
             System.err.println("Could not load worldwind config resource file.");
-            return;
+            return null;
         }
 
         Object obj = new BasicLayerFactory().createFromConfigSource(url, null);
@@ -127,19 +190,10 @@ public final class ViewChanger {
         if (obj != null) {
             Object[] objects = (Object[]) obj;
             if (objects.length > 0) {
-                for (Layer layer : (LayerList) objects[0]) {
-
-                    Layer existingLayer = ll.getLayerByName(layer.getName());
-
-                    if (existingLayer == null) {
-                        ll.add(layer);
-                    } else {
-                        ll.remove(existingLayer);
-                        ll.add(layer);
-                    }
-                }
+                return (LayerList) objects[0];
             }
         }
+        return null;
     }
 
     public static void turnOffWmsLayers(LayerList ll){
@@ -2,7 +2,10 @@ package onethreeseven.trajsuite.core.util;
 
 import onethreeseven.trajsuite.core.graphics.GraphicsSettings;
 import onethreeseven.trajsuite.core.model.Bounding;
+import onethreeseven.trajsuite.core.model.BoundingVolumeHierarchy;
 import gov.nasa.worldwind.geom.Box;
+import gov.nasa.worldwind.geom.Frustum;
+import gov.nasa.worldwind.geom.Plane;
 import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.geom.Vec4;
 import gov.nasa.worldwind.globes.Globe;
@@ -107,4 +110,67 @@ public final class WWBoundsUtil {
     }
 
 
+    /**
+     * Finds the axis-aligned bounds of a (possibly oriented) box.
+     * @param box the box
+     * @param min output, the minimum corner {x,y,z}
+     * @param max output, the maximum corner {x,y,z}
+     */
+    public static void toAxisAlignedBounds(Box box, double[] min, double[] max){
+        for (int d = 0; d < 3; d++) {
+            min[d] = Double.POSITIVE_INFINITY;
+            max[d] = Double.NEGATIVE_INFINITY;
+        }
+        for (Vec4 corner : box.getCorners()) {
+            min[0] = Math.min(min[0], corner.x);
+            min[1] = Math.min(min[1], corner.y);
+            min[2] = Math.min(min[2], corner.z);
+            max[0] = Math.max(max[0], corner.x);
+            max[1] = Math.max(max[1], corner.y);
+            max[2] = Math.max(max[2], corner.z);
+        }
+    }
+
+    /**
+     * Makes a box test that passes axis-aligned boxes intersecting any of the given frustums.
+     * The planes are fetched once, so the test is cheap enough to run on every node of a spatial index.
+     * @param frustums the frustums (in model coordinates), i.e the view frustum or the pick frustums.
+     * @return A box test for {@link BoundingVolumeHierarchy#query(BoundingVolumeHierarchy.BoxTest, java.util.function.Consumer)}
+     */
+    public static BoundingVolumeHierarchy.BoxTest frustumTest(Frustum... frustums){
+        final Vec4[][] planes = new Vec4[frustums.length][];
+        for (int i = 0; i < frustums.length; i++) {
+            Plane[] frustumPlanes = frustums[i].getAllPlanes();
+            planes[i] = new Vec4[frustumPlanes.length];
+            for (int j = 0; j < frustumPlanes.length; j++) {
+                planes[i][j] = frustumPlanes[j].getVector();
+            }
+        }
+        return (min, max) -> {
+            for (Vec4[] frustumPlanes : planes) {
+                if(intersects(frustumPlanes, min, max)){
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Conservative test of an axis-aligned box against the planes of a frustum (normals point inwards).
+     * @return False if the box is entirely outside one of the planes.
+     */
+    private static boolean intersects(Vec4[] planes, double[] min, double[] max){
+        for (Vec4 plane : planes) {
+            //the corner of the box furthest along the plane normal
+            double x = plane.x >= 0 ? max[0] : min[0];
+            double y = plane.y >= 0 ? max[1] : min[1];
+            double z = plane.z >= 0 ? max[2] : min[2];
+            if(plane.x * x + plane.y * y + plane.z * z + plane.w <= 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
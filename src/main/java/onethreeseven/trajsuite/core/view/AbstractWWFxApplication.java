@@ -10,6 +10,7 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 import onethreeseven.trajsuite.core.model.TrajSuiteProgram;
+import onethreeseven.trajsuite.core.util.StartupProfiler;
 import onethreeseven.trajsuite.core.view.controller.TrajsuiteWWMainViewController;
 import onethreeseven.trajsuitePlugin.model.BaseTrajSuiteProgram;
 import onethreeseven.trajsuitePlugin.view.BasicFxApplication;
@@ -31,6 +32,7 @@ public abstract class AbstractWWFxApplication extends BasicFxApplication {
         //hijack the main stage with a splash screen
         splashScreen = makeSplashScreen(primaryStage);
         splashScreen.show();
+        StartupProfiler.mark("Showed splash screen");
         //give the application a new stage to use
         return new Stage();
     }
@@ -76,6 +78,7 @@ public abstract class AbstractWWFxApplication extends BasicFxApplication {
 
 
         TrajsuiteWWMainViewController controller = new TrajsuiteWWMainViewController((TrajSuiteProgram) program, stage);
+        StartupProfiler.mark("Made main view controller");
         controller.addOnViewReadyListener((observable, oldValue, newValue) -> {
             if(newValue != null){
                 onViewReady(newValue);
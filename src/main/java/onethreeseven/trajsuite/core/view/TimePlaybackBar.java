@@ -0,0 +1,161 @@
+package onethreeseven.trajsuite.core.view;
+
+import javafx.animation.AnimationTimer;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import onethreeseven.trajsuite.core.graphics.TimeWindow;
+import onethreeseven.trajsuite.core.util.TemporalUtil;
+
+import java.time.format.DateTimeFormatter;
+
+/**
+ * A time slider that plays back spatio-temporal entities.
+ * While playback is on, only the part of each entity inside the time window ending at the slider's time is drawn
+ * (see {@link TimeWindow}), and pressing play moves the slider forward in real time (times the speed).
+ * @author Luke Bermingham
+ */
+public class TimePlaybackBar extends HBox {
+
+    private static final DateTimeFormatter timeFmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long[] windowMillis = new long[]{MINUTE, 5 * MINUTE, 15 * MINUTE, 60 * MINUTE, 360 * MINUTE, 1440 * MINUTE};
+    private static final String[] windowNames = new String[]{"1 min", "5 min", "15 min", "1 hour", "6 hours", "1 day"};
+    private static final double[] speeds = new double[]{1, 10, 60, 600, 3600};
+    private static final String[] speedNames = new String[]{"1x", "10x", "60x", "600x", "3600x"};
+
+    private final Runnable redraw;
+    private final CheckBox enabled = new CheckBox("Playback");
+    private final Button playPause = new Button("Play");
+    private final Slider slider = new Slider(0, 1, 0);
+    private final Label timeLabel = new Label();
+    private final ChoiceBox<String> windowChoice = new ChoiceBox<>();
+    private final ChoiceBox<String> speedChoice = new ChoiceBox<>();
+
+    private long dataMin = 0;
+    private long dataMax = 0;
+    private long currentTime = 0;
+    private boolean playing = false;
+    private boolean updatingSlider = false;
+
+    private final AnimationTimer timer = new AnimationTimer() {
+        private long lastNanos = -1;
+        //the part of a milli left over from the last frame, so playback does not lose it to rounding every frame
+        private double carryMillis = 0;
+
+        @Override
+        public void handle(long now) {
+            if(lastNanos < 0 || !playing){
+                lastNanos = now;
+                carryMillis = 0;
+                return;
+            }
+            double elapsedMillis = (now - lastNanos) / 1e6;
+            lastNanos = now;
+            double advanceMillis = elapsedMillis * speeds[speedChoice.getSelectionModel().getSelectedIndex()] + carryMillis;
+            long wholeMillis = (long) advanceMillis;
+            carryMillis = advanceMillis - wholeMillis;
+            long next = currentTime + wholeMillis;
+            //loop back to the start
+            if(next > dataMax){
+                next = dataMin;
+            }
+            setCurrentTime(next);
+        }
+    };
+
+    /**
+     * @param redraw called (on the JavaFX thread) to draw the globe again when the time window changes.
+     */
+    public TimePlaybackBar(Runnable redraw){
+        this.redraw = redraw;
+        this.setSpacing(8);
+        this.setPadding(new Insets(4, 8, 4, 8));
+        this.setAlignment(Pos.CENTER_LEFT);
+
+        windowChoice.getItems().addAll(windowNames);
+        windowChoice.getSelectionModel().select(2);
+        speedChoice.getItems().addAll(speedNames);
+        speedChoice.getSelectionModel().select(2);
+        HBox.setHgrow(slider, Priority.ALWAYS);
+        slider.setMaxWidth(Double.MAX_VALUE);
+
+        setControlsDisabled(true);
+        this.getChildren().addAll(enabled, playPause, slider, timeLabel,
+                new Label("Window:"), windowChoice, new Label("Speed:"), speedChoice);
+
+        enabled.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            if(newValue){
+                start();
+            }else{
+                stop();
+            }
+        });
+        playPause.setOnAction(event -> {
+            playing = !playing;
+            playPause.setText(playing ? "Pause" : "Play");
+        });
+        slider.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if(!updatingSlider){
+                setCurrentTime(dataMin + (long) (newValue.doubleValue() * (dataMax - dataMin)));
+            }
+        });
+        windowChoice.getSelectionModel().selectedIndexProperty().addListener((observable, oldValue, newValue) -> apply());
+    }
+
+    private void start(){
+        if(!TimeWindow.hasData()){
+            enabled.setSelected(false);
+            timeLabel.setText("Nothing to play back.");
+            return;
+        }
+        //entities may have been added since last time
+        dataMin = TimeWindow.getDataMin();
+        dataMax = TimeWindow.getDataMax();
+        currentTime = Math.max(dataMin, Math.min(dataMax, currentTime));
+        setControlsDisabled(false);
+        setCurrentTime(currentTime);
+        timer.start();
+    }
+
+    private void stop(){
+        timer.stop();
+        playing = false;
+        playPause.setText("Play");
+        setControlsDisabled(true);
+        TimeWindow.clear();
+        redraw.run();
+    }
+
+    private void setControlsDisabled(boolean disabled){
+        playPause.setDisable(disabled);
+        slider.setDisable(disabled);
+        windowChoice.setDisable(disabled);
+        speedChoice.setDisable(disabled);
+    }
+
+    private void setCurrentTime(long time){
+        currentTime = time;
+        updatingSlider = true;
+        slider.setValue(dataMax > dataMin ? (time - dataMin) / (double) (dataMax - dataMin) : 0);
+        updatingSlider = false;
+        timeLabel.setText(TemporalUtil.fromEpochMillis(time).format(timeFmt));
+        apply();
+    }
+
+    /**
+     * Move the time window to end at the current time and redraw.
+     */
+    private void apply(){
+        if(!enabled.isSelected()){
+            return;
+        }
+        long window = windowMillis[windowChoice.getSelectionModel().getSelectedIndex()];
+        TimeWindow.set(currentTime - window, currentTime);
+        redraw.run();
+    }
+
+}
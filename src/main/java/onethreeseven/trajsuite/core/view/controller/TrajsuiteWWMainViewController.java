@@ -9,21 +9,25 @@ import gov.nasa.worldwind.awt.WorldWindowGLJPanel;
 import gov.nasa.worldwind.geom.Position;
 import gov.nasa.worldwind.globes.EarthFlat;
 import gov.nasa.worldwind.globes.FlatGlobe;
+import gov.nasa.worldwind.event.RenderingEvent;
+import gov.nasa.worldwind.event.RenderingListener;
 import gov.nasa.worldwind.terrain.ZeroElevationModel;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.embed.swing.SwingNode;
 import javafx.stage.Stage;
+import onethreeseven.trajsuite.core.graphics.VertexPreparationExecutor;
+import onethreeseven.trajsuite.core.model.TilePrefetcher;
 import onethreeseven.trajsuite.core.model.TrajSuiteProgram;
 import onethreeseven.trajsuite.core.settings.TrajSuiteSettings;
+import onethreeseven.trajsuite.core.util.RedrawScheduler;
+import onethreeseven.trajsuite.core.util.StartupProfiler;
 import onethreeseven.trajsuite.core.util.ViewChanger;
 import onethreeseven.trajsuite.core.view.CheapAWTInputHandler;
+import onethreeseven.trajsuite.core.view.TimePlaybackBar;
 import onethreeseven.trajsuitePlugin.view.controller.MainViewController;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Controller for the main view in TrajSuite.
@@ -72,38 +76,62 @@ public class TrajsuiteWWMainViewController extends MainViewController {
 
         FlatGlobe earth = new FlatGlobe(EarthFlat.WGS84_EQUATORIAL_RADIUS, EarthFlat.WGS84_POLAR_RADIUS, EarthFlat.WGS84_ES, zeroElevationModel);
 
-        ViewChanger.setupWorldLayers(getProgram().getLayers().getRenderableLayers());
+        //the tile layers are parsed in the background, the globe draws without them until they are ready
+        RedrawScheduler redrawScheduler = getProgram().getLayers().getRedrawScheduler();
+        ViewChanger.setupWorldLayersAsync(getProgram().getLayers().getRenderableLayers(), redrawScheduler::requestRedraw);
         BasicModel model = new BasicModel(earth, getProgram().getLayers().getRenderableLayers());
         wwd.setModel(model);
+        StartupProfiler.mark("Created WorldWindow");
 
-        pollGlobeUntilReady(wwd);
+        notifyOnFirstFrame(wwd);
 
+        //fetch base map tiles around the camera before they are needed
+        TilePrefetcher.getInstance().followView(wwd);
 
-        //when entity changes, re-draw
-        getProgram().getLayers().numEditedEntitiesProperty.addListener((observable, oldValue, newValue) -> {
+        //time slider to play back spatio-temporal entities
+        topLevelPane.setBottom(new TimePlaybackBar(() -> {
+            if(wwd.getView().getGlobe() != null){
+                wwd.redraw();
+            }
+        }));
+
+
+        //redraws are coalesced, so many edits at once only redraw once per frame
+        redrawScheduler.setTarget(() -> {
             if(wwd.getView().getGlobe() != null){
                 wwd.redraw();
             }
         });
 
-    }
+        //when entity changes, re-draw
+        getProgram().getLayers().numEditedEntitiesProperty.addListener(
+                (observable, oldValue, newValue) -> redrawScheduler.requestRedraw());
 
-    private void pollGlobeUntilReady(final WorldWindow wwd){
+        //when vertex data has been packed in the background, re-draw so it gets uploaded
+        VertexPreparationExecutor.getInstance().addOnPreparedListener(redrawScheduler::requestRedraw);
 
-        ThreadFactory factory = r -> new Thread(r, "Poll for WorldWindow.");
-        ExecutorService service = Executors.newSingleThreadExecutor(factory);
+    }
 
-        CompletableFuture.runAsync(()->{
-            while(wwd.getView().getGlobe() == null){
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+    /**
+     * The view is ready once the globe has drawn its first frame, WorldWind tells us when a frame is drawn
+     * so we wait for that rather than checking for the globe.
+     * @param wwd the world window
+     */
+    private void notifyOnFirstFrame(final WorldWindow wwd){
+        final AtomicBoolean notified = new AtomicBoolean(false);
+        wwd.addRenderingListener(new RenderingListener() {
+            @Override
+            public void stageChanged(RenderingEvent event) {
+                if(!RenderingEvent.AFTER_BUFFER_SWAP.equals(event.getStage()) || wwd.getView().getGlobe() == null){
+                    return;
+                }
+                if(notified.compareAndSet(false, true)){
+                    wwd.removeRenderingListener(this);
+                    StartupProfiler.finish("First frame");
+                    getProgram().setWwd(wwd);
+                    wwdView.setValue(wwd);
                 }
             }
-        }, service).thenRun(()-> {
-            getProgram().setWwd(wwd);
-            wwdView.setValue(wwd);
         });
     }
 
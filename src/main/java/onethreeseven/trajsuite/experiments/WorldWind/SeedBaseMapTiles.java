@@ -0,0 +1,45 @@
+package onethreeseven.trajsuite.experiments.WorldWind;
+
+import onethreeseven.geo.model.LatLonBounds;
+import onethreeseven.trajsuite.core.model.OSMMapnikHigherResLayer;
+import onethreeseven.trajsuite.core.model.StamenTonerBaseMapLayer;
+import onethreeseven.trajsuite.core.model.TileCacheStore;
+import onethreeseven.trajsuite.core.model.TilePrefetcher;
+
+/**
+ * Downloads the base map tiles of an area into the tile cache, so the base map works offline there.
+ * Usage: minLat maxLat minLon maxLon minZoom maxZoom osm|stamen mirrorUrl
+ * The public OSM and Stamen servers do not allow bulk downloads, so the tiles are downloaded from the mirror
+ * (i.e your own tile server, with the same zoom/x/y layout) into the cache of the chosen layer.
+ * @author Luke Bermingham
+ */
+public class SeedBaseMapTiles {
+
+    public static void main(String[] args) {
+        if(args.length < 8){
+            System.err.println("Usage: minLat maxLat minLon maxLon minZoom maxZoom osm|stamen mirrorUrl");
+            System.exit(2);
+        }
+        LatLonBounds area = new LatLonBounds(
+                Double.parseDouble(args[0]), Double.parseDouble(args[1]),
+                Double.parseDouble(args[2]), Double.parseDouble(args[3]));
+        int minZoom = Integer.parseInt(args[4]);
+        int maxZoom = Integer.parseInt(args[5]);
+        TileCacheStore.TileSource source = args[6].equalsIgnoreCase("stamen") ?
+                StamenTonerBaseMapLayer.TILE_SOURCE : OSMMapnikHigherResLayer.TILE_SOURCE;
+        TilePrefetcher.getInstance().setMirror(source, source.mirroredAt(args[7]));
+
+        long nTiles = TilePrefetcher.countTiles(area, minZoom, maxZoom);
+        System.out.println("Seeding " + nTiles + " " + source + " tiles...");
+        long startTime = System.currentTimeMillis();
+        int nDownloaded = TilePrefetcher.getInstance().seed(source, area, minZoom, maxZoom, nDone -> {
+            if(nDone % 100 == 0 || nDone == nTiles){
+                System.out.println(nDone + "/" + nTiles);
+            }
+        });
+        System.out.println("Downloaded " + nDownloaded + " tiles in " +
+                (System.currentTimeMillis() - startTime) / 1000 + "s, the cache is now " +
+                TileCacheStore.getInstance().getSizeBytes() / (1024 * 1024) + "MB.");
+    }
+
+}
@@ -0,0 +1,123 @@
+package onethreeseven.trajsuite.core.graphics;
+
+import com.jogamp.common.nio.Buffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.media.opengl.GL;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests vector tiles are found in the right place and survive the trip to disk and back.
+ * @see VectorTileStore
+ * @see VectorTileBuilder
+ * @author Luke Bermingham
+ */
+public class VectorTileStoreTest {
+
+    @Test
+    public void testTileMaths() {
+        //zoom 0 is the whole world in one tile
+        Assert.assertEquals(0, VectorTile.toTile(VectorTile.mercatorX(170), 0));
+        Assert.assertEquals(0, VectorTile.toTile(VectorTile.mercatorY(-60), 0));
+
+        //melbourne at zoom 10
+        double lat = -37.8136;
+        double lon = 144.9631;
+        int x = VectorTile.toTile(VectorTile.mercatorX(lon), 10);
+        int y = VectorTile.toTile(VectorTile.mercatorY(lat), 10);
+        Assert.assertEquals(924, x);
+        Assert.assertEquals(628, y);
+        Assert.assertTrue(VectorTile.tileToLon(x, 10) <= lon && lon < VectorTile.tileToLon(x + 1, 10));
+        //y grows south
+        Assert.assertTrue(VectorTile.tileToLat(y, 10) >= lat && lat > VectorTile.tileToLat(y + 1, 10));
+
+        Assert.assertNotEquals(VectorTile.key(10, x, y), VectorTile.key(10, y, x));
+        Assert.assertNotEquals(VectorTile.key(10, x, y), VectorTile.key(11, x, y));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File dir = Files.createTempDirectory("vectortiles").toFile();
+        VectorTileStore store = new VectorTileStore(dir);
+
+        ByteBuffer verts = Buffers.newDirectByteBuffer(4 * VectorTile.BYTES_PER_VERT);
+        for (int i = 0; i < 12; i++) {
+            verts.putFloat(i * 1.5f);
+        }
+        verts.flip();
+        VectorTile tile = new VectorTile(5, 28, 19, new double[]{1e6, 2e6, -3e6},
+                new int[]{GL.GL_LINE_STRIP, GL.GL_POINTS}, new int[]{0xff00ff00, 0x80ff0000},
+                new int[]{0, 3}, new int[]{3, 1}, verts);
+        store.put(tile);
+        store.setZooms(2, 5);
+
+        //a new store reads it back from disk
+        VectorTileStore reopened = new VectorTileStore(dir);
+        Assert.assertEquals(2, reopened.getMinZoom());
+        Assert.assertEquals(5, reopened.getMaxZoom());
+        Assert.assertNull(reopened.getIfLoaded(5, 28, 19));
+        VectorTile read = reopened.get(5, 28, 19);
+        Assert.assertNotNull(read);
+        Assert.assertSame(read, reopened.getIfLoaded(5, 28, 19));
+
+        Assert.assertEquals(2, read.getNBlocks());
+        Assert.assertEquals(GL.GL_POINTS, read.getBlockMode(1));
+        Assert.assertEquals(0x80ff0000, read.getBlockColor(1));
+        Assert.assertEquals(3, read.getBlockFirst(1));
+        Assert.assertEquals(3, read.getBlockCount(0));
+        Assert.assertEquals(-3e6, read.getReferenceCenter()[2], 0);
+        Assert.assertEquals(4, read.getNVerts());
+        ByteBuffer readVerts = read.getVertices();
+        for (int i = 0; i < 12; i++) {
+            Assert.assertEquals(i * 1.5f, readVerts.getFloat(i * Buffers.SIZEOF_FLOAT), 0);
+        }
+
+        //missing tiles are remembered as missing
+        Assert.assertNull(reopened.get(5, 0, 0));
+        Assert.assertSame(VectorTile.EMPTY, reopened.getIfLoaded(5, 0, 0));
+    }
+
+    @Test
+    public void testClearRemovesOldPyramid() throws IOException {
+        File dir = Files.createTempDirectory("vectortiles").toFile();
+        File other = new File(dir, "notes.txt");
+        Files.write(other.toPath(), new byte[]{1});
+        VectorTileStore store = new VectorTileStore(dir);
+
+        ByteBuffer verts = Buffers.newDirectByteBuffer(VectorTile.BYTES_PER_VERT);
+        verts.putFloat(0).putFloat(0).putFloat(0).flip();
+        store.put(new VectorTile(3, 1, 2, new double[]{0, 0, 0},
+                new int[]{GL.GL_POINTS}, new int[]{0xff000000}, new int[]{0}, new int[]{1}, verts));
+        store.setZooms(3, 3);
+        Assert.assertNotNull(store.get(3, 1, 2));
+
+        store.clear();
+        Assert.assertEquals(-1, store.getMaxZoom());
+        Assert.assertNull(store.get(3, 1, 2));
+        Assert.assertFalse(new File(dir, "3").exists());
+        //files that are not part of the pyramid are kept
+        Assert.assertTrue(other.exists());
+        Assert.assertEquals(-1, new VectorTileStore(dir).getMaxZoom());
+    }
+
+    @Test
+    public void testSegmentCrossesTiles() {
+        //at zoom 2 there are 4x4 tiles, this diagonal starts in (0,0) and ends in (2,1)
+        List<String> crossed = new ArrayList<>();
+        VectorTileBuilder.forEachTileCrossed(0.1, 0.2, 0.6, 0.3, 2, (x, y) -> crossed.add(x + "," + y));
+        Assert.assertEquals(Arrays.asList("0,0", "1,0", "1,1", "2,1"), crossed);
+
+        //within one tile
+        crossed.clear();
+        VectorTileBuilder.forEachTileCrossed(0.1, 0.1, 0.2, 0.2, 2, (x, y) -> crossed.add(x + "," + y));
+        Assert.assertEquals(Arrays.asList("0,0"), crossed);
+    }
+
+}
@@ -0,0 +1,106 @@
+package onethreeseven.trajsuite.core.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests the bounding volume hierarchy finds the same boxes as checking every box.
+ * @see BoundingVolumeHierarchy
+ * @author Luke Bermingham
+ */
+public class BoundingVolumeHierarchyTest {
+
+    private static final int N_BOXES = 2000;
+
+    private final Random rand = new Random(137);
+    private final double[][] mins = new double[N_BOXES][];
+    private final double[][] maxs = new double[N_BOXES][];
+    //items are compared by identity, so always pass the same instances
+    private final Integer[] ids = new Integer[N_BOXES];
+
+    private BoundingVolumeHierarchy<Integer> makeHierarchy(){
+        BoundingVolumeHierarchy<Integer> bvh = new BoundingVolumeHierarchy<>();
+        for (int i = 0; i < N_BOXES; i++) {
+            mins[i] = new double[3];
+            maxs[i] = new double[3];
+            for (int d = 0; d < 3; d++) {
+                mins[i][d] = rand.nextDouble() * 1000;
+                maxs[i][d] = mins[i][d] + rand.nextDouble() * 20;
+            }
+            ids[i] = i;
+            bvh.insert(ids[i], mins[i], maxs[i]);
+        }
+        return bvh;
+    }
+
+    private static BoundingVolumeHierarchy.BoxTest overlaps(double[] queryMin, double[] queryMax){
+        return (min, max) -> {
+            for (int d = 0; d < 3; d++) {
+                if(max[d] < queryMin[d] || min[d] > queryMax[d]){
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private Set<Integer> bruteForce(BoundingVolumeHierarchy.BoxTest test, Set<Integer> removed){
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < N_BOXES; i++) {
+            if(!removed.contains(i) && test.intersects(mins[i], maxs[i])){
+                expected.add(ids[i]);
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    public void testQueryMatchesBruteForce() {
+        BoundingVolumeHierarchy<Integer> bvh = makeHierarchy();
+        for (int q = 0; q < 50; q++) {
+            double[] queryMin = new double[]{rand.nextDouble() * 900, rand.nextDouble() * 900, rand.nextDouble() * 900};
+            double[] queryMax = new double[]{queryMin[0] + 100, queryMin[1] + 100, queryMin[2] + 100};
+            BoundingVolumeHierarchy.BoxTest test = overlaps(queryMin, queryMax);
+            Set<Integer> actual = new HashSet<>();
+            bvh.query(test, actual::add);
+            Assert.assertEquals(bruteForce(test, new HashSet<>()), actual);
+        }
+    }
+
+    @Test
+    public void testRemoveAndReinsert() {
+        BoundingVolumeHierarchy<Integer> bvh = makeHierarchy();
+        BoundingVolumeHierarchy.BoxTest everything = (min, max) -> true;
+        //build the tree
+        bvh.query(everything, value -> {});
+
+        Set<Integer> removed = new HashSet<>();
+        for (int i = 0; i < N_BOXES; i += 3) {
+            Assert.assertTrue(bvh.remove(ids[i]));
+            removed.add(i);
+        }
+        Assert.assertFalse(bvh.remove(ids[0]));
+        Assert.assertEquals(N_BOXES - removed.size(), bvh.size());
+
+        //move a box that is still in the hierarchy
+        mins[1] = new double[]{5000, 5000, 5000};
+        maxs[1] = new double[]{5001, 5001, 5001};
+        bvh.insert(ids[1], mins[1], maxs[1]);
+
+        double[] queryMin = new double[]{200, 200, 200};
+        double[] queryMax = new double[]{600, 600, 600};
+        BoundingVolumeHierarchy.BoxTest test = overlaps(queryMin, queryMax);
+        Set<Integer> actual = new HashSet<>();
+        bvh.query(test, actual::add);
+        Assert.assertEquals(bruteForce(test, removed), actual);
+
+        Set<Integer> moved = new HashSet<>();
+        bvh.query(overlaps(mins[1], maxs[1]), moved::add);
+        Assert.assertTrue(moved.contains(ids[1]));
+    }
+
+}
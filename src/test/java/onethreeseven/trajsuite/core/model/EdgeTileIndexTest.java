@@ -0,0 +1,278 @@
+package onethreeseven.trajsuite.core.model;
+
+import onethreeseven.geo.model.LatLonBounds;
+import onethreeseven.geo.projection.ProjectionMercator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.DoubleBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests the edge index finds the same edges as checking every edge.
+ * @see EdgeTileIndex
+ * @see TiledGeographicGraph
+ * @author Luke Bermingham
+ */
+public class EdgeTileIndexTest {
+
+    //a 20x20 lattice of nodes 0.01 degrees apart, connected left-right and down-up
+    private static final int N = 20;
+    private static final double STEP = 0.01;
+
+    private static final GraphEdgeDAO lattice = new GraphEdgeDAO() {
+        @Override
+        public int getNEdges() {
+            return 2 * N * (N - 1);
+        }
+
+        @Override
+        public int getBaseNode(int edgeId) {
+            int half = N * (N - 1);
+            if(edgeId < half){
+                return (edgeId / (N - 1)) * N + edgeId % (N - 1);
+            }
+            return edgeId - half;
+        }
+
+        @Override
+        public int getAdjNode(int edgeId) {
+            int half = N * (N - 1);
+            return edgeId < half ? getBaseNode(edgeId) + 1 : getBaseNode(edgeId) + N;
+        }
+
+        @Override
+        public double getLat(int nodeId) {
+            return (nodeId / N) * STEP;
+        }
+
+        @Override
+        public double getLon(int nodeId) {
+            return (nodeId % N) * STEP;
+        }
+    };
+
+    @Test
+    public void testMatchesLinearScan() {
+        EdgeTileIndex index = EdgeTileIndex.build(lattice, new ProjectionMercator(), 4);
+        Assert.assertTrue(index.getNCells() > 1);
+
+        LatLonBounds view = new LatLonBounds(0.043, 0.101, 0.052, 0.087);
+        Set<Integer> expected = new HashSet<>();
+        for (int edgeId = 0; edgeId < lattice.getNEdges(); edgeId++) {
+            double lat1 = lattice.getLat(lattice.getBaseNode(edgeId));
+            double lat2 = lattice.getLat(lattice.getAdjNode(edgeId));
+            double lon1 = lattice.getLon(lattice.getBaseNode(edgeId));
+            double lon2 = lattice.getLon(lattice.getAdjNode(edgeId));
+            if(Math.max(lat1, lat2) >= view.getMinLat() && Math.min(lat1, lat2) <= view.getMaxLat() &&
+                    Math.max(lon1, lon2) >= view.getMinLon() && Math.min(lon1, lon2) <= view.getMaxLon()){
+                expected.add(edgeId);
+            }
+        }
+        Set<Integer> actual = new HashSet<>();
+        int nVisited = index.forEachEdge(view, edgeId -> Assert.assertTrue(actual.add(edgeId)));
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(expected.size(), nVisited);
+
+        //each straight edge is one segment of two xyz vertices
+        DoubleBuffer buf = index.getEdges(view);
+        Assert.assertEquals(expected.size() * 6, buf.position());
+    }
+
+    @Test
+    public void testDisconnectedPieces() {
+        //two roads that share no nodes, the second bends twice on its way
+        double[][] nodes = new double[][]{{0, 0}, {0, 1}, {5, 5}, {5, 6}};
+        GraphEdgeDAO islands = new GraphEdgeDAO() {
+            @Override
+            public int getNEdges() {
+                return 2;
+            }
+
+            @Override
+            public int getBaseNode(int edgeId) {
+                return edgeId * 2;
+            }
+
+            @Override
+            public int getAdjNode(int edgeId) {
+                return edgeId * 2 + 1;
+            }
+
+            @Override
+            public double[] getWayGeometry(int edgeId) {
+                return edgeId == 1 ? new double[]{5.1, 5.3, 5.2, 5.6} : new double[0];
+            }
+
+            @Override
+            public double getLat(int nodeId) {
+                return nodes[nodeId][0];
+            }
+
+            @Override
+            public double getLon(int nodeId) {
+                return nodes[nodeId][1];
+            }
+        };
+        EdgeTileIndex index = EdgeTileIndex.build(islands, new ProjectionMercator(), 1);
+        LatLonBounds view = new LatLonBounds(-1, 6, -1, 7);
+        Set<Integer> actual = new HashSet<>();
+        index.forEachEdge(view, actual::add);
+        Assert.assertEquals(2, actual.size());
+        //one segment for the straight road and three for the bent one
+        Assert.assertEquals(3, index.getNVerts(1) / 2);
+        Assert.assertEquals((1 + 3) * 6, index.getEdges(view).position());
+    }
+
+    @Test
+    public void testCoarseLevel() {
+        //only the horizontal edges of the lattice are major roads
+        GraphEdgeDAO roads = new GraphEdgeDAO() {
+            @Override
+            public int getNEdges() {
+                return lattice.getNEdges();
+            }
+
+            @Override
+            public int getBaseNode(int edgeId) {
+                return lattice.getBaseNode(edgeId);
+            }
+
+            @Override
+            public int getAdjNode(int edgeId) {
+                return lattice.getAdjNode(edgeId);
+            }
+
+            @Override
+            public int getRoadClass(int edgeId) {
+                return edgeId < N * (N - 1) ? 0 : 1;
+            }
+
+            @Override
+            public double getLat(int nodeId) {
+                return lattice.getLat(nodeId);
+            }
+
+            @Override
+            public double getLon(int nodeId) {
+                return lattice.getLon(nodeId);
+            }
+        };
+        EdgeTileIndex index = EdgeTileIndex.build(roads, new ProjectionMercator(), 4,
+                edgeId -> roads.getRoadClass(edgeId) == 0, 0);
+        LatLonBounds all = new LatLonBounds(-1, 1, -1, 1);
+        Set<Integer> actual = new HashSet<>();
+        index.forEachEdge(all, actual::add);
+        Assert.assertEquals(N * (N - 1), actual.size());
+        for (int edgeId : actual) {
+            Assert.assertEquals(0, roads.getRoadClass(edgeId));
+        }
+    }
+
+    @Test
+    public void testSimplify() {
+        //up to a peak and back down, the points either side of the peak are barely off the line
+        double[] latLons = new double[]{0, 0, 0.50001, 1, 1, 2, 0.5, 3, 0, 4};
+        int nKept = EdgeTileIndex.simplify(latLons, 5, 0.001, new boolean[5]);
+        Assert.assertEquals(3, nKept);
+        Assert.assertEquals(1, latLons[2], 0);
+        Assert.assertEquals(2, latLons[3], 0);
+        Assert.assertEquals(4, latLons[5], 0);
+    }
+
+    @Test
+    public void testStreamMatchesGetEdges() {
+        EdgeTileIndex index = EdgeTileIndex.build(lattice, new ProjectionMercator(), 2);
+        LatLonBounds view = new LatLonBounds(0.02, 0.15, 0.03, 0.17);
+        int expected = index.getEdges(view).position();
+
+        int[] nBatches = new int[1];
+        int[] nValues = new int[1];
+        Assert.assertTrue(index.streamEdges(view, 4, batch -> {
+            nBatches[0]++;
+            nValues[0] += batch.position();
+        }, () -> false));
+        Assert.assertTrue(nBatches[0] > 1);
+        Assert.assertEquals(expected, nValues[0]);
+
+        //cancelled after the first batch, and the next query is still complete
+        int[] nChecks = new int[1];
+        Assert.assertFalse(index.streamEdges(view, 4, batch -> {}, () -> nChecks[0]++ > 0));
+        Assert.assertEquals(2, nChecks[0]);
+        Assert.assertEquals(expected, index.getEdges(view).position());
+    }
+
+    @Test
+    public void testViewOutsideGraph() {
+        EdgeTileIndex index = EdgeTileIndex.build(lattice, new ProjectionMercator());
+        Assert.assertEquals(0, index.forEachEdge(new LatLonBounds(10, 11, 10, 11), edgeId -> Assert.fail("No edges are in view")));
+        //still one degenerate edge to upload
+        Assert.assertEquals(6, index.getEdges(new LatLonBounds(10, 11, 10, 11)).position());
+    }
+
+    @Test
+    public void testTiledGraph() throws Exception {
+        TiledGeographicGraph graph = new TiledGeographicGraph(lattice, new ProjectionMercator());
+        LatLonBounds view = new LatLonBounds(0.043, 0.101, 0.052, 0.087);
+        Assert.assertEquals(graph.getIndex().getEdges(view).position(), graph.getEdges(view).position());
+        //close to the ground is full detail, far away is a coarser level once they are built
+        Assert.assertEquals(0, graph.getLevelOfDetail(100));
+        graph.awaitLevels();
+        int farLevel = graph.getLevelOfDetail(1e6);
+        Assert.assertTrue(farLevel > 0);
+        Assert.assertNotNull(graph.getIndex(farLevel));
+    }
+
+    @Test
+    public void testEdgesAcrossChunks() {
+        //enough straight edges (6 values each) that their geometry fills more than one chunk
+        int nEdges = 50000;
+        GraphEdgeDAO ladder = new GraphEdgeDAO() {
+            @Override
+            public int getNEdges() {
+                return nEdges;
+            }
+
+            @Override
+            public int getBaseNode(int edgeId) {
+                return edgeId;
+            }
+
+            @Override
+            public int getAdjNode(int edgeId) {
+                return edgeId + 1;
+            }
+
+            @Override
+            public double getLat(int nodeId) {
+                return nodeId * 1e-5;
+            }
+
+            @Override
+            public double getLon(int nodeId) {
+                return nodeId % 2 == 0 ? 0 : 1e-5;
+            }
+        };
+        ProjectionMercator projection = new ProjectionMercator();
+        EdgeTileIndex index = EdgeTileIndex.build(ladder, projection);
+        LatLonBounds all = new LatLonBounds(-1, 1, -1, 1);
+        DoubleBuffer buf = index.getEdges(all);
+        Assert.assertEquals(nEdges * 6, buf.position());
+
+        //every edge's segment comes back as it was projected, wherever it was stored
+        double expectedSum = 0;
+        for (int edgeId = 0; edgeId < nEdges; edgeId++) {
+            for (int nodeId = edgeId; nodeId <= edgeId + 1; nodeId++) {
+                double[] xy = projection.geographicToCartesian(ladder.getLat(nodeId), ladder.getLon(nodeId));
+                expectedSum += xy[0] + xy[1];
+            }
+        }
+        double actualSum = 0;
+        for (int i = 0; i < buf.position(); i += 3) {
+            actualSum += buf.get(i) + buf.get(i + 1);
+        }
+        Assert.assertEquals(expectedSum, actualSum, Math.abs(expectedSum) * 1e-9);
+    }
+
+}
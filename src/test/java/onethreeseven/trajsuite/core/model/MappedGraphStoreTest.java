@@ -0,0 +1,111 @@
+package onethreeseven.trajsuite.core.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests a graph reads back the same after being written to a graph store.
+ * @see MappedGraphStore
+ * @author Luke Bermingham
+ */
+public class MappedGraphStoreTest {
+
+    //a triangle 0-1-2 with a bent edge from 2 to 0, and a separate edge 3-4
+    private static final double[][] nodes = new double[][]{
+            {-37.8136, 144.9631}, {-37.8140, 144.9700}, {-37.8200, 144.9650}, {51.5074, -0.1278}, {51.5080, -0.1200}};
+    private static final int[][] edges = new int[][]{{0, 1}, {1, 2}, {2, 0}, {3, 4}};
+
+    private static final GraphEdgeDAO source = new GraphEdgeDAO() {
+        @Override
+        public int getNEdges() {
+            return edges.length;
+        }
+
+        @Override
+        public int getBaseNode(int edgeId) {
+            return edges[edgeId][0];
+        }
+
+        @Override
+        public int getAdjNode(int edgeId) {
+            return edges[edgeId][1];
+        }
+
+        @Override
+        public double[] getWayGeometry(int edgeId) {
+            return edgeId == 2 ? new double[]{-37.8180, 144.9600} : new double[0];
+        }
+
+        @Override
+        public int getRoadClass(int edgeId) {
+            return edgeId == 3 ? 2 : 0;
+        }
+
+        @Override
+        public double getLat(int nodeId) {
+            return nodes[nodeId][0];
+        }
+
+        @Override
+        public double getLon(int nodeId) {
+            return nodes[nodeId][1];
+        }
+    };
+
+    private static MappedGraphStore writeAndOpen() throws IOException {
+        File file = Files.createTempFile("graph", ".tsgr").toFile();
+        file.deleteOnExit();
+        MappedGraphStore.write(file, source);
+        return MappedGraphStore.open(file);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        MappedGraphStore store = writeAndOpen();
+        Assert.assertEquals(nodes.length, store.getNNodes());
+        Assert.assertEquals(edges.length, store.getNEdges());
+        for (int nodeId = 0; nodeId < nodes.length; nodeId++) {
+            Assert.assertEquals(nodes[nodeId][0], store.getLat(nodeId), 1e-7);
+            Assert.assertEquals(nodes[nodeId][1], store.getLon(nodeId), 1e-7);
+        }
+        for (int edgeId = 0; edgeId < edges.length; edgeId++) {
+            Assert.assertEquals(edges[edgeId][0], store.getBaseNode(edgeId));
+            Assert.assertEquals(edges[edgeId][1], store.getAdjNode(edgeId));
+            Assert.assertEquals(source.getRoadClass(edgeId), store.getRoadClass(edgeId));
+            Assert.assertArrayEquals(source.getWayGeometry(edgeId), store.getWayGeometry(edgeId), 1e-7);
+        }
+        Assert.assertEquals(-37.8200, store.getBounds().getMinLat(), 1e-7);
+        Assert.assertEquals(144.9700, store.getBounds().getMaxLon(), 1e-7);
+
+        double[] latLons = new double[4];
+        store.getLatLons(3, 2, latLons);
+        Assert.assertEquals(51.5080, latLons[2], 1e-7);
+    }
+
+    @Test
+    public void testAdjacency() throws IOException {
+        MappedGraphStore store = writeAndOpen();
+        Assert.assertEquals(2, store.getDegree(0));
+        Set<Integer> neighbours = new HashSet<>();
+        store.forEachEdge(0, edgeId -> neighbours.add(store.getOtherNode(edgeId, 0)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(1, 2)), neighbours);
+        Assert.assertEquals(1, store.getDegree(3));
+        Assert.assertEquals(3, store.getEdge(4, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsOtherFiles() throws IOException {
+        File file = Files.createTempFile("graph", ".tsgr").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[64]);
+        MappedGraphStore.open(file);
+    }
+
+}
@@ -0,0 +1,69 @@
+package onethreeseven.trajsuite.core.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Tests tiles are cached where WorldWind looks for them and the cache stays in its budget.
+ * @see TileCacheStore
+ * @author Luke Bermingham
+ */
+public class TileCacheStoreTest {
+
+    private static final TileCacheStore.TileSource source =
+            new TileCacheStore.TileSource("Earth/Test", "http://localhost/", ".png", 16);
+
+    @Test
+    public void testWorldWindLayout() throws IOException {
+        File root = Files.createTempDirectory("tilecache").toFile();
+        TileCacheStore store = new TileCacheStore(root, Long.MAX_VALUE);
+        //zoom 3 is worldwind level 0, its rows count from the south
+        File file = store.getFile(source, 3, 5, 0);
+        Assert.assertEquals(new File(root, "Earth/Test/0/7/7_5.png"), file);
+        Assert.assertFalse(store.contains(source, 3, 5, 0));
+
+        store.put(source, 3, 5, 0, new byte[]{1, 2, 3});
+        Assert.assertTrue(store.contains(source, 3, 5, 0));
+        ByteBuffer read = store.read(source, 3, 5, 0);
+        Assert.assertEquals(3, read.remaining());
+        Assert.assertEquals(3, read.get(2));
+        Assert.assertEquals(3, store.getSizeBytes());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        File root = Files.createTempDirectory("tilecache").toFile();
+        TileCacheStore store = new TileCacheStore(root, 250);
+        store.put(source, 10, 0, 0, new byte[100]);
+        store.put(source, 10, 1, 0, new byte[100]);
+        //make the first tile the oldest
+        Assert.assertTrue(store.getFile(source, 10, 0, 0).setLastModified(1000));
+        Assert.assertTrue(store.getFile(source, 10, 1, 0).setLastModified(2000));
+        store.put(source, 10, 2, 0, new byte[100]);
+
+        Assert.assertFalse(store.contains(source, 10, 0, 0));
+        Assert.assertTrue(store.contains(source, 10, 1, 0));
+        Assert.assertTrue(store.contains(source, 10, 2, 0));
+        Assert.assertTrue(store.getSizeBytes() <= 250);
+    }
+
+    @Test
+    public void testMirrorSharesCache() throws IOException {
+        File root = Files.createTempDirectory("tilecache").toFile();
+        TileCacheStore store = new TileCacheStore(root, Long.MAX_VALUE);
+        //the source does not allow bulk downloads, its mirror does and fills the same cache
+        TileCacheStore.TileSource mirror = source.mirroredAt("http://tiles.example.org/");
+        Assert.assertFalse(source.allowsPrefetch);
+        Assert.assertTrue(mirror.allowsPrefetch);
+        store.put(mirror, 10, 0, 0, new byte[100]);
+        Assert.assertTrue(store.contains(source, 10, 0, 0));
+        //counted once, not once per source
+        Assert.assertEquals(100, store.getSizeBytes());
+    }
+
+}
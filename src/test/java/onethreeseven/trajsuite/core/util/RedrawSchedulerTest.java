@@ -0,0 +1,90 @@
+package onethreeseven.trajsuite.core.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests redraw requests are coalesced, held back while suspended, and kept until there is a target.
+ * @see RedrawScheduler
+ * @author Luke Bermingham
+ */
+public class RedrawSchedulerTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+    //long enough for a redraw that should not happen to have happened
+    private static final long SETTLE_MILLIS = 200;
+
+    private static void awaitRedraws(AtomicInteger nRedraws, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while(nRedraws.get() < expected && System.currentTimeMillis() < deadline){
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(expected, nRedraws.get());
+    }
+
+    @Test
+    public void testCoalescesRequests() throws InterruptedException {
+        AtomicInteger nRedraws = new AtomicInteger(0);
+        RedrawScheduler scheduler = new RedrawScheduler();
+        scheduler.setMaxRedrawsPerSecond(2);
+        scheduler.setTarget(nRedraws::incrementAndGet);
+
+        //the first redraw starts the interval
+        scheduler.requestRedraw();
+        awaitRedraws(nRedraws, 1);
+
+        //a burst within the interval is one redraw at the end of it
+        for (int i = 0; i < 1000; i++) {
+            scheduler.requestRedraw();
+        }
+        awaitRedraws(nRedraws, 2);
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(2, nRedraws.get());
+        Assert.assertEquals(1001, scheduler.getNRequests());
+        Assert.assertEquals(2, scheduler.getNRedraws());
+    }
+
+    @Test
+    public void testNestedSuspend() throws InterruptedException {
+        AtomicInteger nRedraws = new AtomicInteger(0);
+        RedrawScheduler scheduler = new RedrawScheduler();
+        scheduler.setMaxRedrawsPerSecond(1000);
+        scheduler.setTarget(nRedraws::incrementAndGet);
+
+        scheduler.suspend();
+        scheduler.suspend();
+        for (int i = 0; i < 10; i++) {
+            scheduler.requestRedraw();
+        }
+        scheduler.resume();
+        Assert.assertTrue(scheduler.isSuspended());
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(0, nRedraws.get());
+
+        //one redraw after the last resume
+        scheduler.resume();
+        awaitRedraws(nRedraws, 1);
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(1, nRedraws.get());
+    }
+
+    @Test
+    public void testRequestBeforeTarget() throws InterruptedException {
+        AtomicInteger nRedraws = new AtomicInteger(0);
+        RedrawScheduler scheduler = new RedrawScheduler();
+        scheduler.setMaxRedrawsPerSecond(1000);
+
+        scheduler.requestRedraw();
+        scheduler.requestRedraw();
+        Thread.sleep(SETTLE_MILLIS);
+
+        //delivered once the target is set
+        scheduler.setTarget(nRedraws::incrementAndGet);
+        awaitRedraws(nRedraws, 1);
+        Thread.sleep(SETTLE_MILLIS);
+        Assert.assertEquals(1, nRedraws.get());
+    }
+
+}
@@ -6,8 +6,6 @@
 package onethreeseven.trajsuite.osm.model;
 
 import com.graphhopper.GraphHopper;
-import com.graphhopper.coll.GHBitSet;
-import com.graphhopper.coll.GHBitSetImpl;
 import com.graphhopper.matching.*;
 import com.graphhopper.reader.osm.GraphHopperOSM;
 import com.graphhopper.routing.AlgorithmOptions;
@@ -19,35 +17,34 @@ import com.graphhopper.storage.index.LocationIndexTree;
 import com.graphhopper.storage.index.QueryResult;
 import com.graphhopper.util.*;
 import com.graphhopper.util.shapes.BBox;
-import com.graphhopper.util.shapes.GHPoint3D;
 import gov.nasa.worldwind.globes.Globe;
-import onethreeseven.collections.DoubleArray;
 import onethreeseven.common.util.FileUtil;
 import onethreeseven.datastructures.model.SpatialTrajectory;
 import onethreeseven.geo.model.LatLonBounds;
 import onethreeseven.geo.projection.AbstractGeographicProjection;
 import onethreeseven.geo.projection.ProjectionMercator;
-import onethreeseven.trajsuite.core.model.GraphDAO;
+import onethreeseven.trajsuite.core.model.EdgeTileIndex;
+import onethreeseven.trajsuite.core.model.GraphEdgeDAO;
 import onethreeseven.trajsuite.osm.algorithm.MarkovMapMatching;
-import onethreeseven.trajsuitePlugin.settings.PluginSettings;
 import java.io.File;
 import java.nio.DoubleBuffer;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 
 /**
  * DAO for working the graph hopper.
  */
-public class GraphHopperDAO implements GraphDAO {
+public class GraphHopperDAO implements GraphEdgeDAO {
 
     private final File workingDir;
     private final Logger logger;
     private final FlagEncoder encoder;
     private GraphHopper gh;
+    //edge indices by the projection they were built for
+    private final Map<Class<? extends AbstractGeographicProjection>, EdgeTileIndex> edgeIndices = new HashMap<>();
 
     public GraphHopperDAO(File osmFile) {
         this.logger = Logger.getLogger(GraphHopperDAO.class.getSimpleName());
@@ -140,120 +137,86 @@ public class GraphHopperDAO implements GraphDAO {
     }
 
     /**
-     * Given a sector find any node in the graph that falls within it
-     *
-     * @param sector the search sector
-     * @return a node id within the sector, or -1 if no node is found
+     * Gets the index of this graph's edges, building it the first time it is asked for with this kind of projection.
+     * @param projection the projection of the edges
+     * @return the index
      */
-    private int getAnyNodeWithin(LatLonBounds sector) {
-        LatLonBounds graphSector = getBoundingSector();
-        if (!graphSector.contains(sector) && !sector.intersects(graphSector)) {
-            return -1;
-        }
-        final int lastId = gh.getGraphHopperStorage().getNodes();
-        final NodeAccess na = gh.getGraphHopperStorage().getNodeAccess();
-
-        for (int nodeIdx = 0; nodeIdx < lastId; nodeIdx++) {
-            double lat = na.getLat(nodeIdx);
-            double lon = na.getLon(nodeIdx);
-            if (sector.contains(lat, lon)) {
-                return nodeIdx;
-            }
+    public synchronized EdgeTileIndex getEdgeIndex(AbstractGeographicProjection projection) {
+        EdgeTileIndex index = edgeIndices.get(projection.getClass());
+        if(index == null){
+            long startTime = System.currentTimeMillis();
+            index = EdgeTileIndex.build(this, projection);
+            logger.info("Indexed " + index.getNEdges() + " edges in " + index.getNCells() + " cells in " +
+                    (System.currentTimeMillis() - startTime) + " millis.");
+            edgeIndices.put(projection.getClass(), index);
         }
-        return -1;
+        return index;
     }
 
+    /**
+     * Gets all the edges in the sector, including those of pieces of the road network that
+     * are not connected to the rest.
+     * @param projection the projection of the edges
+     * @param sector the visible sector
+     * @return the edges packed in node pairs, see {@link EdgeTileIndex#getEdges(LatLonBounds)}.
+     */
     DoubleBuffer getAllEdgesWithinSector(final AbstractGeographicProjection projection, final LatLonBounds sector) {
+        return getEdgeIndex(projection).getEdges(sector);
+    }
 
-        final NodeAccess na = gh.getGraphHopperStorage().getNodeAccess();
-        final EdgeExplorer edgeExplorer = gh.getGraphHopperStorage().createEdgeExplorer();
-
-        int startNode = getAnyNodeWithin(sector);
-        if (startNode >= 0) {
-
-            final DoubleArray out = new DoubleArray(1000, true);
-
-            final Consumer<Integer> nodeProcessor = new Consumer<Integer>() {
-
-                private final GHBitSet processedEdges = new GHBitSetImpl();
-
-                private double[] latlonToCoordinates(double lat, double lon){
-                    return projection.geographicToCartesian(lat, lon);
-                }
-
-                private double[] nodeToCoordinates(int nodeId){
-                    return latlonToCoordinates(na.getLat(nodeId), na.getLon(nodeId));
-                }
-
-                @Override
-                public void accept(final Integer baseNode) {
-                    final double smallElevation = PluginSettings.smallElevation.getSetting();
-
-                    EdgeIterator edgeIter = edgeExplorer.setBaseNode(baseNode);
-
-                    while(edgeIter.next()){
-                        //get the adjacent node
-                        int adjNode = edgeIter.getAdjNode();
-                        int sum = baseNode + adjNode;
-                        if (!processedEdges.contains(sum)) {
-                            processedEdges.add(sum);
-                            //always push base node because we are storing each full edge
-                            double[] baseNodeCoords = nodeToCoordinates(baseNode);
-                            out.addAll(baseNodeCoords);
-                            boolean needsElevation = baseNodeCoords.length == 2;
-                            if(needsElevation){
-                                out.add(smallElevation);
-                            }
-
-                            //store any edges in between base and adj node that may be way geometry
-                            PointList pointList = edgeIter.fetchWayGeometry(0);
-                            for (GHPoint3D wayPoint : pointList) {
-                                double[] coords = latlonToCoordinates(wayPoint.lat, wayPoint.lon);
-                                //push it twice because we are storing full edges (not sequences)
-                                for (int i = 0; i < 2; i++) {
-                                    out.addAll(coords);
-                                    if(needsElevation){
-                                        out.add(smallElevation);
-                                    }
-                                }
-                            }
-                            out.addAll(nodeToCoordinates(adjNode));
-                            if(needsElevation){
-                                out.add(smallElevation);
-                            }
-                        }
-                    }
-                }
-            };
-
-
-            //start actual bfs where we store the edges
-            BreadthFirstSearch bfs = new BreadthFirstSearch(){
-                @Override
-                protected boolean goFurther(int baseNode) {
-                    boolean proceed = sector.contains(na.getLat(baseNode), na.getLon(baseNode));
-                    if(proceed){
-                        nodeProcessor.accept(baseNode);
-                    }
-                    return proceed;
-                }
-            };
-            bfs.start(edgeExplorer, startNode);
-
-            //DoubleBuffer buf = DoubleBuffer.wrap(out.toArray());
-            //DoubleBuffer buf = Buffers.newDirectDoubleBuffer(out.toArray());
-            //buf.position(buf.limit());
-            //return buf;
-            System.out.println(out.size() + " edges found.");
-
-            return (DoubleBuffer) out.getFilledBuffer(false);
+    @Override
+    public int getNEdges() {
+        return gh.getGraphHopperStorage().getAllEdges().length();
+    }
+
+    @Override
+    public int getBaseNode(int edgeId) {
+        return gh.getGraphHopperStorage().getEdgeIteratorState(edgeId, Integer.MIN_VALUE).getBaseNode();
+    }
+
+    @Override
+    public int getAdjNode(int edgeId) {
+        return gh.getGraphHopperStorage().getEdgeIteratorState(edgeId, Integer.MIN_VALUE).getAdjNode();
+    }
+
+    @Override
+    public double[] getWayGeometry(int edgeId) {
+        //pillar nodes only, the tower nodes are the base and adj node
+        PointList pointList = gh.getGraphHopperStorage().getEdgeIteratorState(edgeId, Integer.MIN_VALUE).fetchWayGeometry(0);
+        double[] latLons = new double[pointList.size() * 2];
+        for (int i = 0; i < pointList.size(); i++) {
+            latLons[i * 2] = pointList.getLat(i);
+            latLons[i * 2 + 1] = pointList.getLon(i);
+        }
+        return latLons;
+    }
+
+    @Override
+    public double[] getEdgeLatLons(int edgeId) {
+        //one edge lookup for the tower and pillar nodes together
+        PointList pointList = gh.getGraphHopperStorage().getEdgeIteratorState(edgeId, Integer.MIN_VALUE).fetchWayGeometry(3);
+        double[] latLons = new double[pointList.size() * 2];
+        for (int i = 0; i < pointList.size(); i++) {
+            latLons[i * 2] = pointList.getLat(i);
+            latLons[i * 2 + 1] = pointList.getLon(i);
+        }
+        return latLons;
+    }
+
+    @Override
+    public int getRoadClass(int edgeId) {
+        //the car encoder does not keep the highway tag, its speed is the closest stand in for road importance
+        double speed = encoder.getSpeed(gh.getGraphHopperStorage().getEdgeIteratorState(edgeId, Integer.MIN_VALUE).getFlags());
+        if(speed >= 90){
+            return 0;
+        }
+        if(speed >= 60){
+            return 1;
         }
-        else {
-            //No nodes/edges found within sector:
-            DoubleBuffer buf = DoubleBuffer.wrap(new double[]{0,0,0,0,0,0});
-            buf.position(buf.limit());
-            return buf;
+        if(speed >= 40){
+            return 2;
         }
+        return 3;
     }
 
     /**